@@ -0,0 +1,197 @@
+package com.boundary.high_scale_lib;
+
+import org.cliffc.high_scale_lib.ConcurrentAutoTable;
+import org.cliffc.high_scale_lib.MapStats;
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+import org.cliffc.high_scale_lib.NonBlockingIdentityHashMap;
+import org.cliffc.high_scale_lib.NonBlockingSetInt;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Optional registration of named maps, sets and counters as platform
+ * MXBeans, so operators can watch their internals live from any JMX
+ * console.
+ * <p>
+ * Each instance is registered under
+ * <code>com.boundary.high_scale_lib:type=&lt;class&gt;,name=&lt;name&gt;</code>.
+ * Registering a map turns on its event counts (see
+ * {@link NonBlockingHashMap#setStatsEnabled}); once its last registration
+ * is unregistered, they are turned back off if they were off before.
+ * Counts are exposed as running totals; monitoring tools derive resize and
+ * reprobe rates from successive samples.  A registered instance is strongly
+ * referenced by the MBean server until {@link #unregister} is called.
+ */
+public final class HighScaleMXBeans {
+  /** The JMX domain all beans are registered under. */
+  public static final String DOMAIN = "com.boundary.high_scale_lib";
+
+  private HighScaleMXBeans() { }
+
+  // Maps whose event counts were turned on by registering them, with their
+  // number of live registrations, and the map behind each such bean.
+  // Guarded by the class lock; registration is rare.
+  private static final Map<Object,Integer> _statsRefs = new IdentityHashMap<Object,Integer>();
+  private static final Map<ObjectName,Object> _statsMaps = new HashMap<ObjectName,Object>();
+  private static final Map<Object,Consumer<Boolean>> _statsSetters = new IdentityHashMap<Object,Consumer<Boolean>>();
+
+  /** Management view of a hash map's internals. */
+  public interface MapMXBean {
+    /** Number of live mappings. */
+    long getSize();
+    /** Number of slots in the current table. */
+    long getCapacity();
+    /** Fraction of the current table's slots claimed by keys. */
+    double getSlotUsage();
+    /** Number of claimed key slots holding no live mapping. */
+    long getTombstones();
+    /** Table resizes since registration. */
+    long getResizes();
+    /** Total nanoseconds spent copying tables since registration. */
+    long getCopyNanos();
+    /** Reprobes by lookups since registration. */
+    long getGetReprobes();
+    /** Reprobes by updates since registration. */
+    long getPutReprobes();
+    /** Lost CAS races since registration. */
+    long getCasRetries();
+    /** Operations paused for resize work since registration. */
+    long getPauses();
+    /** Total nanoseconds operations spent paused for resize work. */
+    long getPauseNanos();
+    /** Upper bound on the 99.9th percentile resize pause, in nanoseconds. */
+    long getPauseP999();
+    /** Resize pause histogram; element i counts pauses of [2^i,2^(i+1)) ns. */
+    long[] getPauseHistogram();
+  }
+
+  /** Management view of a {@link NonBlockingSetInt}. */
+  public interface SetIntMXBean {
+    /** Number of elements. */
+    int getSize();
+    /** Bytes used by the bit vector. */
+    int getSizeInBytes();
+  }
+
+  /** Management view of a {@link ConcurrentAutoTable} or Counter. */
+  public interface CounterMXBean {
+    /** Current sum. */
+    long getValue();
+    /** Number of stripes the count is spread over. */
+    int getStripes();
+  }
+
+  /** Register a map under the given name. */
+  public static ObjectName register(String name, NonBlockingHashMap<?,?> map) {
+    return register(name, "NonBlockingHashMap", map, map.isStatsEnabled(), map::setStatsEnabled, map::stats);
+  }
+
+  /** Register a map under the given name. */
+  public static ObjectName register(String name, NonBlockingHashMapLong<?> map) {
+    return register(name, "NonBlockingHashMapLong", map, map.isStatsEnabled(), map::setStatsEnabled, map::stats);
+  }
+
+  /** Register a map under the given name. */
+  public static ObjectName register(String name, NonBlockingIdentityHashMap<?,?> map) {
+    return register(name, "NonBlockingIdentityHashMap", map, map.isStatsEnabled(), map::setStatsEnabled, map::stats);
+  }
+
+  /** Register a set under the given name. */
+  public static ObjectName register(String name, final NonBlockingSetInt set) {
+    return register(name, "NonBlockingSetInt", new SetIntMXBean() {
+      public int getSize() { return set.size(); }
+      public int getSizeInBytes() { return set.sizeInBytes(); }
+    }, SetIntMXBean.class);
+  }
+
+  /** Register a counter under the given name. */
+  public static ObjectName register(String name, final ConcurrentAutoTable counter) {
+    return register(name, counter.getClass().getSimpleName(), new CounterMXBean() {
+      public long getValue() { return counter.get(); }
+      public int getStripes() { return counter.internal_size(); }
+    }, CounterMXBean.class);
+  }
+
+  /**
+   * Unregister a bean returned by one of the register methods.  A map whose
+   * event counts were off before it was registered gets them turned off
+   * again when its last registration goes.
+   */
+  public static void unregister(ObjectName name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    } catch (JMException e) {
+      throw new IllegalStateException(e);
+    }
+    synchronized (HighScaleMXBeans.class) {
+      final Object map = _statsMaps.remove(name);
+      if (map == null) return;
+      final int refs = _statsRefs.get(map) - 1;
+      if (refs > 0) { _statsRefs.put(map, refs); return; }
+      _statsRefs.remove(map);
+      _statsSetters.remove(map).accept(false);
+    }
+  }
+
+  // Register a map's view, turning its event counts on for as long as it
+  // stays registered
+  private static synchronized ObjectName register(String name, String type, Object map, boolean wasOn,
+                                                  Consumer<Boolean> enable, Supplier<MapStats> stats) {
+    final boolean ours = !wasOn || _statsRefs.containsKey(map);
+    enable.accept(true);
+    final ObjectName on;
+    try {
+      on = register(name, type, new MapView(stats), MapMXBean.class);
+    } catch (RuntimeException e) {
+      if (ours && !_statsRefs.containsKey(map)) enable.accept(false);
+      throw e;
+    }
+    if (ours) {
+      final Integer refs = _statsRefs.get(map);
+      _statsRefs.put(map, refs == null ? 1 : refs + 1);
+      _statsSetters.put(map, enable);
+      _statsMaps.put(on, map);
+    }
+    return on;
+  }
+
+  private static <T> ObjectName register(String name, String type, T bean, Class<T> iface) {
+    try {
+      final ObjectName on = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(new StandardMBean(bean, iface, true), on);
+      return on;
+    } catch (JMException e) {
+      throw new IllegalArgumentException("cannot register " + name, e);
+    }
+  }
+
+  // Each attribute read takes a fresh snapshot; they are all cheap
+  private static final class MapView implements MapMXBean {
+    private final Supplier<MapStats> _stats;
+    MapView(Supplier<MapStats> stats) { _stats = stats; }
+    @Override public long getSize() { return _stats.get().size(); }
+    @Override public long getCapacity() { return _stats.get().tableLength(); }
+    @Override public double getSlotUsage() { return _stats.get().slotUsage(); }
+    @Override public long getTombstones() { return _stats.get().tombstones(); }
+    @Override public long getResizes() { return _stats.get().resizes(); }
+    @Override public long getCopyNanos() { return _stats.get().copyNanos(); }
+    @Override public long getGetReprobes() { return _stats.get().getReprobes(); }
+    @Override public long getPutReprobes() { return _stats.get().putReprobes(); }
+    @Override public long getCasRetries() { return _stats.get().casRetries(); }
+    @Override public long getPauses() { return _stats.get().pauses(); }
+    @Override public long getPauseNanos() { return _stats.get().pauseNanos(); }
+    @Override public long getPauseP999() { return _stats.get().pausePercentile(0.999); }
+    @Override public long[] getPauseHistogram() { return _stats.get().pauseHistogram(); }
+  }
+}
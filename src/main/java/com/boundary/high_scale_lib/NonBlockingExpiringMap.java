@@ -0,0 +1,366 @@
+package com.boundary.high_scale_lib;
+
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * A lock-free hash table whose entries expire a fixed time after they were
+ * last written, or optionally last read, built on {@link NonBlockingHashMap}.
+ * A time-to-live may also be given per entry with
+ * {@link #put(Object, Object, long, TimeUnit)}.
+ * <p>
+ * An expired entry is never returned.  If it is looked up, it is removed on
+ * the spot.  Otherwise it is removed by a hierarchical timing wheel: 6 levels
+ * of 64 buckets, with roughly millisecond ticks at the bottom, giving a range
+ * of about two years.  Each write files its entry in a bucket.  Any thread
+ * that notices the clock has moved past the wheel's current tick claims the
+ * ticks up to now with a CAS and processes the buckets they pass over, at
+ * most 64 per level however long the map sat idle.  Entries that are due are
+ * removed, later ones cascade to a finer level, and stale ones are dropped.
+ * A stale entry is one that has been overwritten or removed since.  The cost
+ * of expiry is thus proportional to the number of entries expiring, not to
+ * the size of the map.  There is no sweeper thread.
+ * <p>
+ * The wheel is advanced by reads and writes.  A map that sees no traffic at
+ * all keeps its expired entries until the next call, or until
+ * {@link #expire()} is called.  {@link #size} counts entries that have
+ * expired but have not been reached by the wheel yet.  Neither keys nor
+ * values may be null.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class NonBlockingExpiringMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,V> {
+  private static final int TICK_SHIFT = 20; // 2^20ns, about a millisecond
+  private static final long TICK = 1L << TICK_SHIFT;
+  private static final int WHEEL_LOG = 6;   // 64 buckets per level
+  private static final int WHEEL_MASK = (1 << WHEEL_LOG) - 1;
+  private static final int LEVELS = 6;
+  private static final long SPAN = 1L << (WHEEL_LOG * LEVELS); // Ticks covered by the wheel
+
+  private final NonBlockingHashMap<K,Item<K,V>> _map = new NonBlockingHashMap<K,Item<K,V>>();
+  private final long _ttl;
+  private final boolean _access;
+  private final LongSupplier _ticker;
+  private final long _origin;
+
+  // Bucket heads, LEVELS rows of 64; each is a lock-free stack of Nodes
+  private final AtomicReferenceArray<Node> _wheel = new AtomicReferenceArray<Node>(LEVELS << WHEEL_LOG);
+  // Last tick claimed for processing
+  private volatile long _tick;
+  private static final AtomicLongFieldUpdater<NonBlockingExpiringMap> _tickUpdater =
+    AtomicLongFieldUpdater.newUpdater(NonBlockingExpiringMap.class, "_tick");
+
+  // A mapped value with its deadline.  Items are never reused, so the
+  // backing map's conditional updates tell a live item from a replaced one.
+  private static final class Item<K,V> {
+    final K _key;
+    final V _val;
+    final long _ttl;
+    volatile long _deadline;
+    Item(K key, V val, long ttl, long now) { _key = key; _val = val; _ttl = ttl; _deadline = now + ttl; }
+    boolean expired(long now) { return now - _deadline >= 0; }
+  }
+
+  private static final class Node {
+    final Item<?,?> _item;
+    Node _next;
+    Node(Item<?,?> item) { _item = item; }
+  }
+
+  /**
+   * Create a new map whose entries expire <code>ttl</code> after they were
+   * last written.
+   */
+  public NonBlockingExpiringMap(long ttl, TimeUnit unit) { this(ttl, unit, false); }
+
+  /**
+   * Create a new map whose entries expire <code>ttl</code> after they were
+   * last written, or also after they were last read if
+   * <code>expireAfterAccess</code> is set.
+   */
+  public NonBlockingExpiringMap(long ttl, TimeUnit unit, boolean expireAfterAccess) {
+    this(unit.toNanos(ttl), expireAfterAccess, System::nanoTime);
+  }
+
+  NonBlockingExpiringMap(long ttlNanos, boolean expireAfterAccess, LongSupplier ticker) {
+    if( ttlNanos <= 0 ) throw new IllegalArgumentException("ttl must be positive");
+    _ttl = ttlNanos;
+    _access = expireAfterAccess;
+    _ticker = ticker;
+    _origin = ticker.getAsLong();
+  }
+
+  // --- Timing wheel --------------------------------------------------------
+
+  // The wheel tick containing time 'now'
+  private long tick(long now) { return (now - _origin) >> TICK_SHIFT; }
+
+  // File an item in the bucket for its deadline, as seen from tick 'base'.
+  // It goes in the finest level whose range still covers the deadline.
+  // Deadlines are rounded up to a tick, so a bucket is never processed
+  // before its items are due.
+  private void schedule(Item<?,?> item, long base) {
+    long d = (item._deadline - _origin + TICK - 1) >> TICK_SHIFT;
+    if( d <= base ) d = base + 1;
+    if( d - base >= SPAN ) d = base + SPAN - 1;
+    int level = 0;
+    while( (d - base) >>> (WHEEL_LOG * (level + 1)) != 0 ) level++;
+    final int idx = (level << WHEEL_LOG) | (int)((d >> (WHEEL_LOG * level)) & WHEEL_MASK);
+    final Node n = new Node(item);
+    Node head;
+    do {
+      head = _wheel.get(idx);
+      n._next = head;
+    } while( !_wheel.compareAndSet(idx, head, n) );
+  }
+
+  // Process every tick up to 'now'.  One CAS claims all the ticks since the
+  // last advance, so racing threads never repeat work.  An item filed into a
+  // bucket just as another thread drains it waits for the next turn of that
+  // level; it can linger in the map a little longer, but lookups still never
+  // return it.
+  private void advance(long now) {
+    final long t = tick(now);
+    long c;
+    do {
+      if( (c = _tick) >= t ) return;
+    } while( !_tickUpdater.compareAndSet(this, c, t) );
+    process(c, t, now);
+  }
+
+  // Moving from tick c to tick t, level L steps one bucket at each multiple
+  // of 64^L.  Drain the buckets stepped over: after a long idle span that is
+  // a whole level, each bucket once, so the work does not grow with the
+  // span.  Coarse levels go first so their items can cascade into finer
+  // buckets.
+  private void process(long c, long t, long now) {
+    for( int level = LEVELS - 1; level >= 0; level-- ) {
+      final int shift = WHEEL_LOG * level;
+      final long last = t >> shift;
+      final long first = Math.max((c >> shift) + 1, last - WHEEL_MASK);
+      for( long k = first; k <= last; k++ )
+        drain((level << WHEEL_LOG) | (int)(k & WHEEL_MASK), t, now);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void drain(int idx, long t, long now) {
+    for( Node n = _wheel.getAndSet(idx, null); n != null; n = n._next ) {
+      final Item<K,V> item = (Item<K,V>)n._item;
+      if( _map.get(item._key) != item ) continue; // Replaced or removed since
+      if( item.expired(now) ) _map.remove(item._key, item);
+      else schedule(item, t);   // Not yet due, or touched since it was filed
+    }
+  }
+
+  /**
+   * Removes all entries that have expired, by advancing the timing wheel to
+   * the current time.  Reads and writes do this as they go; this call is for
+   * maps that may sit idle.
+   */
+  public void expire() { advance(_ticker.getAsLong()); }
+
+  // --- Map API -------------------------------------------------------------
+
+  private Item<K,V> item(K key, V val, long ttl, long now) {
+    if( key == null || val == null ) throw new NullPointerException();
+    return new Item<K,V>(key, val, ttl, now);
+  }
+
+  // The value of an item still live at 'now', or null
+  private V live(Item<K,V> item, long now) {
+    return item == null || item.expired(now) ? null : item._val;
+  }
+
+  /**
+   * Returns the number of entries, possibly including some that have expired
+   * but have not been removed yet.
+   */
+  @Override
+  public int size() { return _map.size(); }
+
+  @Override
+  public boolean isEmpty() { return size() == 0; }
+
+  @Override
+  public boolean containsKey(Object key) { return get(key) != null; }
+
+  @Override
+  public V get(Object key) {
+    final long now = _ticker.getAsLong();
+    advance(now);
+    final Item<K,V> item = _map.get(key);
+    if( item == null ) return null;
+    if( item.expired(now) ) {
+      _map.remove(key, item);
+      return null;
+    }
+    // Push out the deadline at most once a tick, so hot keys do not take a
+    // store on every read.  The item stays in its bucket and is refiled if
+    // the wheel reaches it early.
+    if( _access && now + item._ttl - item._deadline >= TICK ) item._deadline = now + item._ttl;
+    return item._val;
+  }
+
+  @Override
+  public V put(K key, V val) { return put(key, val, _ttl, TimeUnit.NANOSECONDS); }
+
+  /**
+   * Maps the key to the value, expiring the mapping after the given
+   * time-to-live rather than the map's default.
+   * @return the previous live value for the key, or null if there was none
+   */
+  public V put(K key, V val, long ttl, TimeUnit unit) {
+    final long nanos = unit.toNanos(ttl);
+    if( nanos <= 0 ) throw new IllegalArgumentException("ttl must be positive");
+    final long now = _ticker.getAsLong();
+    final Item<K,V> item = item(key, val, nanos, now);
+    final Item<K,V> old = _map.put(key, item);
+    schedule(item, _tick);
+    advance(now);
+    return live(old, now);
+  }
+
+  @Override
+  public V putIfAbsent(K key, V val) {
+    final long now = _ticker.getAsLong();
+    final Item<K,V> item = item(key, val, _ttl, now);
+    advance(now);
+    while( true ) {
+      final Item<K,V> old = _map.putIfAbsent(key, item);
+      if( old != null && !old.expired(now) ) return old._val;
+      if( old == null || _map.replace(key, old, item) ) {
+        schedule(item, _tick);
+        return null;
+      }
+    }
+  }
+
+  @Override
+  public V remove(Object key) {
+    return live(_map.remove(key), _ticker.getAsLong());
+  }
+
+  @Override
+  public boolean remove(Object key, Object val) {
+    if( val == null ) throw new NullPointerException();
+    final Item<K,V> item = _map.get(key);
+    return live(item, _ticker.getAsLong()) != null && item._val.equals(val) && _map.remove(key, item);
+  }
+
+  @Override
+  public V replace(K key, V val) {
+    final long now = _ticker.getAsLong();
+    final Item<K,V> item = item(key, val, _ttl, now);
+    advance(now);
+    while( true ) {
+      final Item<K,V> old = _map.get(key);
+      if( live(old, now) == null ) return null;
+      if( _map.replace(key, old, item) ) {
+        schedule(item, _tick);
+        return old._val;
+      }
+    }
+  }
+
+  @Override
+  public boolean replace(K key, V oldVal, V newVal) {
+    if( oldVal == null ) throw new NullPointerException();
+    final long now = _ticker.getAsLong();
+    final Item<K,V> item = item(key, newVal, _ttl, now);
+    advance(now);
+    final Item<K,V> old = _map.get(key);
+    if( live(old, now) == null || !old._val.equals(oldVal) || !_map.replace(key, old, item) )
+      return false;
+    schedule(item, _tick);
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    _map.clear();
+    for( int i = 0; i < _wheel.length(); i++ ) _wheel.set(i, null);
+  }
+
+  private Set<Map.Entry<K,V>> _entrySet;
+
+  /**
+   * Returns a weakly consistent view of the live mappings.  Iterating does
+   * not count as an access; {@link Map.Entry#setValue} writes through to the
+   * map.
+   */
+  @Override
+  public Set<Map.Entry<K,V>> entrySet() {
+    Set<Map.Entry<K,V>> es = _entrySet;
+    return es != null ? es : (_entrySet = new AbstractSet<Map.Entry<K,V>>() {
+      @Override public int size() { return NonBlockingExpiringMap.this.size(); }
+      @Override public void clear() { NonBlockingExpiringMap.this.clear(); }
+      @Override public Iterator<Map.Entry<K,V>> iterator() { return new ExpiringIterator(); }
+      @Override public boolean contains(Object o) {
+        if( !(o instanceof Map.Entry) ) return false;
+        final Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+        final V v = live(_map.get(e.getKey()), _ticker.getAsLong());
+        return v != null && v.equals(e.getValue());
+      }
+      @Override public boolean remove(Object o) {
+        if( !(o instanceof Map.Entry) ) return false;
+        final Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+        return NonBlockingExpiringMap.this.remove(e.getKey(), e.getValue());
+      }
+    });
+  }
+
+  // Walks the backing map, skipping expired items; looks one ahead so that
+  // hasNext() is exact.
+  private final class ExpiringIterator implements Iterator<Map.Entry<K,V>> {
+    private final Iterator<Item<K,V>> _it = _map.values().iterator();
+    private final long _now = _ticker.getAsLong();
+    private Item<K,V> _next, _prev;
+    ExpiringIterator() { advance(); }
+
+    private void advance() {
+      _next = null;
+      while( _it.hasNext() ) {
+        final Item<K,V> item = _it.next();
+        if( !item.expired(_now) ) { _next = item; return; }
+      }
+    }
+
+    public boolean hasNext() { return _next != null; }
+
+    public Map.Entry<K,V> next() {
+      if( _next == null ) throw new NoSuchElementException();
+      _prev = _next;
+      advance();
+      return new Entry(_prev._key, _prev._val);
+    }
+
+    public void remove() {
+      if( _prev == null ) throw new IllegalStateException();
+      _map.remove(_prev._key, _prev);
+      _prev = null;
+    }
+  }
+
+  private final class Entry extends AbstractMap.SimpleEntry<K,V> {
+    Entry(K key, V val) { super(key, val); }
+    @Override
+    public V setValue(V val) {
+      if( val == null ) throw new NullPointerException();
+      put(getKey(), val);
+      return super.setValue(val);
+    }
+  }
+}
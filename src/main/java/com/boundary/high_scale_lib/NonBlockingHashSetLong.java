@@ -7,6 +7,7 @@ import java.io.Serializable;
 import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
@@ -142,7 +143,7 @@ public class NonBlockingHashSetLong extends AbstractSet<Long> implements Seriali
     }
     final StringBuilder sb = new StringBuilder().append('[');
     for (;;) {
-      sb.append(it.next());
+      sb.append(it.nextLong());
       if (!it.hasNext()) {
         return sb.append(']').toString();
       }
@@ -153,8 +154,54 @@ public class NonBlockingHashSetLong extends AbstractSet<Long> implements Seriali
   @Override
   public Iterator<Long>iterator() { return _map.keySet().iterator(); }
 
+  /**
+   * Iterate over the members as primitive longs.  The walk is done by a
+   * {@link NonBlockingHashMapLong.LongObjCursor}, so no key is auto-boxed
+   * unless {@link Iterator#next} is called.
+   */
   public LongIterator longIterator() {
-    return (LongIterator) _map.keySet().iterator();
+    final NonBlockingHashMapLong<Object>.LongObjCursor c = _map.cursor();
+    return new LongIterator() {
+      private boolean _peeked;    // Cursor already advanced by hasNext
+      private boolean _more;      // ...and found a member there
+      private boolean _canRemove; // A member was returned and not yet removed
+      private long _last;         // The member last returned
+
+      @Override
+      public boolean hasNext() {
+        if (!_peeked) {
+          _more = c.advance();
+          _peeked = true;
+        }
+        return _more;
+      }
+
+      @Override
+      public long nextLong() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        _peeked = false;
+        _canRemove = true;
+        return _last = c.key();
+      }
+
+      @Override
+      public Long next() { return nextLong(); }
+
+      @Override
+      public void remove() {
+        if (!_canRemove) {
+          throw new IllegalStateException();
+        }
+        _canRemove = false;
+        if (_peeked) {
+          _map.remove(_last); // Cursor has moved on past it
+        } else {
+          c.remove();
+        }
+      }
+    };
   }
 
   // ---
@@ -0,0 +1,297 @@
+package com.boundary.high_scale_lib;
+
+import org.cliffc.high_scale_lib.HashingStrategy;
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A lock-free hash table with weakly referenced keys, built on
+ * {@link NonBlockingHashMap}.  An entry is dropped once its key is no longer
+ * strongly reachable, much like {@link java.util.WeakHashMap}, but without
+ * any locking on the read or write paths.
+ * <p>
+ * Keys are stored as weak references carrying their hash code, and the
+ * backing map hashes and compares them with a {@link HashingStrategy} so that
+ * lookups take the caller's key directly and allocate nothing.  Cleared
+ * references are drained from a {@link ReferenceQueue} by whichever threads
+ * happen to be writing; each one becomes a tombstone in the backing table and
+ * its slot is reclaimed by the next resize copy.
+ * <p>
+ * Optionally values may be held through soft references as well, in which
+ * case a mapping also disappears when the collector reclaims its value under
+ * memory pressure.
+ * <p>
+ * Like {@link java.util.WeakHashMap}, {@link #size} may briefly count entries
+ * whose keys have been collected but not yet drained.  Neither keys nor
+ * values may be null.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class NonBlockingWeakHashMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,V> {
+  private final NonBlockingHashMap<Object,Object> _map;
+  private final ReferenceQueue<Object> _queue = new ReferenceQueue<Object>();
+  private final boolean _identity;
+  private final boolean _soft;
+
+  /** Create a new map with weak keys and strong values. */
+  public NonBlockingWeakHashMap() { this(false, false); }
+
+  /**
+   * Create a new map with weak keys.
+   * @param softValues  hold values through soft references
+   */
+  public NonBlockingWeakHashMap(boolean softValues) { this(false, softValues); }
+
+  NonBlockingWeakHashMap(boolean identity, boolean softValues) {
+    _identity = identity;
+    _soft = softValues;
+    _map = new NonBlockingHashMap<Object,Object>(new Strategy(identity));
+  }
+
+  // --- Reference wrappers --------------------------------------------------
+
+  // A weak key remembers its hash, so the slot can still be found and
+  // removed once the referent is gone.
+  private static final class WeakKey extends WeakReference<Object> {
+    final int _hash;
+    WeakKey(Object key, int hash, ReferenceQueue<Object> q) { super(key, q); _hash = hash; }
+  }
+
+  // A soft value remembers the key it was put under, for the same reason.
+  private static final class SoftValue extends SoftReference<Object> {
+    final WeakKey _key;
+    SoftValue(Object val, WeakKey key, ReferenceQueue<Object> q) { super(val, q); _key = key; }
+  }
+
+  // Hashes and compares stored WeakKeys by their referents.  The backing map
+  // always passes a stored key as 'other'; 'key' is either a caller's key or
+  // another WeakKey.  A cleared key only ever matches itself, which the map
+  // checks by reference before calling here.
+  private static final class Strategy implements HashingStrategy<Object> {
+    private final boolean _identity;
+    Strategy(boolean identity) { _identity = identity; }
+    public int hashCode(Object key) {
+      if( key instanceof WeakKey ) return ((WeakKey)key)._hash;
+      return _identity ? System.identityHashCode(key) : key.hashCode();
+    }
+    public boolean equals(Object key, Object other) {
+      final Object a = key instanceof WeakKey ? ((WeakKey)key).get() : key;
+      final Object b = ((WeakKey)other).get();
+      if( a == null || b == null ) return false;
+      return _identity ? a == b : a.equals(b);
+    }
+  }
+
+  private WeakKey weakKey(Object key) {
+    if( key == null ) throw new NullPointerException();
+    return new WeakKey(key, _identity ? System.identityHashCode(key) : key.hashCode(), _queue);
+  }
+
+  private Object wrap(Object val, WeakKey wk) {
+    if( val == null ) throw new NullPointerException();
+    return _soft ? new SoftValue(val, wk, _queue) : val;
+  }
+
+  @SuppressWarnings("unchecked")
+  private V unwrap(Object val) {
+    return (V)(val instanceof SoftValue ? ((SoftValue)val).get() : val);
+  }
+
+  // Drain cleared references, turning their mappings into tombstones.  The
+  // removes are by reference (or conditional on the soft value), so a stale
+  // reference never disturbs a newer mapping for an equal key.
+  private void expunge() {
+    Reference<?> r;
+    while( (r = _queue.poll()) != null ) {
+      if( r instanceof WeakKey ) _map.remove(r);
+      else _map.remove(((SoftValue)r)._key, r);
+    }
+  }
+
+  // --- Map API -------------------------------------------------------------
+
+  /**
+   * Returns the number of live mappings, possibly including some whose keys
+   * were collected but have not been drained yet.
+   */
+  @Override
+  public int size() {
+    expunge();
+    return _map.size();
+  }
+
+  @Override
+  public boolean isEmpty() { return size() == 0; }
+
+  @Override
+  public boolean containsKey(Object key) { return get(key) != null; }
+
+  @Override
+  public V get(Object key) {
+    if( key == null ) throw new NullPointerException();
+    return unwrap(_map.get(key));
+  }
+
+  @Override
+  public V put(K key, V val) {
+    expunge();
+    final WeakKey wk = weakKey(key);
+    return unwrap(_map.put(wk, wrap(val, wk)));
+  }
+
+  @Override
+  public V putIfAbsent(K key, V val) {
+    expunge();
+    final WeakKey wk = weakKey(key);
+    final Object w = wrap(val, wk);
+    while( true ) {
+      final Object old = _map.putIfAbsent(wk, w);
+      if( old == null ) return null;
+      final V v = unwrap(old);
+      if( v != null ) return v;
+      // Soft value already reclaimed: the mapping is absent in all but name
+      if( _map.replace(wk, old, w) ) return null;
+    }
+  }
+
+  @Override
+  public V remove(Object key) {
+    if( key == null ) throw new NullPointerException();
+    expunge();
+    return unwrap(_map.remove(key));
+  }
+
+  @Override
+  public boolean remove(Object key, Object val) {
+    if( key == null || val == null ) throw new NullPointerException();
+    expunge();
+    if( !_soft ) return _map.remove(key, val);
+    final Object cur = _map.get(key);
+    final V v = unwrap(cur);
+    return v != null && v.equals(val) && _map.remove(key, cur);
+  }
+
+  @Override
+  public V replace(K key, V val) {
+    expunge();
+    final WeakKey wk = weakKey(key);
+    if( !_soft ) return unwrap(_map.replace(wk, wrap(val, wk)));
+    while( true ) {
+      final Object cur = _map.get(key);
+      final V v = unwrap(cur);
+      if( v == null ) return null;
+      if( _map.replace(wk, cur, wrap(val, wk)) ) return v;
+    }
+  }
+
+  @Override
+  public boolean replace(K key, V oldVal, V newVal) {
+    if( oldVal == null ) throw new NullPointerException();
+    expunge();
+    final WeakKey wk = weakKey(key);
+    if( !_soft ) return _map.replace(wk, oldVal, wrap(newVal, wk));
+    final Object cur = _map.get(key);
+    final V v = unwrap(cur);
+    return v != null && v.equals(oldVal) && _map.replace(wk, cur, wrap(newVal, wk));
+  }
+
+  @Override
+  public void clear() {
+    _map.clear();
+    while( _queue.poll() != null ) ;
+  }
+
+  private Set<Map.Entry<K,V>> _entrySet;
+
+  /**
+   * Returns a weakly consistent view of the live mappings.  Each entry holds
+   * its key and value strongly for as long as the entry itself is reachable;
+   * {@link Map.Entry#setValue} writes through to the map.
+   */
+  @Override
+  public Set<Map.Entry<K,V>> entrySet() {
+    Set<Map.Entry<K,V>> es = _entrySet;
+    return es != null ? es : (_entrySet = new AbstractSet<Map.Entry<K,V>>() {
+      @Override public int size() { return NonBlockingWeakHashMap.this.size(); }
+      @Override public void clear() { NonBlockingWeakHashMap.this.clear(); }
+      @Override public Iterator<Map.Entry<K,V>> iterator() { return new WeakIterator(); }
+      @Override public boolean contains(Object o) {
+        if( !(o instanceof Map.Entry) ) return false;
+        final Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+        final V v = get(e.getKey());
+        return v != null && v.equals(e.getValue());
+      }
+      @Override public boolean remove(Object o) {
+        if( !(o instanceof Map.Entry) ) return false;
+        final Map.Entry<?,?> e = (Map.Entry<?,?>)o;
+        return NonBlockingWeakHashMap.this.remove(e.getKey(), e.getValue());
+      }
+    });
+  }
+
+  // Walks the backing map's entries, skipping any whose key or value has
+  // been cleared.  It looks one entry ahead so that hasNext() is exact, and
+  // the strong refs it takes keep the next entry alive until it is returned.
+  private final class WeakIterator implements Iterator<Map.Entry<K,V>> {
+    private final Iterator<Map.Entry<Object,Object>> _it = _map.entrySet().iterator();
+    private Map.Entry<K,V> _next;
+    private Object _nextKey, _nextVal;  // Backing map's stored key & value for _next
+    private Object _prevKey, _prevVal;  // ... and for the entry last returned
+    WeakIterator() { advance(); }
+
+    @SuppressWarnings("unchecked")
+    private void advance() {
+      _next = null;
+      while( _it.hasNext() ) {
+        final Map.Entry<Object,Object> e = _it.next();
+        final Object k = ((WeakKey)e.getKey()).get();
+        final V v = unwrap(e.getValue());
+        if( k != null && v != null ) {
+          _nextKey = e.getKey();
+          _nextVal = e.getValue();
+          _next = new Entry((K)k, v);
+          return;
+        }
+      }
+    }
+
+    public boolean hasNext() { return _next != null; }
+
+    public Map.Entry<K,V> next() {
+      final Map.Entry<K,V> e = _next;
+      if( e == null ) throw new NoSuchElementException();
+      _prevKey = _nextKey;
+      _prevVal = _nextVal;
+      advance();
+      return e;
+    }
+
+    public void remove() {
+      if( _prevKey == null ) throw new IllegalStateException();
+      _map.remove(_prevKey, _prevVal);
+      _prevKey = _prevVal = null;
+    }
+  }
+
+  private final class Entry extends AbstractMap.SimpleEntry<K,V> {
+    Entry(K key, V val) { super(key, val); }
+    @Override
+    public V setValue(V val) {
+      if( val == null ) throw new NullPointerException();
+      put(getKey(), val);
+      return super.setValue(val);
+    }
+  }
+}
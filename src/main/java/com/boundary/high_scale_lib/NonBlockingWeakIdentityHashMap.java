@@ -0,0 +1,22 @@
+package com.boundary.high_scale_lib;
+
+/**
+ * A {@link NonBlockingWeakHashMap} that compares keys by reference
+ * (<code>==</code>) and hashes them with {@link System#identityHashCode},
+ * in the manner of {@link org.cliffc.high_scale_lib.NonBlockingIdentityHashMap}.
+ * Useful for attaching data to objects that do not override, or should not
+ * be compared by, <code>equals</code>.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class NonBlockingWeakIdentityHashMap<K,V> extends NonBlockingWeakHashMap<K,V> {
+  /** Create a new map with weak keys and strong values. */
+  public NonBlockingWeakIdentityHashMap() { super(true, false); }
+
+  /**
+   * Create a new map with weak keys.
+   * @param softValues  hold values through soft references
+   */
+  public NonBlockingWeakIdentityHashMap(boolean softValues) { super(true, softValues); }
+}
@@ -0,0 +1,47 @@
+package org.cliffc.high_scale_lib;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes keys or values for the bulk export and import of maps;
+ * see {@link NonBlockingHashMap#exportTo} and {@link
+ * NonBlockingHashMap#importFrom}.  Codecs for the common types are provided.
+ *
+ * @since 1.0.7
+ */
+public interface Codec<T> {
+    /** Write one non-null element */
+    void write( DataOutput out, T t ) throws IOException;
+    /** Read back one element written by {@link #write} */
+    T read( DataInput in ) throws IOException;
+
+    /** Strings as a length and UTF-8 bytes; unlike writeUTF, any length */
+    Codec<String> STRING = new Codec<String>() {
+        public void write( DataOutput out, String s ) throws IOException { BYTES.write(out,s.getBytes(StandardCharsets.UTF_8)); }
+        public String read( DataInput in ) throws IOException { return new String(BYTES.read(in),StandardCharsets.UTF_8); }
+    };
+
+    /** Longs as 8 raw bytes */
+    Codec<Long> LONG = new Codec<Long>() {
+        public void write( DataOutput out, Long l ) throws IOException { out.writeLong(l); }
+        public Long read( DataInput in ) throws IOException { return in.readLong(); }
+    };
+
+    /** Integers as 4 raw bytes */
+    Codec<Integer> INTEGER = new Codec<Integer>() {
+        public void write( DataOutput out, Integer i ) throws IOException { out.writeInt(i); }
+        public Integer read( DataInput in ) throws IOException { return in.readInt(); }
+    };
+
+    /** Byte arrays as a length and the bytes */
+    Codec<byte[]> BYTES = new Codec<byte[]>() {
+        public void write( DataOutput out, byte[] b ) throws IOException { out.writeInt(b.length); out.write(b); }
+        public byte[] read( DataInput in ) throws IOException {
+            final byte[] b = new byte[in.readInt()];
+            in.readFully(b);
+            return b;
+        }
+    };
+}
@@ -176,11 +176,13 @@ public class ConcurrentAutoTable implements Serializable {
       r += newbytes;
       if( master._cat != this ) return old; // Already doubled, don't bother
       if( (r>>17) != 0 ) {      // Already too much allocation attempts?
-        // TODO - use a wait with timeout, so we'll wakeup as soon as the new
-        // table is ready, or after the timeout in any case.  Annoyingly, this
-        // breaks the non-blocking property - so for now we just briefly sleep.
-        //synchronized( this ) { wait(8*megs); }         // Timeout - we always wakeup
-        try { Thread.sleep(r>>17); } catch( InterruptedException e ) { }
+        // Give the other allocators up to r>>17 msec to install the bigger
+        // table.  Spin politely rather than sleep, so we return the moment
+        // they do; our add is already done, so there is nothing to retry.
+        // Past the deadline, double the table ourselves as before.
+        final long deadline = System.nanoTime() + (r>>17)*1000000L;
+        while( master._cat == this && System.nanoTime() - deadline < 0 )
+          Thread.yield();
         if( master._cat != this ) return old;
       }
 
@@ -188,7 +190,8 @@ public class ConcurrentAutoTable implements Serializable {
       // Take 1 stab at updating the CAT with the new larger size.  If this
       // fails, we assume some other thread already expanded the CAT - so we
       // do not need to retry until it succeeds.
-      master.CAS_cat(this,newcat);
+      if( master.CAS_cat(this,newcat) && HighScaleEvents.ON )
+        HighScaleEvents.cat_resize(master,t.length,newcat._t.length);
       return old;
     }
     
@@ -0,0 +1,32 @@
+package org.cliffc.high_scale_lib;
+
+/**
+ * A user-supplied hashing and equality policy for the keys of a {@link NonBlockingHashMap}, replacing the keys' own
+ * {@link Object#hashCode()} and {@link Object#equals(Object)}.  Useful for keys such as {@code byte[]}, strings
+ * compared without regard to case, or keys with an expensive {@code hashCode}, without wrapping every key in an
+ * adapter object.
+ *
+ * <p>Implementations must be thread-safe and consistent: equal keys must have equal hash codes, and neither method may
+ * change its answer for a key while that key is in a map.  A strategy is serialized along with its map, so it should
+ * be {@link java.io.Serializable} if the map is to be serialized.
+ *
+ * @param <T> the type of keys handled by this strategy
+ */
+public interface HashingStrategy<T> {
+    /**
+     * Computes the hash code for a key.  The map spreads the bits further, so the result need not be well mixed.
+     *
+     * @param key a non-null key
+     * @return the hash code of the key
+     */
+    int hashCode(T key);
+
+    /**
+     * Tests two keys for equality.
+     *
+     * @param key the key being looked up, never null
+     * @param other a key already in the map, never null
+     * @return true if the keys are equal under this strategy
+     */
+    boolean equals(T key, T other);
+}
@@ -0,0 +1,168 @@
+package org.cliffc.high_scale_lib;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events for the rare, expensive internal operations:
+ * hash table resizes and counter stripe doubling.  Latency spikes in a
+ * recording can then be lined up against them.
+ *
+ * <p>The events need the <tt>jdk.jfr</tt> API, found in JDK 11 and later and
+ * in OpenJDK 8u262 and later.  The library itself still runs on any Java 8:
+ * the API is only reached through reflection, and every entry point is
+ * guarded by {@link #ON}, which is false when the API is missing.  The
+ * event types are built once with <tt>jdk.jfr.EventFactory</tt>.  When JFR
+ * is present but not recording, an event costs one allocation and a flag
+ * check.  That happens once per resize, which already allocates a whole
+ * table.
+ *
+ * <p>The event types are <tt>org.cliffc.high_scale_lib.ResizeStart</tt>,
+ * <tt>org.cliffc.high_scale_lib.TablePromotion</tt> and
+ * <tt>org.cliffc.high_scale_lib.CounterResize</tt>.
+ *
+ * @since 1.0.7
+ */
+final class HighScaleEvents {
+  private HighScaleEvents() { }
+
+  /** True if this JVM has the JFR event API */
+  static final boolean ON;
+
+  // EventFactory instances, one per event type
+  private static final Object RESIZE_START, TABLE_PROMOTION, COUNTER_RESIZE;
+  // EventFactory.newEvent, and the jdk.jfr.Event methods used below
+  private static final MethodHandle NEW_EVENT, SET, BEGIN, END, COMMIT, IS_ENABLED, SHOULD_COMMIT;
+
+  static {
+    Object rs = null, tp = null, cr = null;
+    MethodHandle ne = null, set = null, begin = null, end = null, commit = null, ie = null, sc = null;
+    boolean on;
+    try {
+      final String P = "org.cliffc.high_scale_lib.";
+      rs = factory(P+"ResizeStart", "Table Resize Start",
+                   "A hash table started copying into a new table",
+                   field(String.class, "mapClass", "Map Class", null),
+                   field(int.class, "mapId", "Map Id", "Identity hash code of the map"),
+                   field(long.class, "oldLength", "Old Length", null),
+                   field(long.class, "newLength", "New Length", null),
+                   field(long.class, "size", "Size", "Estimated live entries when the resize began"));
+      tp = factory(P+"TablePromotion", "Table Promotion",
+                   "A hash table copy finished and the new table was promoted; the duration spans the whole copy",
+                   field(String.class, "mapClass", "Map Class", null),
+                   field(int.class, "mapId", "Map Id", "Identity hash code of the map"),
+                   field(long.class, "oldLength", "Old Length", null),
+                   field(long.class, "newLength", "New Length", null));
+      cr = factory(P+"CounterResize", "Counter Stripe Doubling",
+                   "A striped counter doubled its stripes to relieve CAS contention",
+                   field(int.class, "counterId", "Counter Id", "Identity hash code of the counter"),
+                   field(long.class, "oldStripes", "Old Stripes", null),
+                   field(long.class, "newStripes", "New Stripes", null));
+      final MethodHandles.Lookup l = MethodHandles.publicLookup();
+      final Class<?> event = Class.forName("jdk.jfr.Event");
+      final MethodType vt = MethodType.methodType(void.class), bt = MethodType.methodType(boolean.class);
+      ne     = l.findVirtual(Class.forName("jdk.jfr.EventFactory"), "newEvent", MethodType.methodType(event));
+      set    = l.findVirtual(event, "set", MethodType.methodType(void.class, int.class, Object.class));
+      begin  = l.findVirtual(event, "begin", vt);
+      end    = l.findVirtual(event, "end", vt);
+      commit = l.findVirtual(event, "commit", vt);
+      ie     = l.findVirtual(event, "isEnabled", bt);
+      sc     = l.findVirtual(event, "shouldCommit", bt);
+      on = true;
+    } catch( Throwable t ) {
+      on = false;               // No JFR here: events are simply never emitted
+    }
+    RESIZE_START = rs;  TABLE_PROMOTION = tp;  COUNTER_RESIZE = cr;
+    NEW_EVENT = ne;  SET = set;  BEGIN = begin;  END = end;  COMMIT = commit;
+    IS_ENABLED = ie;  SHOULD_COMMIT = sc;
+    ON = on;
+  }
+
+  // --- Event type construction ---------------------------------------------
+  // The reflective equivalent of an annotated jdk.jfr.Event subclass
+
+  private static Object annotation( final String type, final Object value ) throws ReflectiveOperationException {
+    return Class.forName("jdk.jfr.AnnotationElement")
+      .getConstructor(Class.class, Object.class)
+      .newInstance(Class.forName(type), value);
+  }
+
+  private static Object field( final Class<?> type, final String name, final String label, final String desc ) throws ReflectiveOperationException {
+    final List<Object> as = new ArrayList<Object>();
+    as.add(annotation("jdk.jfr.Label", label));
+    if( desc != null ) as.add(annotation("jdk.jfr.Description", desc));
+    return Class.forName("jdk.jfr.ValueDescriptor")
+      .getConstructor(Class.class, String.class, List.class)
+      .newInstance(type, name, as);
+  }
+
+  private static Object factory( final String name, final String label, final String desc, final Object... fields ) throws ReflectiveOperationException {
+    final List<Object> as = Arrays.asList(annotation("jdk.jfr.Name", name),
+                                          annotation("jdk.jfr.Label", label),
+                                          annotation("jdk.jfr.Category", new String[]{"High Scale Lib"}),
+                                          annotation("jdk.jfr.Description", desc));
+    return Class.forName("jdk.jfr.EventFactory")
+      .getMethod("create", List.class, List.class)
+      .invoke(null, as, Arrays.asList(fields));
+  }
+
+  // --- Entry points ----------------------------------------------------------
+  // Only called when ON.  A JFR failure must never break a map operation,
+  // so anything thrown is swallowed and the event dropped.
+
+  // A hash table copy began: emits the instant start event
+  static void resize_start( final Object map, final long oldlen, final long newlen, final long size ) {
+    try {
+      final Object s = NEW_EVENT.invoke(RESIZE_START);
+      if( !(boolean)SHOULD_COMMIT.invoke(s) ) return;
+      SET.invoke(s, 0, map.getClass().getName());
+      SET.invoke(s, 1, System.identityHashCode(map));
+      SET.invoke(s, 2, oldlen);
+      SET.invoke(s, 3, newlen);
+      SET.invoke(s, 4, size);
+      COMMIT.invoke(s);
+    } catch( Throwable t ) { }
+  }
+
+  // A hash table copy is about to begin.  Returns the begun duration event
+  // for resize_done to commit at promotion, or null if not recording.  The
+  // event is stored in the new table before it is published; a thread that
+  // loses the race to publish simply drops it.
+  static Object promotion_begin( final Object map, final long oldlen, final long newlen ) {
+    try {
+      final Object p = NEW_EVENT.invoke(TABLE_PROMOTION);
+      if( !(boolean)IS_ENABLED.invoke(p) ) return null;
+      SET.invoke(p, 0, map.getClass().getName());
+      SET.invoke(p, 1, System.identityHashCode(map));
+      SET.invoke(p, 2, oldlen);
+      SET.invoke(p, 3, newlen);
+      BEGIN.invoke(p);
+      return p;
+    } catch( Throwable t ) {
+      return null;
+    }
+  }
+
+  // The copied table was promoted to be the map's top-level table
+  static void resize_done( final Object promotion ) {
+    try {
+      END.invoke(promotion);
+      if( (boolean)SHOULD_COMMIT.invoke(promotion) ) COMMIT.invoke(promotion);
+    } catch( Throwable t ) { }
+  }
+
+  // A ConcurrentAutoTable doubled its stripes under contention
+  static void cat_resize( final Object cat, final long oldlen, final long newlen ) {
+    try {
+      final Object e = NEW_EVENT.invoke(COUNTER_RESIZE);
+      if( !(boolean)SHOULD_COMMIT.invoke(e) ) return;
+      SET.invoke(e, 0, System.identityHashCode(cat));
+      SET.invoke(e, 1, oldlen);
+      SET.invoke(e, 2, newlen);
+      COMMIT.invoke(e);
+    } catch( Throwable t ) { }
+  }
+}
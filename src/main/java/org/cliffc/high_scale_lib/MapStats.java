@@ -0,0 +1,126 @@
+package org.cliffc.high_scale_lib;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A point-in-time snapshot of the internal health figures of a
+ * {@link NonBlockingHashMap}, {@link NonBlockingHashMapLong} or
+ * {@link NonBlockingIdentityHashMap}.
+ *
+ * <p>The table figures (size, slots, tombstones, table length) are always
+ * available and cost nothing to maintain.  The event counts (reprobes, CAS
+ * retries, resizes, copy time and resize pauses) are only gathered while
+ * statistics are enabled on the map with <code>setStatsEnabled(true)</code>.
+ * They are kept in striped {@link Counter}s, so they are cheap enough to
+ * leave on in production.  While disabled, the only cost is a null check of
+ * a field that is already in cache.  Event counts are cumulative from when
+ * statistics were last enabled.
+ *
+ * <p>A <em>pause</em> is time a map operation spent on resize work instead
+ * of its own.  That covers starting a resize (sizing, the resize throttle's
+ * sleep, allocating the new table) and being drafted to help copy.  Each
+ * episode is timed and binned in a power-of-two latency histogram.  That
+ * shows whether tail latency comes from resizing.
+ *
+ * <p>All figures are read without stopping the map, so under concurrent
+ * updates they are approximate and may not be mutually consistent.
+ *
+ * @since 1.0.7
+ */
+public final class MapStats {
+  // Event counts, gathered while enabled
+  static final class Recorder {
+    final Counter _getReprobes = new Counter();
+    final Counter _putReprobes = new Counter();
+    final Counter _casRetries  = new Counter();
+    final Counter _resizes     = new Counter();
+    final Counter _copyNanos   = new Counter();
+    final Counter _pauseNanos  = new Counter();
+    // Pause counts, bucket i holding pauses of [2^i,2^(i+1)) nanoseconds.
+    // Pauses are rare, so a plain atomic array contends little.
+    final AtomicLongArray _pauses = new AtomicLongArray(64);
+    void pause( final long nanos ) {
+      _pauses.incrementAndGet(63-Long.numberOfLeadingZeros(Math.max(nanos,1)));
+      _pauseNanos.add(nanos);
+    }
+  }
+
+  private final long _size, _slots, _tableLength;
+  private final long _getReprobes, _putReprobes, _casRetries, _resizes, _copyNanos;
+  private final long _pauseNanos;
+  private final long[] _pauses = new long[64];
+
+  MapStats( long size, long slots, long tableLength, Recorder r ) {
+    _size = size;
+    _slots = slots;
+    _tableLength = tableLength;
+    _getReprobes = r == null ? 0 : r._getReprobes.get();
+    _putReprobes = r == null ? 0 : r._putReprobes.get();
+    _casRetries  = r == null ? 0 : r._casRetries .get();
+    _resizes     = r == null ? 0 : r._resizes    .get();
+    _copyNanos   = r == null ? 0 : r._copyNanos  .get();
+    _pauseNanos  = r == null ? 0 : r._pauseNanos .get();
+    if( r != null )
+      for( int i=0; i<_pauses.length; i++ )
+        _pauses[i] = r._pauses.get(i);
+  }
+
+  /** Number of live key/value mappings. */
+  public long size() { return _size; }
+  /** Number of key slots claimed in the current table, live or dead. */
+  public long slots() { return _slots; }
+  /** Number of claimed key slots holding no live mapping: removed keys that
+   *  will only be reclaimed by the next resize. */
+  public long tombstones() { return Math.max(0, _slots - _size); }
+  /** Number of key/value slots in the current table. */
+  public long tableLength() { return _tableLength; }
+  /** Fraction of the current table's slots claimed by keys. */
+  public double slotUsage() { return _tableLength == 0 ? 0 : (double)_slots / _tableLength; }
+
+  /** Number of reprobes (collisions stepped over) by lookups. */
+  public long getReprobes() { return _getReprobes; }
+  /** Number of reprobes by inserts, removes and other updates. */
+  public long putReprobes() { return _putReprobes; }
+  /** Number of key or value CASes that lost a race and had to retry. */
+  public long casRetries() { return _casRetries; }
+  /** Number of table resizes completed. */
+  public long resizes() { return _resizes; }
+  /** Total nanoseconds from the start of each table copy to its promotion. */
+  public long copyNanos() { return _copyNanos; }
+
+  /** Number of operations that paused for resize work. */
+  public long pauses() {
+    long sum = 0;
+    for( long p : _pauses ) sum += p;
+    return sum;
+  }
+  /** Total nanoseconds operations spent paused for resize work. */
+  public long pauseNanos() { return _pauseNanos; }
+  /** Pause latency histogram: element i counts pauses lasting from 2^i up
+   *  to 2^(i+1) nanoseconds.
+   *  @return a fresh 64-element array */
+  public long[] pauseHistogram() { return _pauses.clone(); }
+  /** Returns an upper bound on the given quantile of pause latency, in
+   *  nanoseconds; e.g. <code>pausePercentile(0.999)</code> bounds the p99.9
+   *  pause.  Zero if there were no pauses.
+   *  @param q the quantile, between 0 and 1 */
+  public long pausePercentile( final double q ) {
+    final long n = pauses();
+    if( n == 0 ) return 0;
+    final long rank = Math.max(1,(long)Math.ceil(q*n));
+    long seen = 0;
+    for( int i=0; i<_pauses.length; i++ )
+      if( (seen += _pauses[i]) >= rank )
+        return i >= 62 ? Long.MAX_VALUE : (1L<<(i+1))-1;
+    return Long.MAX_VALUE;
+  }
+
+  /** Returns the figures as a single line of text. */
+  public String toString() {
+    return "MapStats[size=" + _size + ", slots=" + _slots + "/" + _tableLength +
+      ", tombstones=" + tombstones() + ", getReprobes=" + _getReprobes +
+      ", putReprobes=" + _putReprobes + ", casRetries=" + _casRetries +
+      ", resizes=" + _resizes + ", copyNanos=" + _copyNanos +
+      ", pauses=" + pauses() + ", pauseNanos=" + _pauseNanos +
+      ", pauseP999=" + pausePercentile(0.999) + "]";
+  }
+}
@@ -0,0 +1,202 @@
+package org.cliffc.high_scale_lib;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * A bounded cache over a {@link NonBlockingHashMap}, evicting with a CLOCK
+ * (second-chance) sweep.  Lookups and inserts keep the lock-free paths of the
+ * underlying map; no lock is taken anywhere, and there is no LRU list to
+ * maintain.
+ *
+ * <p>Each entry carries a reference bit, set by {@link #get}.  The bit is
+ * read before it is written, so a hot entry costs a plain load rather than a
+ * store (let alone a CAS) per hit.  When an insert pushes the cache over its
+ * capacity, the inserting thread advances a shared clock hand over the hash
+ * table slots: referenced entries have their bit cleared and are passed over,
+ * unreferenced entries are removed.  Concurrent writers claim disjoint
+ * batches of slots from the hand and so sweep in parallel.
+ *
+ * <p>Capacity is a maximum total weight.  By default every entry weighs 1,
+ * making the capacity a maximum size.  The bound is enforced by writers
+ * after their insert, so it may be exceeded briefly under concurrent puts.
+ *
+ * <p>Hits, misses and evictions are counted with {@link Counter}s.  Neither
+ * keys nor values may be null.
+ *
+ * @since 1.0.7
+ * @param <TypeK> the type of keys maintained by this cache
+ * @param <TypeV> the type of cached values
+ */
+public class NonBlockingCache<TypeK, TypeV> {
+  // Slots claimed from the clock hand at a time
+  private static final int BATCH = 16;
+
+  private final NonBlockingHashMap<TypeK,Node<TypeV>> _map = new NonBlockingHashMap<TypeK,Node<TypeV>>();
+  private final long _capacity;
+  private final ToIntBiFunction<? super TypeK,? super TypeV> _weigher;
+
+  private final Counter _weight    = new Counter();
+  private final Counter _hits      = new Counter();
+  private final Counter _misses    = new Counter();
+  private final Counter _evictions = new Counter();
+
+  // The clock hand: a slot number, taken modulo the table length
+  private volatile long _hand;
+  private static final AtomicLongFieldUpdater<NonBlockingCache> _handUpdater =
+    AtomicLongFieldUpdater.newUpdater(NonBlockingCache.class, "_hand");
+
+  // A cached value with its weight and CLOCK reference bit.  The bit is
+  // deliberately racy: a lost update only costs an entry its second chance.
+  private static final class Node<V> {
+    final V _val;
+    final int _weight;
+    boolean _ref;
+    Node( V val, int weight ) { _val = val; _weight = weight; }
+  }
+
+  /** Create a new cache holding at most <code>maxSize</code> entries.
+   *  @param maxSize the maximum number of entries
+   *  @throws IllegalArgumentException if the size is negative */
+  public NonBlockingCache( final long maxSize ) { this(maxSize,null); }
+
+  /** Create a new cache holding entries of at most <code>maxWeight</code>
+   *  total weight, as computed by <code>weigher</code>.
+   *  @param maxWeight the maximum total weight of all entries
+   *  @param weigher computes the (non-negative) weight of each entry, or null
+   *         to weigh every entry as 1
+   *  @throws IllegalArgumentException if the weight is negative */
+  public NonBlockingCache( final long maxWeight, final ToIntBiFunction<? super TypeK,? super TypeV> weigher ) {
+    if( maxWeight < 0 ) throw new IllegalArgumentException();
+    _capacity = maxWeight;
+    _weigher = weigher;
+  }
+
+  private Node<TypeV> node( final TypeK key, final TypeV val ) {
+    if( val == null ) throw new NullPointerException();
+    final int w = _weigher == null ? 1 : _weigher.applyAsInt(key,val);
+    if( w < 0 ) throw new IllegalArgumentException("negative weight");
+    return new Node<TypeV>(val,w);
+  }
+
+  /** Returns the value to which the specified key is mapped, or null if the
+   *  cache holds no mapping for the key.  A hit marks the entry as recently
+   *  used.
+   *  @throws NullPointerException if the specified key is null */
+  public TypeV get( final Object key ) {
+    final Node<TypeV> n = _map.get(key);
+    if( n == null ) { _misses.increment(); return null; }
+    if( !n._ref ) n._ref = true; // Read first: a hot entry's line stays shared
+    _hits.increment();
+    return n._val;
+  }
+
+  /** Maps the key to the value, evicting other entries if the cache is over
+   *  capacity.
+   *  @return the previous value associated with the key, or null if none
+   *  @throws NullPointerException if the key or value is null */
+  public TypeV put( final TypeK key, final TypeV val ) {
+    final Node<TypeV> n = node(key,val);
+    final Node<TypeV> old = _map.put(key,n);
+    _weight.add(old == null ? n._weight : n._weight - old._weight);
+    evict();
+    return old == null ? null : old._val;
+  }
+
+  /** Maps the key to the value unless a mapping is already present.
+   *  @return the current value associated with the key, or null if the
+   *          value was inserted
+   *  @throws NullPointerException if the key or value is null */
+  public TypeV putIfAbsent( final TypeK key, final TypeV val ) {
+    final Node<TypeV> n = node(key,val);
+    final Node<TypeV> old = _map.putIfAbsent(key,n);
+    if( old != null ) return old._val;
+    _weight.add(n._weight);
+    evict();
+    return null;
+  }
+
+  /** Returns the cached value for the key, computing and inserting it with
+   *  <code>fn</code> on a miss.  Racing threads may each compute a value, but
+   *  only the first one inserted is kept and returned to all of them.
+   *  @return the cached or computed value, or null if <code>fn</code>
+   *          returned null (in which case nothing is cached) */
+  public TypeV computeIfAbsent( final TypeK key, final Function<? super TypeK,? extends TypeV> fn ) {
+    final TypeV v = get(key);
+    if( v != null ) return v;
+    final TypeV nv = fn.apply(key);
+    if( nv == null ) return null;
+    final TypeV old = putIfAbsent(key,nv);
+    return old == null ? nv : old;
+  }
+
+  /** Removes the mapping for the key.
+   *  @return the previous value associated with the key, or null if none */
+  public TypeV remove( final Object key ) {
+    final Node<TypeV> old = _map.remove(key);
+    if( old == null ) return null;
+    _weight.add(-old._weight);
+    return old._val;
+  }
+
+  /** Tests for a mapping without counting a hit or miss, and without marking
+   *  the entry as recently used. */
+  public boolean containsKey( final Object key ) { return _map.containsKey(key); }
+
+  /** Removes all of the mappings from this cache. */
+  public void clear() {
+    for( TypeK key : _map.keySet() )
+      remove(key);
+  }
+
+  /** Returns the number of entries in this cache. */
+  public int size() { return _map.size(); }
+  /** Returns the total weight of the entries in this cache. */
+  public long weightedSize() { return _weight.get(); }
+  /** Returns the maximum total weight this cache holds. */
+  public long capacity() { return _capacity; }
+
+  /** Returns the number of {@link #get} calls that found a value. */
+  public long hits() { return _hits.get(); }
+  /** Returns the number of {@link #get} calls that found no value. */
+  public long misses() { return _misses.get(); }
+  /** Returns the number of entries evicted to keep within capacity. */
+  public long evictions() { return _evictions.get(); }
+
+  // --- Eviction ------------------------------------------------------------
+  // Sweep the clock hand until back under capacity.  Each writer claims
+  // BATCH slots at a time, so racing writers sweep disjoint parts of the
+  // table.  If two full turns of the hand find nothing to evict (everything
+  // is mid-resize, or is being removed by others) give up; the next writer
+  // will try again.  Reading the weight sums every Counter stripe, so it is
+  // read once per batch; within a batch the sweeper counts down the excess
+  // by what it evicts itself.
+  private void evict() {
+    long swept = 0;
+    final Sweeper s = new Sweeper();
+    while( (s._excess = _weight.get() - _capacity) > 0 ) {
+      final long start = _handUpdater.getAndAdd(this,BATCH);
+      final int len = _map.sweep(start,BATCH,s);
+      if( (swept += BATCH) > ((long)len<<1) ) break;
+    }
+  }
+
+  private final class Sweeper implements BiConsumer<TypeK,Node<TypeV>> {
+    long _excess;               // Weight over capacity, as of the batch start
+    public void accept( final TypeK key, final Node<TypeV> n ) {
+      if( n._ref ) n._ref = false; // Second chance
+      else if( _excess > 0 && _map.remove(key,n) ) {
+        _weight.add(-n._weight);
+        _excess -= n._weight;
+        _evictions.increment();
+      }
+    }
+  }
+
+  /** Returns a string with the cache's size, weight and counts. */
+  public String toString() {
+    return "NonBlockingCache[size=" + size() + ", weight=" + weightedSize() + "/" + _capacity +
+      ", hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions() + "]";
+  }
+}
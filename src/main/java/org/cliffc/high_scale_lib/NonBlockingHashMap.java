@@ -6,13 +6,36 @@
 package org.cliffc.high_scale_lib;
 import sun.misc.Unsafe;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
 import java.lang.reflect.Field;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongBinaryOperator;
+import java.util.function.Predicate;
+import java.util.function.ToLongBiFunction;
 
 /**
  * A lock-free alternate implementation of {@link java.util.concurrent.ConcurrentHashMap}
@@ -62,6 +85,12 @@ import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
  * <p> Like {@link Hashtable} but unlike {@link HashMap}, this class
  * does <em>not</em> allow <tt>null</tt> to be used as a key or value.
  *
+ * <p> The table stops growing at 2<sup>30</sup> key/value slots, so a
+ * map holds well under 2<sup>30</sup> mappings.  Once a table of that size
+ * is more than a quarter full of live keys, an operation that would need a
+ * bigger table throws {@link IllegalStateException} rather than endlessly
+ * re-copying into another table of the same size.
+ *
  *
  * @since 1.5
  * @author Cliff Click
@@ -103,16 +132,29 @@ public class NonBlockingHashMap<TypeK, TypeV>
   }
 
   // --- Adding a 'prime' bit onto Values via wrapping with a junk wrapper class
+  // A table copy reuses one wrapper for slot after slot (see copy_slot), so
+  // the wrapped value is not final: it only belongs to a slot while the
+  // wrapper is still in that slot.
   private static final class Prime {
-    final Object _V;
+    volatile Object _V;
     Prime( Object V ) { _V = V; }
     static Object unbox( Object V ) { return V instanceof Prime ? ((Prime)V)._V : V; }
   }
 
   // --- hash ----------------------------------------------------------------
-  // Helper function to spread lousy hashCodes
+  // Helper function to spread lousy hashCodes.  The default path is kept
+  // separate, and tested first, so the JIT can inline it straight into the
+  // callers when no HashingStrategy is in use.
+  private static final int hash( final NonBlockingHashMap topmap, final Object key ) {
+    final HashingStrategy hs = topmap._strategy;
+    if( hs == null ) return hash(key);
+    if( key == null ) throw new NullPointerException();
+    return spread(hs.hashCode(key)); // The user's hashCode call
+  }
   private static final int hash(final Object key) {
-    int h = key.hashCode();     // The real hashCode call
+    return spread(key.hashCode()); // The real hashCode call
+  }
+  static final int spread( int h ) {
     // Spread bits to regularize both segment and index locations,
     // using variant of single-word Wang/Jenkins hash.
     h += (h <<  15) ^ 0xffffcd7d;
@@ -134,20 +176,56 @@ public class NonBlockingHashMap<TypeK, TypeV>
   // during standard 'get' operations.  I assume 'get' is much more frequent
   // than 'put'.  'get' can skip the extra indirection of skipping through the
   // CHM to reach the _kvs array.
+  //
+  // Very large tables are not one giant array: see "Segments" below.  The
+  // _kvs array then holds only the first SEG_LEN {Key,Value} pairs, padded
+  // with a few spare slots that encode the table length, so the length is
+  // still read straight off the _kvs array.
   private transient Object[] _kvs;
   private static final CHM   chm   (Object[] kvs) { return (CHM  )kvs[0]; }
   private static final int[] hashes(Object[] kvs) { return (int[])kvs[1]; }
-  // Number of K,V pairs in the table
-  private static final int len(Object[] kvs) { return (kvs.length-2)>>1; }
+  // Number of K,V pairs in the table.  Segment 0 of a table of 1<<log2
+  // pairs, log2 > SEG_LOG, carries log2-SEG_LOG spare slots (see new_kvs).
+  private static final int len(Object[] kvs) {
+    final int pad = kvs.length - ((SEG_LEN<<1)+2);
+    return pad <= 0 ? (kvs.length-2)>>1 : SEG_LEN<<pad;
+  }
 
   // Time since last resize
   private transient long _last_resize_milli;
 
+  // Optional user hashing & equality for keys; null for hashCode/equals
+  private final HashingStrategy<? super TypeK> _strategy;
+
   // --- Minimum table size ----------------
   // Pick size 8 K/V pairs, which turns into (8*2+2)*4+12 = 84 bytes on a
   // standard 32-bit HotSpot, and (8*2+2)*8+12 = 156 bytes on 64-bit Azul.
   private static final int MIN_SIZE_LOG=3;             //
   private static final int MIN_SIZE=(1<<MIN_SIZE_LOG); // Must be power of 2
+  // Largest table: slot indices are ints and the index math must not
+  // overflow, so tables stop growing at 2^30 K/V pairs.  A resize that needs
+  // to grow past it fails, see resize_impl.
+  private static final int MAX_SIZE_LOG=30;
+
+  // --- Segments ("arraylets") ------------
+  // Tables of more than SEG_LEN K/V pairs are split into segments of SEG_LEN
+  // pairs each.  Segment 0 is the _kvs array itself.  The rest hang off a
+  // directory in the CHM, and each is laid out like a small _kvs array: slot
+  // 0 unused, slot 1 the segment's memoized hashes, then {Key,Value} pairs.
+  // A resize allocates only segment 0 and the directory up front; the other
+  // segments are allocated (and zeroed) on demand by the first thread to
+  // claim a Key in them, so the bulk of a huge new table is built up
+  // incrementally while the old table is copied.  No single allocation is
+  // ever bigger than a segment or the directory.
+  //
+  // A segment still missing when the table copy reaches it holds no keys.
+  // The copier kills it wholesale by CAS'ing in DEAD_SEG, which reads as
+  // all-TOMBSTONE keys and all-TOMBPRIME values - exactly as if every slot
+  // in it had been copied one at a time.
+  private static final int SEG_LOG =14; // 16K pairs, 128K-256K bytes
+  private static final int SEG_LEN =1<<SEG_LOG;
+  private static final int SEG_MASK=SEG_LEN-1;
+  private static final Object[] DEAD_SEG = new Object[0];
 
   // --- Sentinels -------------------------
   // No-Match-Old - putIfMatch does updates only if it matches the old value,
@@ -172,14 +250,57 @@ public class NonBlockingHashMap<TypeK, TypeV>
   // field only once, and share that read across all key/val calls - lest the
   // _kvs field move out from under us and back-to-back key & val calls refer
   // to different _kvs arrays.
-  private static final Object key(Object[] kvs,int idx) { return kvs[(idx<<1)+2]; }
-  private static final Object val(Object[] kvs,int idx) { return kvs[(idx<<1)+3]; }
+  //
+  // Slots past segment 0 live out in a segment; only segmented tables ever
+  // take those paths.
+  private static final Object key(Object[] kvs,int idx) { return idx < SEG_LEN ? kvs[(idx<<1)+2] : seg_key(seg(kvs,idx),idx); }
+  private static final Object val(Object[] kvs,int idx) { return idx < SEG_LEN ? kvs[(idx<<1)+3] : seg_val(seg(kvs,idx),idx); }
   private static final boolean CAS_key( Object[] kvs, int idx, Object old, Object key ) {
+    if( idx >= SEG_LEN ) {      // Out in a segment?  Claiming a null key makes the segment
+      kvs = old == null ? chm(kvs).make_seg(idx) : seg(kvs,idx);
+      if( kvs == null || kvs == DEAD_SEG ) return false;
+      idx &= SEG_MASK;
+    }
     return _unsafe.compareAndSwapObject( kvs, rawIndex(kvs,(idx<<1)+2), old, key );
   }
   private static final boolean CAS_val( Object[] kvs, int idx, Object old, Object val ) {
+    if( idx >= SEG_LEN ) {      // Out in a segment?  It exists if the key does
+      kvs = seg(kvs,idx);
+      if( kvs == null || kvs == DEAD_SEG ) return false;
+      idx &= SEG_MASK;
+    }
     return _unsafe.compareAndSwapObject( kvs, rawIndex(kvs,(idx<<1)+3), old, val );
   }
+  // Memoized full hash of the key in slot idx; zero while a key is installed
+  private static final int hashes( Object[] kvs, int idx ) {
+    if( idx < SEG_LEN ) return hashes(kvs)[idx];
+    final Object[] seg = seg(kvs,idx);
+    return (seg == null || seg == DEAD_SEG) ? 0 : hashes(seg)[idx&SEG_MASK];
+  }
+  private static final void set_hash( Object[] kvs, int idx, int fullhash ) {
+    if( idx < SEG_LEN ) hashes(kvs)[idx] = fullhash;
+    else hashes(seg(kvs,idx))[idx&SEG_MASK] = fullhash;
+  }
+  // The segment holding slot idx: null if never allocated, or DEAD_SEG
+  private static final Object[] seg( Object[] kvs, int idx ) { return chm(kvs).seg(idx); }
+  private static final Object seg_key( Object[] seg, int idx ) {
+    return seg == null ? null : (seg == DEAD_SEG ? TOMBSTONE : seg[((idx&SEG_MASK)<<1)+2]);
+  }
+  private static final Object seg_val( Object[] seg, int idx ) {
+    return seg == null ? null : (seg == DEAD_SEG ? TOMBPRIME : seg[((idx&SEG_MASK)<<1)+3]);
+  }
+
+  // Allocate a new table of 1<<log2 K/V pairs.  Only segment 0 is built up
+  // front; bigger tables get the rest of their segments on demand.
+  private static final Object[] new_kvs( Counter size, int log2 ) {
+    final int len0 = Math.min(1<<log2,SEG_LEN);
+    // Double size for K,V pairs, add 1 for CHM and 1 for hashes, then pad
+    // segmented tables so 'len' can tell their length from kvs.length
+    Object[] kvs = new Object[(len0<<1)+2+Math.max(0,log2-SEG_LOG)];
+    kvs[0] = new CHM(size,1<<log2); // CHM in slot 0
+    kvs[1] = new int[len0];         // Matching hash entries
+    return kvs;
+  }
 
 
   // --- dump ----------------------------------------------------------------
@@ -236,6 +357,58 @@ public class NonBlockingHashMap<TypeK, TypeV>
    *  or since the table was created.   */
   public long reprobes() { long r = _reprobes.get(); _reprobes = new Counter(); return r; }
 
+  // Opt-in event counts; null when disabled, so the hot paths pay only a
+  // null check.  Volatile so an enable is seen promptly and a new Recorder
+  // is published safely; a thread may still count a little late or early
+  // around an enable or disable.
+  private transient volatile MapStats.Recorder _stats;
+  /** Enable or disable gathering of the event counts reported by {@link
+   *  #stats}.  Turning them on starts the counts from zero; turning them
+   *  off drops them.
+   *  @param on true to gather statistics  */
+  public void setStatsEnabled( final boolean on ) {
+    _stats = on ? (_stats == null ? new MapStats.Recorder() : _stats) : null;
+  }
+  /** @return true if event counts are being gathered */
+  public boolean isStatsEnabled() { return _stats != null; }
+  /** Returns a snapshot of the table's health figures.  Event counts are
+   *  zero unless enabled with {@link #setStatsEnabled}.
+   *  @return a new {@link MapStats} snapshot */
+  public MapStats stats() {
+    final Object[] kvs = _kvs;
+    final CHM chm = chm(kvs);
+    return new MapStats(chm.size(),chm.slots(),len(kvs),_stats);
+  }
+
+
+  // --- Parallel table copy -----------------------------------------------
+  // Opt-in.  Normally a table copy only progresses as threads visit the map
+  // and 'help', 1024 slots at a time.  When an Executor is set, a resize of
+  // a table with at least _copy_min_len K/V pairs also hands the copy out as
+  // a batch of tasks on that Executor.  The tasks are simply extra helpers
+  // with bigger chunks; the normal helping protocol still finishes whatever
+  // they leave behind, so the map stays non-blocking even if the Executor
+  // is saturated, shut down or never runs the tasks.
+  private transient volatile Executor _copy_exec;
+  private transient volatile int _copy_min_len;
+
+  /** Copy large tables in parallel when the map resizes.  A resize of a
+   *  table holding at least {@code min_len} K/V slots is split into tasks
+   *  submitted to {@code exec}, with chunk sizes scaled to the table length.
+   *  Threads visiting the map keep helping as usual, so a busy or rejecting
+   *  Executor only slows the copy down.
+   *  @param exec Executor to run copy tasks on, or <tt>null</tt> to turn
+   *         parallel copying off
+   *  @param min_len smallest table length (in K/V slots) worth copying in
+   *         parallel */
+  public void setCopyExecutor( final Executor exec, final int min_len ) {
+    if( min_len < 0 ) throw new IllegalArgumentException();
+    _copy_min_len = min_len;
+    _copy_exec = exec;
+  }
+  /** Copy large tables in parallel on the {@link ForkJoinPool#commonPool()}.
+   *  @see #setCopyExecutor(Executor,int) */
+  public void setCopyExecutor( final int min_len ) { setCopyExecutor(ForkJoinPool.commonPool(),min_len); }
 
   // --- reprobe_limit -----------------------------------------------------
   // Heuristic to decide if we have reprobed toooo many times.  Running over
@@ -253,21 +426,38 @@ public class NonBlockingHashMap<TypeK, TypeV>
    *  to 8 K/V pairs or roughly 84 bytes on a standard 32-bit JVM). */
   public NonBlockingHashMap( ) { this(MIN_SIZE); }
 
+  /** Create a new NonBlockingHashMap with default minimum size, hashing and
+   *  comparing keys with the given strategy instead of the keys' own
+   *  <tt>hashCode</tt> and <tt>equals</tt>.
+   *  @param strategy hashing and equality for keys, or <tt>null</tt> for the
+   *         keys' own */
+  public NonBlockingHashMap( final HashingStrategy<? super TypeK> strategy ) { this(MIN_SIZE,strategy); }
+
   /** Create a new NonBlockingHashMap with initial room for the given number of
    *  elements, thus avoiding internal resizing operations to reach an
    *  appropriate size.  Large numbers here when used with a small count of
    *  elements will sacrifice space for a small amount of time gained.  The
    *  initial size will be rounded up internally to the next larger power of 2. */
-  public NonBlockingHashMap( final int initial_sz ) { initialize(initial_sz); }
+  public NonBlockingHashMap( final int initial_sz ) { this(initial_sz,null); }
+
+  /** Create a new NonBlockingHashMap with initial room for the given number
+   *  of elements, hashing and comparing keys with the given strategy instead
+   *  of the keys' own <tt>hashCode</tt> and <tt>equals</tt>.  Lookups by keys
+   *  of a type the strategy does not accept throw
+   *  <tt>ClassCastException</tt>.
+   *  @param initial_sz initial room, as for {@link #NonBlockingHashMap(int)}
+   *  @param strategy hashing and equality for keys, or <tt>null</tt> for the
+   *         keys' own */
+  public NonBlockingHashMap( final int initial_sz, final HashingStrategy<? super TypeK> strategy ) {
+    _strategy = strategy;
+    initialize(initial_sz);
+  }
   private final void initialize( int initial_sz ) {
     if( initial_sz < 0 ) throw new IllegalArgumentException();
     int i;                      // Convert to next largest power-of-2
     if( initial_sz > 1024*1024 ) initial_sz = 1024*1024;
     for( i=MIN_SIZE_LOG; (1<<i) < (initial_sz<<2); i++ ) ;
-    // Double size for K,V pairs, add 1 for CHM and 1 for hashes
-    _kvs = new Object[((1<<i)<<1)+2];
-    _kvs[0] = new CHM(new Counter()); // CHM in slot 0
-    _kvs[1] = new int[1<<i];          // Matching hash entries
+    _kvs = new_kvs(new Counter(),i);
     _last_resize_milli = System.currentTimeMillis();
   }
   // Version for subclassed readObject calls, to be called after the defaultReadObject
@@ -357,6 +547,65 @@ public class NonBlockingHashMap<TypeK, TypeV>
     return res == TOMBSTONE ? null : (TypeV)res;
   }
 
+  /** Atomically compute a value for the key if-and-only-if the key is not
+   *  mapped.  The mapping function is only called when no mapping was
+   *  found; a racing thread may install its own value first, in which case
+   *  that value is returned and the computed one is dropped.
+   *  @return the current (existing or computed) value associated with the
+   *         specified key, or <tt>null</tt> if the computed value is null
+   *  @throws NullPointerException if the specified key or function is null */
+  @Override
+  public TypeV computeIfAbsent( TypeK key, final Function<? super TypeK, ? extends TypeV> mappingFunction ) {
+    if( mappingFunction == null ) throw new NullPointerException();
+    return compute_impl( key, (k,v) -> v != null ? v : mappingFunction.apply(k) );
+  }
+
+  /** Atomically compute a new value for the key if-and-only-if the key is
+   *  mapped.  A null result removes the mapping.  The remapping function may
+   *  be called more than once if other threads race to update the same key.
+   *  @return the new value associated with the specified key, or
+   *         <tt>null</tt> if none
+   *  @throws NullPointerException if the specified key or function is null */
+  @Override
+  public TypeV computeIfPresent( TypeK key, final BiFunction<? super TypeK, ? super TypeV, ? extends TypeV> remappingFunction ) {
+    if( remappingFunction == null ) throw new NullPointerException();
+    return compute_impl( key, (k,v) -> v == null ? null : remappingFunction.apply(k,v) );
+  }
+
+  /** Atomically compute a new value for the key from its current value (or
+   *  <tt>null</tt> if unmapped).  A null result removes the mapping.  The
+   *  remapping function may be called more than once if other threads race
+   *  to update the same key.
+   *  @return the new value associated with the specified key, or
+   *         <tt>null</tt> if none
+   *  @throws NullPointerException if the specified key or function is null */
+  @Override
+  public TypeV compute( TypeK key, BiFunction<? super TypeK, ? super TypeV, ? extends TypeV> remappingFunction ) {
+    if( remappingFunction == null ) throw new NullPointerException();
+    return compute_impl( key, remappingFunction );
+  }
+
+  /** Atomically map the key to the given value if unmapped, or else to the
+   *  result of combining the old value with the given value.  A null result
+   *  removes the mapping.  The remapping function may be called more than
+   *  once if other threads race to update the same key.
+   *  @return the new value associated with the specified key, or
+   *         <tt>null</tt> if none
+   *  @throws NullPointerException if the specified key, value or function is null */
+  @Override
+  public TypeV merge( TypeK key, final TypeV val, final BiFunction<? super TypeV, ? super TypeV, ? extends TypeV> remappingFunction ) {
+    if( val == null || remappingFunction == null ) throw new NullPointerException();
+    return compute_impl( key, (k,v) -> v == null ? val : remappingFunction.apply(v,val) );
+  }
+
+  private final TypeV compute_impl( Object key, BiFunction<? super TypeK, ? super TypeV, ? extends TypeV> remap ) {
+    final int fullhash = hash(this,key); // throws NullPointerException if key null
+    final Object res = compute_impl( this, _kvs, key, fullhash, remap, NO_MATCH_OLD );
+    assert !(res instanceof Prime);
+    assert res != null;
+    return res == TOMBSTONE ? null : (TypeV)res;
+  }
+
 
   /** Copies all of the mappings from the specified map to this one, replacing
    *  any existing mappings.
@@ -463,13 +712,14 @@ public class NonBlockingHashMap<TypeK, TypeV>
   // --- keyeq ---------------------------------------------------------------
   // Check for key equality.  Try direct pointer compare first, then see if
   // the hashes are unequal (fast negative test) and finally do the full-on
-  // 'equals' v-call.
-  private static boolean keyeq( Object K, Object key, int[] hashes, int hash, int fullhash ) {
+  // 'equals' v-call - or the HashingStrategy's, if the map has one.
+  private static boolean keyeq( Object K, Object key, Object[] kvs, int idx, int fullhash, HashingStrategy hs ) {
+    if( K==key ) return true;   // Either keys match exactly OR
+    // hash exists and matches?  hash can be zero during the install of a
+    // new key/value pair.
+    final int hash = hashes(kvs,idx);
     return
-      K==key ||                 // Either keys match exactly OR
-      // hash exists and matches?  hash can be zero during the install of a
-      // new key/value pair.
-      ((hashes[hash] == 0 || hashes[hash] == fullhash) &&
+      ((hash == 0 || hash == fullhash) &&
        // Do not call the users' "equals()" call with a Tombstone, as this can
        // surprise poorly written "equals()" calls that throw exceptions
        // instead of simply returning false.
@@ -479,7 +729,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
        // operands (since equals is commutative), but I'm making mega-morphic
        // v-calls in a reprobing loop and nailing down the 'this' argument
        // gives both the JIT and the hardware a chance to prefetch the call target.
-       key.equals(K));          // Finally do the hard match
+       (hs == null ? key.equals(K) : hs.equals(key,K))); // Finally do the hard match
   }
 
   // --- get -----------------------------------------------------------------
@@ -493,7 +743,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
   // Never returns a Prime nor a Tombstone.
   @Override
   public TypeV get( Object key ) {
-    final int fullhash= hash (key); // throws NullPointerException if key is null
+    final int fullhash= hash (this,key); // throws NullPointerException if key is null
     final Object V = get_impl(this,_kvs,key,fullhash);
     assert !(V instanceof Prime); // Never return a Prime
     return (TypeV)V;
@@ -502,7 +752,6 @@ public class NonBlockingHashMap<TypeK, TypeV>
   private static final Object get_impl( final NonBlockingHashMap topmap, final Object[] kvs, final Object key, final int fullhash ) {
     final int len     = len  (kvs); // Count of key/value pairs, reads kvs.length
     final CHM chm     = chm  (kvs); // The CHM, for a volatile read below; reads slot 0 of kvs
-    final int[] hashes=hashes(kvs); // The memoized hashes; reads slot 1 of kvs
 
     int idx = fullhash & (len-1); // First key hash
 
@@ -527,7 +776,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
       final Object[] newkvs = chm._newkvs; // VOLATILE READ before key compare
 
       // Key-compare
-      if( keyeq(K,key,hashes,idx,fullhash) ) {
+      if( keyeq(K,key,kvs,idx,fullhash,topmap._strategy) ) {
         // Key hit!  Check for no table-copy-in-progress
         if( !(V instanceof Prime) ) // No copy?
           return (V == TOMBSTONE) ? null : V; // Return the value
@@ -542,6 +791,8 @@ public class NonBlockingHashMap<TypeK, TypeV>
           K == TOMBSTONE ) // found a TOMBSTONE key, means no more keys in this table
         return newkvs == null ? null : get_impl(topmap,topmap.help_copy(newkvs),key,fullhash); // Retry in the new table
 
+      final MapStats.Recorder st = topmap._stats;
+      if( st != null ) st._getReprobes.add(1);
       idx = (idx+1)&(len-1);    // Reprobe by 1!  (could now prefetch)
     }
   }
@@ -556,10 +807,9 @@ public class NonBlockingHashMap<TypeK, TypeV>
     assert putval != null;
     assert !(putval instanceof Prime);
     assert !(expVal instanceof Prime);
-    final int fullhash = hash  (key); // throws NullPointerException if key null
+    final int fullhash = hash  (topmap,key); // throws NullPointerException if key null
     final int len      = len   (kvs); // Count of key/value pairs, reads kvs.length
     final CHM chm      = chm   (kvs); // Reads kvs[0]
-    final int[] hashes = hashes(kvs); // Reads kvs[1], read before kvs[0]
     int idx = fullhash & (len-1);
 
     // ---
@@ -577,7 +827,7 @@ public class NonBlockingHashMap<TypeK, TypeV>
         // Claim the null key-slot
         if( CAS_key(kvs,idx, null, key ) ) { // Claim slot for Key
           chm._slots.add(1);      // Raise key-slots-used count
-          hashes[idx] = fullhash; // Memoize fullhash
+          set_hash(kvs,idx,fullhash); // Memoize fullhash
           break;                  // Got it!
         }
         // CAS to claim the key-slot failed.
@@ -595,6 +845,8 @@ public class NonBlockingHashMap<TypeK, TypeV>
         // by not allowing Keys to ever change.
         K = key(kvs,idx);       // CAS failed, get updated value
         assert K != null;       // If keys[idx] is null, CAS shoulda worked
+        final MapStats.Recorder st = topmap._stats;
+        if( st != null ) st._casRetries.add(1);
       }
       // Key slot was not null, there exists a Key here
 
@@ -604,12 +856,13 @@ public class NonBlockingHashMap<TypeK, TypeV>
       // Annoyingly this means we have to volatile-read before EACH key compare.
       newkvs = chm._newkvs;     // VOLATILE READ before key compare
 
-      if( keyeq(K,key,hashes,idx,fullhash) )
+      if( keyeq(K,key,kvs,idx,fullhash,topmap._strategy) )
         break;                  // Got it!
 
       // get and put must have the same key lookup logic!  Lest 'get' give
       // up looking too soon.
-      //topmap._reprobes.add(1);
+      final MapStats.Recorder st = topmap._stats;
+      if( st != null ) st._putReprobes.add(1);
       if( ++reprobe_cnt >= reprobe_limit(len) || // too many probes or
           K == TOMBSTONE ) { // found a TOMBSTONE key, means no more keys
         // We simply must have a new table to do a 'put'.  At this point a
@@ -682,6 +935,8 @@ public class NonBlockingHashMap<TypeK, TypeV>
         return (V==null && expVal!=null) ? TOMBSTONE : V;
       } 
       // Else CAS failed
+      final MapStats.Recorder st = topmap._stats;
+      if( st != null ) st._casRetries.add(1);
       V = val(kvs,idx);         // Get new value
       // If a Prime'd value got installed, we need to re-run the put on the
       // new table.  Otherwise we lost the CAS to another racing put.
@@ -691,6 +946,111 @@ public class NonBlockingHashMap<TypeK, TypeV>
     }
   }
 
+  // --- compute_impl -------------------------------------------------------
+  // Compute, ComputeIfAbsent, ComputeIfPresent and Merge.  Same Key-Claim
+  // and Value-update stanzas as putIfMatch, except the value to install is
+  // produced by 'remap' from the value actually found in the claimed slot,
+  // and a failed Value CAS simply re-reads that same slot and re-applies
+  // 'remap'.  The key is hashed once by the caller, and the fullhash rides
+  // along on any retry in a newer table.  'fresh' caches the answer 'remap'
+  // gave for an absent key (NO_MATCH_OLD if not asked yet; TOMBSTONE if it
+  // said "no mapping") so retrying across a resize does not call the users'
+  // function again.  Returns the resulting value, or TOMBSTONE if the key
+  // ends up unmapped.  Never returns a Prime.
+  private static final Object compute_impl( final NonBlockingHashMap topmap, final Object[] kvs, final Object key, final int fullhash, final BiFunction remap, Object fresh ) {
+    final int len      = len   (kvs); // Count of key/value pairs, reads kvs.length
+    final CHM chm      = chm   (kvs); // Reads kvs[0]
+    int idx = fullhash & (len-1);
+
+    // ---
+    // Key-Claim stanza: spin till we can claim a Key (or force a resizing).
+    int reprobe_cnt=0;
+    Object K=null, V=null;
+    Object[] newkvs=null;
+    while( true ) {             // Spin till we get a Key slot
+      V = val(kvs,idx);         // Get old value (before volatile read below!)
+      K = key(kvs,idx);         // Get current key
+      if( K == null ) {         // Slot is free?
+        // Found an empty Key slot - which means this Key has never been in
+        // this table.  Ask 'remap' what to insert before burning a key slot;
+        // if there is nothing to insert we are done.
+        if( fresh == NO_MATCH_OLD ) fresh = unmapped(remap.apply(key,null));
+        if( fresh == TOMBSTONE ) return fresh; // Not-now & never-been in this table
+        // Claim the null key-slot
+        if( CAS_key(kvs,idx, null, key ) ) { // Claim slot for Key
+          chm._slots.add(1);      // Raise key-slots-used count
+          set_hash(kvs,idx,fullhash); // Memoize fullhash
+          break;                  // Got it!
+        }
+        K = key(kvs,idx);       // CAS failed, get updated value
+        assert K != null;       // If keys[idx] is null, CAS shoulda worked
+        final MapStats.Recorder st = topmap._stats;
+        if( st != null ) st._casRetries.add(1);
+      }
+      newkvs = chm._newkvs;     // VOLATILE READ before key compare
+
+      if( keyeq(K,key,kvs,idx,fullhash,topmap._strategy) )
+        break;                  // Got it!
+
+      // get and put must have the same key lookup logic!
+      final MapStats.Recorder st = topmap._stats;
+      if( st != null ) st._putReprobes.add(1);
+      if( ++reprobe_cnt >= reprobe_limit(len) || // too many probes or
+          K == TOMBSTONE ) { // found a TOMBSTONE key, means no more keys
+        newkvs = chm.resize(topmap,kvs);
+        topmap.help_copy(newkvs); // help along an existing copy
+        return compute_impl(topmap,newkvs,key,fullhash,remap,fresh);
+      }
+
+      idx = (idx+1)&(len-1); // Reprobe!
+    } // End of spinning till we get a Key slot
+
+    // ---
+    // Found the proper Key slot.  Same move-to-new-table check as putIfMatch.
+    if( newkvs == null &&       // New table-copy already spotted?
+        ((V == null && chm.tableFull(reprobe_cnt,len)) ||
+         V instanceof Prime) )
+      newkvs = chm.resize(topmap,kvs); // Force the new table copy to start
+    if( newkvs != null )
+      return compute_impl(topmap,chm.copy_slot_and_check(topmap,kvs,idx,key),key,fullhash,remap,fresh);
+
+    // ---
+    // Update the existing table, re-applying 'remap' to whatever value this
+    // slot holds until our CAS sticks.
+    while( true ) {
+      assert !(V instanceof Prime);
+      final boolean absent = (V == null || V == TOMBSTONE);
+      final Object putval;
+      if( absent ) {
+        if( fresh == NO_MATCH_OLD ) fresh = unmapped(remap.apply(key,null));
+        putval = fresh;
+      } else {
+        putval = unmapped(remap.apply(key,V));
+      }
+      if( putval == V || (absent && putval == TOMBSTONE) )
+        return putval;          // Fast cutout for no-change
+
+      // Actually change the Value in the Key,Value pair
+      if( CAS_val(kvs, idx, V, putval ) ) {
+        // Adjust sizes - a striped counter
+        if(  absent && putval != TOMBSTONE ) chm._size.add( 1);
+        if( !absent && putval == TOMBSTONE ) chm._size.add(-1);
+        return putval;
+      }
+      // Else CAS failed
+      final MapStats.Recorder st = topmap._stats;
+      if( st != null ) st._casRetries.add(1);
+      V = val(kvs,idx);         // Get new value
+      // If a Prime'd value got installed, we need to re-run the compute on
+      // the new table.  Otherwise we lost the CAS to another racing update;
+      // re-apply 'remap' to the winner's value.
+      if( V instanceof Prime )
+        return compute_impl(topmap,chm.copy_slot_and_check(topmap,kvs,idx,key),key,fullhash,remap,fresh);
+    }
+  }
+  // Users' functions report "no mapping" with a null
+  private static final Object unmapped( final Object V ) { return V == null ? TOMBSTONE : V; }
+
   // --- help_copy ---------------------------------------------------------
   // Help along an existing resize operation.  This is just a fast cut-out
   // wrapper, to encourage inlining for the fast no-copy-in-progress case.  We
@@ -751,21 +1111,47 @@ public class NonBlockingHashMap<TypeK, TypeV>
     // throttling attempts to create a new table.  I cannot really block here
     // (lest I lose the non-blocking property) but late-arriving threads can
     // give the initial resizing thread a little time to allocate the initial
-    // new table.  The Right Long Term Fix here is to use array-lets and
-    // incrementally create the new very large array.  In C I'd make the array
-    // with malloc (which would mmap under the hood) which would only eat
-    // virtual-address and not real memory - and after Somebody wins then we
-    // could in parallel initialize the array.  Java does not allow
-    // un-initialized array creation (especially of ref arrays!).
+    // new table.  Very large tables are now built from segments allocated on
+    // demand, so the up-front allocation (and hence the throttling) stays
+    // small no matter how big the table gets.
     volatile long _resizers; // count of threads attempting an initial resize
     private static final AtomicLongFieldUpdater<CHM> _resizerUpdater =
       AtomicLongFieldUpdater.newUpdater(CHM.class, "_resizers");
 
+    // ---
+    // ---
+    // Table length in K,V pairs, and the directory of segments for tables of
+    // more than SEG_LEN pairs (null for tables allocated in one piece).
+    // Directory entries go from null to a segment (or to DEAD_SEG) exactly
+    // once, by CAS.
+    final int _len;
+    private final Object[] _segs;
+    final Object[] seg( int idx ) {
+      return (Object[])_unsafe.getObjectVolatile(_segs,rawIndex(_segs,idx>>>SEG_LOG));
+    }
+    // Find or make the segment for slot idx.  Racing allocators agree on one
+    // winner; returns DEAD_SEG if the table copy got there first.
+    final Object[] make_seg( int idx ) {
+      Object[] seg = seg(idx);
+      if( seg != null ) return seg;
+      seg = new Object[(SEG_LEN<<1)+2];
+      seg[1] = new int[SEG_LEN];
+      if( _unsafe.compareAndSwapObject(_segs,rawIndex(_segs,idx>>>SEG_LOG),null,seg) )
+        return seg;
+      return seg(idx);
+    }
+    // Kill a never-allocated segment during a table copy
+    private final boolean kill_seg( int idx ) {
+      return _unsafe.compareAndSwapObject(_segs,rawIndex(_segs,idx>>>SEG_LOG),null,DEAD_SEG);
+    }
+
     // ---
     // Simple constructor
-    CHM( Counter size ) {
+    CHM( Counter size, int len ) {
       _size = size;
       _slots= new Counter();
+      _len  = len;
+      _segs = len > SEG_LEN ? new Object[len>>>SEG_LOG] : null;
     }
 
     // --- tableFull ---------------------------------------------------------
@@ -791,7 +1177,16 @@ public class NonBlockingHashMap<TypeK, TypeV>
     // Since this routine has a fast cutout for copy-already-started, callers
     // MUST 'help_copy' lest we have a path which forever runs through
     // 'resize' only to discover a copy-in-progress which never progresses.
+    // With statistics on, the time a caller spends starting a copy (sizing,
+    // throttled, allocating) is recorded as a pause.
     private final Object[] resize( NonBlockingHashMap topmap, Object[] kvs) {
+      final MapStats.Recorder st = topmap._stats;
+      if( st == null || _newkvs != null ) return resize_impl(topmap,kvs);
+      final long t0 = System.nanoTime();
+      try { return resize_impl(topmap,kvs); }
+      finally { st.pause(System.nanoTime()-t0); }
+    }
+    private final Object[] resize_impl( NonBlockingHashMap topmap, Object[] kvs) {
       assert chm(kvs) == this;
 
       // Check for resize already in progress, probably triggered by another thread
@@ -802,14 +1197,14 @@ public class NonBlockingHashMap<TypeK, TypeV>
       // No copy in-progress, so start one.  First up: compute new table size.
       int oldlen = len(kvs);    // Old count of K,V pairs allowed
       int sz = size();          // Get current table count of active K,V pairs
-      int newsz = sz;           // First size estimate
+      long newsz = sz;          // First size estimate; long lest it overflow
 
       // Heuristic to determine new size.  We expect plenty of dead-slots-with-keys
       // and we need some decent padding to avoid endless reprobing.
       if( sz >= (oldlen>>2) ) { // If we are >25% full of keys then...
-        newsz = oldlen<<1;      // Double size
+        newsz = (long)oldlen<<1; // Double size
         if( sz >= (oldlen>>1) ) // If we are >50% full of keys then...
-          newsz = oldlen<<2;    // Double double size
+          newsz = (long)oldlen<<2; // Double double size
       }
       // This heuristic in the next 2 lines leads to a much denser table
       // with a higher reprobe rate
@@ -818,19 +1213,34 @@ public class NonBlockingHashMap<TypeK, TypeV>
 
       // Last (re)size operation was very recent?  Then double again; slows
       // down resize operations for tables subject to a high key churn rate.
+      // A mostly-empty table is not doubled: it holds steady instead, so
+      // churn alone cannot grow a drained table without bound.
       long tm = System.currentTimeMillis();
       long q=0;
+      boolean recent = tm <= topmap._last_resize_milli+10000; // Recent resize (less than 10 sec ago)
+      boolean sparse = sz < (oldlen>>4); // Less than 1/16th of the table is live?
       if( newsz <= oldlen && // New table would shrink or hold steady?
-          tm <= topmap._last_resize_milli+10000 && // Recent resize (less than 1 sec ago)
+          recent && !sparse &&
           (q=_slots.estimate_get()) >= (sz<<1) ) // 1/2 of keys are dead?
-        newsz = oldlen<<1;      // Double the existing size
+        newsz = (long)oldlen<<1; // Double the existing size
 
-      // Do not shrink, ever
-      if( newsz < oldlen ) newsz = oldlen;
+      // Shrink a mostly-empty table, but only if it has not been resized
+      // recently.  The new table starts out 1/16th to 1/8th full, well clear
+      // of both the grow and the shrink thresholds, so a table near either
+      // threshold does not flip back and forth.
+      if( sparse && !recent ) newsz = (long)sz<<3;
+      // Otherwise do not shrink
+      else if( newsz < oldlen ) newsz = oldlen;
 
       // Convert to power-of-2
       int log2;
-      for( log2=MIN_SIZE_LOG; (1<<log2) < newsz; log2++ ) ; // Compute log2 of size
+      for( log2=MIN_SIZE_LOG; (1<<log2) < newsz && log2 < MAX_SIZE_LOG; log2++ ) ; // Compute log2 of size
+
+      // Already at the largest table and >25% full of live keys?  A copy into
+      // another table of the same size would fill up just as fast, trip
+      // tableFull again and re-copy every slot, over and over.  Fail instead.
+      if( oldlen == (1<<MAX_SIZE_LOG) && sz >= (oldlen>>2) )
+        throw new IllegalStateException("NonBlockingHashMap full: "+sz+" live keys in a table of 2^"+MAX_SIZE_LOG+" slots");
 
       // Now limit the number of threads actually allocating memory to a
       // handful - lest we have 750 threads all trying to allocate a giant
@@ -838,20 +1248,21 @@ public class NonBlockingHashMap<TypeK, TypeV>
       long r = _resizers;
       while( !_resizerUpdater.compareAndSet(this,r,r+1) )
         r = _resizers;
-      // Size calculation: 2 words (K+V) per table entry, plus a handful.  We
-      // guess at 32-bit pointers; 64-bit pointers screws up the size calc by
-      // 2x but does not screw up the heuristic very much.
-      int megs = ((((1<<log2)<<1)+4)<<3/*word to bytes*/)>>20/*megs*/;
+      // Size calculation: 2 words (K+V) per entry of segment 0, plus the
+      // segment directory, plus a handful; later segments are not allocated
+      // here.  We guess at 32-bit pointers; 64-bit pointers screws up the
+      // size calc by 2x but does not screw up the heuristic very much.
+      int megs = (((Math.min(1<<log2,SEG_LEN)<<1)+((1<<log2)>>>SEG_LOG)+4)<<3/*word to bytes*/)>>20/*megs*/;
       if( r >= 2 && megs > 0 ) { // Already 2 guys trying; wait and see
-        newkvs = _newkvs;        // Between dorking around, another thread did it
-        if( newkvs != null )     // See if resize is already in progress
+        // Give them up to 8*megs msec to publish the new table, but do not
+        // sleep: sleeping parks the caller (pinning the carrier, for a virtual
+        // thread) and delays it past the moment the table shows up.  Instead
+        // spin politely, and use the new table as soon as it is published.
+        final long deadline = System.nanoTime() + 8L*megs*1000000L;
+        while( (newkvs=_newkvs) == null && System.nanoTime() - deadline < 0 )
+          Thread.yield();
+        if( newkvs != null )     // Resize already in progress
           return newkvs;         // Use the new table already
-        // TODO - use a wait with timeout, so we'll wakeup as soon as the new table
-        // is ready, or after the timeout in any case.
-        //synchronized( this ) { wait(8*megs); }         // Timeout - we always wakeup
-        // For now, sleep a tad and see if the 2 guys already trying to make
-        // the table actually get around to making it happen.
-        try { Thread.sleep(8*megs); } catch( Exception e ) { }
       }
       // Last check, since the 'new' below is expensive and there is a chance
       // that another thread slipped in a new thread while we ran the heuristic.
@@ -859,29 +1270,39 @@ public class NonBlockingHashMap<TypeK, TypeV>
       if( newkvs != null )      // See if resize is already in progress
         return newkvs;          // Use the new table already
 
-      // Double size for K,V pairs, add 1 for CHM
-      newkvs = new Object[((1<<log2)<<1)+2]; // This can get expensive for big arrays
-      newkvs[0] = new CHM(_size); // CHM in slot 0
-      newkvs[1] = new int[1<<log2]; // hashes in slot 1
+      newkvs = new_kvs(_size,log2); // Only segment 0, so never too expensive
 
       // Another check after the slow allocation
       if( _newkvs != null )     // See if resize is already in progress
         return _newkvs;         // Use the new table already
 
       // The new table must be CAS'd in so only 1 winner amongst duplicate
-      // racing resizing threads.  Extra CHM's will be GC'd.
+      // racing resizing threads.  Extra CHM's will be GC'd.  The copy's start
+      // is stamped on the new table before it is published, so whichever
+      // thread promotes it sees the stamp.
+      final CHM newchm = chm(newkvs);
+      if( topmap._stats != null ) newchm._copyStartNanos = System.nanoTime();
+      if( HighScaleEvents.ON ) newchm._jfr = HighScaleEvents.promotion_begin(topmap,len(kvs),len(newkvs));
       if( CAS_newkvs( newkvs ) ) { // NOW a resize-is-in-progress!
+        if( HighScaleEvents.ON ) HighScaleEvents.resize_start(topmap,len(kvs),len(newkvs),_size.estimate_get());
         //notifyAll();            // Wake up any sleepers
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Resize from "+oldlen+" to "+(1<<log2)+" and had "+(_resizers-1)+" extras" );
         //if( System.out != null ) System.out.print("["+log2);
         topmap.rehash();        // Call for Hashtable's benefit
+        fork_copy(topmap,kvs);  // Opt-in parallel copy
       } else                    // CAS failed?
         newkvs = _newkvs;       // Reread new table
       return newkvs;
     }
 
 
+    // When the copy into this table began, if statistics were on; zero
+    // otherwise.  Set before the table is published, never changed after.
+    long _copyStartNanos;
+    // The JFR promotion event begun with the copy into this table, if recording
+    Object _jfr;
+
     // The next part of the table to copy.  It monotonically transits from zero
     // to _kvs.length.  Visitors to the table can claim 'work chunks' by
     // CAS'ing this field up, then copying the indicated indices from the old
@@ -899,11 +1320,63 @@ public class NonBlockingHashMap<TypeK, TypeV>
     static private final AtomicLongFieldUpdater<CHM> _copyDoneUpdater =
       AtomicLongFieldUpdater.newUpdater(CHM.class, "_copyDone");
 
+    // --- fork_copy ---------------------------------------------------------
+    // Called once, by the thread that won the race to start this copy.  If
+    // the map opted in to parallel copies, carve the old table into chunks
+    // scaled to its length (about 8 per task) and hand them to the Executor.
+    private final void fork_copy( final NonBlockingHashMap topmap, final Object[] oldkvs ) {
+      final Executor exec = topmap._copy_exec;
+      final int oldlen = len(oldkvs);
+      if( exec == null || oldlen < topmap._copy_min_len ) return;
+      int ntasks = (exec instanceof ForkJoinPool)
+        ? ((ForkJoinPool)exec).getParallelism()
+        : Runtime.getRuntime().availableProcessors();
+      final int work = Math.min(oldlen,Math.max(1024,oldlen/(ntasks<<3)));
+      ntasks = Math.max(1,Math.min(ntasks,oldlen/work));
+      for( int i=0; i<ntasks; i++ ) {
+        try {
+          exec.execute(() -> par_copy(topmap,oldkvs,work));
+        } catch( RejectedExecutionException e ) {
+          return;               // Helpers will finish the copy
+        }
+      }
+    }
+
+    // --- par_copy ----------------------------------------------------------
+    // Body of one parallel-copy task.  Claim chunks of 'work' slots until
+    // every chunk has been handed out once, then quit.  Unlike help_copy_impl
+    // we never 'panic': a stalled chunk is left to the visiting threads.
+    private final void par_copy( final NonBlockingHashMap topmap, final Object[] oldkvs, final int work ) {
+      final Object[] newkvs = _newkvs;
+      final Prime box = new Prime(null); // Reused for every slot we copy
+      final int oldlen = len(oldkvs);
+      while( _copyDone < oldlen ) {
+        final long copyidx = _copyIdx;
+        if( copyidx >= oldlen ) break; // All chunks handed out
+        if( !_copyIdxUpdater.compareAndSet(this,copyidx,copyidx+work) )
+          continue;             // Lost the race for this chunk; try the next
+        final int lo = (int)copyidx, hi = (int)Math.min(copyidx+work,oldlen);
+        final int workdone = copy_slots(topmap,oldkvs,newkvs,lo,hi-lo,box);
+        if( workdone > 0 )      // Report work-done once per chunk
+          copy_check_and_promote( topmap, oldkvs, workdone );
+      }
+      copy_check_and_promote( topmap, oldkvs, 0 ); // See if we can promote
+    }
+
     // --- help_copy_impl ----------------------------------------------------
     // Help along an existing resize operation.  We hope its the top-level
     // copy (it was when we started) but this CHM might have been promoted out
     // of the top position.
+    // With statistics on, the time a caller is drafted into copying is
+    // recorded as a pause.
     private final void help_copy_impl( NonBlockingHashMap topmap, Object[] oldkvs, boolean copy_all ) {
+      final MapStats.Recorder st = topmap._stats;
+      if( st == null ) { help_copy_work(topmap,oldkvs,copy_all); return; }
+      final long t0 = System.nanoTime();
+      try { help_copy_work(topmap,oldkvs,copy_all); }
+      finally { st.pause(System.nanoTime()-t0); }
+    }
+    private final void help_copy_work( NonBlockingHashMap topmap, Object[] oldkvs, boolean copy_all ) {
       assert chm(oldkvs) == this;
       Object[] newkvs = _newkvs;
       assert newkvs != null;    // Already checked by caller
@@ -911,8 +1384,9 @@ public class NonBlockingHashMap<TypeK, TypeV>
       final int MIN_COPY_WORK = Math.min(oldlen,1024); // Limit per-thread work
 
       // ---
-      int panic_start = -1;
-      int copyidx=-9999;            // Fool javac to think it's initialized
+      long panic_start = -1;
+      long copyidx=-9999;           // Fool javac to think it's initialized
+      Prime box = null;             // Reused for every slot we copy
       while( _copyDone < oldlen ) { // Still needing to copy?
         // Carve out a chunk of work.  The counter wraps around so every
         // thread eventually tries to copy every slot repeatedly.
@@ -925,19 +1399,17 @@ public class NonBlockingHashMap<TypeK, TypeV>
         // algorithm) or do the copy work ourselves.  Tiny tables with huge
         // thread counts trying to copy the table often 'panic'.
         if( panic_start == -1 ) { // No panic?
-          copyidx = (int)_copyIdx;
-          while( copyidx < (oldlen<<1) && // 'panic' check
+          copyidx = _copyIdx;
+          while( copyidx < ((long)oldlen<<1) && // 'panic' check
                  !_copyIdxUpdater.compareAndSet(this,copyidx,copyidx+MIN_COPY_WORK) )
-            copyidx = (int)_copyIdx;      // Re-read
-          if( !(copyidx < (oldlen<<1)) )  // Panic!
+            copyidx = _copyIdx;           // Re-read
+          if( !(copyidx < ((long)oldlen<<1)) ) // Panic!
             panic_start = copyidx;        // Record where we started to panic-copy
         }
 
         // We now know what to copy.  Try to copy.
-        int workdone = 0;
-        for( int i=0; i<MIN_COPY_WORK; i++ )
-          if( copy_slot(topmap,(copyidx+i)&(oldlen-1),oldkvs,newkvs) ) // Made an oldtable slot go dead?
-            workdone++;         // Yes!
+        if( box == null ) box = new Prime(null);
+        int workdone = copy_slots(topmap,oldkvs,newkvs,(int)copyidx,MIN_COPY_WORK,box);
         if( workdone > 0 )      // Report work-done occasionally
           copy_check_and_promote( topmap, oldkvs, workdone );// See if we can promote
         //for( int i=0; i<MIN_COPY_WORK; i++ )
@@ -956,6 +1428,25 @@ public class NonBlockingHashMap<TypeK, TypeV>
     }
 
 
+    // --- copy_slots --------------------------------------------------------
+    // Copy 'n' slots from 'lo' onwards (wrapping around the old table) and
+    // return how many this thread confirmed copied.  Slots in a segment that
+    // was never allocated hold no keys: the first copier to reach one kills
+    // the whole segment with a single CAS and takes credit for all of it.
+    // One Prime 'box' wraps every value this thread copies.
+    private final int copy_slots( NonBlockingHashMap topmap, Object[] oldkvs, Object[] newkvs, int lo, int n, Prime box ) {
+      final int mask = len(oldkvs)-1;
+      int workdone = 0;
+      for( int i=0; i<n; i++ ) {
+        final int idx = (lo+i)&mask;
+        if( idx >= SEG_LEN && seg(idx) == null && kill_seg(idx) )
+          workdone += SEG_LEN;  // Killed an entire empty segment
+        if( copy_slot(topmap,idx,oldkvs,newkvs,box) ) // Made an oldtable slot go dead?
+          workdone++;           // Yes!
+      }
+      return workdone;
+    }
+
     // --- copy_slot_and_check -----------------------------------------------
     // Copy slot 'idx' from the old table to the new table.  If this thread
     // confirmed the copy, update the counters and check for promotion.
@@ -968,12 +1459,17 @@ public class NonBlockingHashMap<TypeK, TypeV>
     // field to retry his operation in the new table, but probably has not
     // read it yet.
     private final Object[] copy_slot_and_check( NonBlockingHashMap topmap, Object[] oldkvs, int idx, Object should_help ) {
+      return copy_slot_and_check(topmap,oldkvs,idx,should_help,null);
+    }
+    // As above, boxing a live value in 'spare' (see copy_slot) if the caller
+    // has one to reuse, such as an iterator freezing slot after slot.
+    private final Object[] copy_slot_and_check( NonBlockingHashMap topmap, Object[] oldkvs, int idx, Object should_help, Prime spare ) {
       assert chm(oldkvs) == this;
       Object[] newkvs = _newkvs; // VOLATILE READ
       // We're only here because the caller saw a Prime, which implies a
       // table-copy is in progress.
       assert newkvs != null;
-      if( copy_slot(topmap,idx,oldkvs,_newkvs) )   // Copy the desired slot
+      if( copy_slot(topmap,idx,oldkvs,_newkvs,spare) ) // Copy the desired slot
         copy_check_and_promote(topmap, oldkvs, 1); // Record the slot copied
       // Generically help along any copy (except if called recursively from a helper)
       return (should_help == null) ? newkvs : topmap.help_copy(newkvs);
@@ -1003,6 +1499,14 @@ public class NonBlockingHashMap<TypeK, TypeV>
           // Attempt to promote
           topmap.CAS_kvs(oldkvs,_newkvs) ) {
         topmap._last_resize_milli = System.currentTimeMillis(); // Record resize time for next check
+        final MapStats.Recorder st = topmap._stats;
+        if( st != null ) {
+          st._resizes.add(1);
+          final long start = chm(_newkvs)._copyStartNanos;
+          if( start != 0 ) st._copyNanos.add(System.nanoTime()-start);
+        }
+        final Object jfr = chm(_newkvs)._jfr;
+        if( jfr != null ) HighScaleEvents.resize_done(jfr);
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Promote table to "+len(_newkvs));
         //if( System.out != null ) System.out.print("]");
@@ -1020,7 +1524,14 @@ public class NonBlockingHashMap<TypeK, TypeV>
     // not-null must have been from a copy_slot (or other old-table overwrite)
     // and not from a thread directly writing in the new table.  Thus we can
     // count null-to-not-null transitions in the new table.
-    private boolean copy_slot( NonBlockingHashMap topmap, int idx, Object[] oldkvs, Object[] newkvs ) {
+    //
+    // A live value is boxed in 'spare', if the caller has one, instead of a
+    // fresh Prime: whatever happens, by the time we return the slot holds
+    // TOMBPRIME and 'spare' is free to box the next slot.  So a bulk copy
+    // allocates nothing per slot.  A thread that read the box from this slot
+    // may then find it re-used and holding some other slot's value; it must
+    // check that the box is still in this slot before trusting the value.
+    private boolean copy_slot( NonBlockingHashMap topmap, int idx, Object[] oldkvs, Object[] newkvs, Prime spare ) {
       // Blindly set the key slot from null to TOMBSTONE, to eagerly stop
       // fresh put's from inserting new values in the old table when the old
       // table is mid-resize.  We don't need to act on the results here,
@@ -1035,7 +1546,10 @@ public class NonBlockingHashMap<TypeK, TypeV>
       // Box what we see in the old table, to prevent further updates.
       Object oldval = val(oldkvs,idx); // Read OLD table
       while( !(oldval instanceof Prime) ) {
-        final Prime box = (oldval == null || oldval == TOMBSTONE) ? TOMBPRIME : new Prime(oldval);
+        final Prime box;
+        if( oldval == null || oldval == TOMBSTONE ) box = TOMBPRIME;
+        else if( spare == null ) box = new Prime(oldval);
+        else { box = spare;  spare._V = oldval; }
         if( CAS_val(oldkvs,idx,oldval,box) ) { // CAS down a box'd version of oldval
           // If we made the Value slot hold a TOMBPRIME, then we both
           // prevented further updates here but also the (absent)
@@ -1062,6 +1576,8 @@ public class NonBlockingHashMap<TypeK, TypeV>
       // new table - somebody else should have recorded the null-not_null
       // transition in this copy.
       Object old_unboxed = ((Prime)oldval)._V;
+      if( val(oldkvs,idx) != oldval ) // Box moved on, maybe to another slot?
+        return false;           // Then this slot is TOMBPRIME: copy already complete here!
       assert old_unboxed != TOMBSTONE;
       boolean copied_into_new = (putIfMatch(topmap, newkvs, key, old_unboxed, null) == null);
 
@@ -1079,33 +1595,99 @@ public class NonBlockingHashMap<TypeK, TypeV>
 
 
   // --- Snapshot ------------------------------------------------------------
-  // The main class for iterating over the NBHM.  It "snapshots" a clean
-  // view of the K/V array.
+  // "Snapshot" a clean view of the K/V array, for iterating over the NBHM.
+  private final Object[] snapshot() {
+    while( true ) {             // Verify no table-copy-in-progress
+      Object[] topkvs = _kvs;
+      CHM topchm = chm(topkvs);
+      if( topchm._newkvs == null ) // No table-copy-in-progress
+        // The "linearization point" for the iteration.  Every key in this
+        // table will be visited, but keys added later might be skipped or
+        // even be added to a following table (also not iterated over).
+        return topkvs;
+      // Table copy in-progress - so we cannot get a clean iteration.  We
+      // must help finish the table copy before we can start iterating.
+      topchm.help_copy_impl(this,topkvs,true);
+    }
+  }
+
+  // --- has_key -------------------------------------------------------------
+  // Is the key claimed in this one table, live or dead?  Same probe as
+  // get_impl, but never looks at values nor moves on to a newer table.  A
+  // claimed key is never preceded in its reprobe chain by a free or
+  // TOMBSTONE'd slot (a put gives up on this table at the first TOMBSTONE
+  // key), so either one ends the search.
+  private static final boolean has_key( final NonBlockingHashMap topmap, final Object[] kvs, final Object key, final int fullhash ) {
+    final int len = len(kvs);
+    final CHM chm = chm(kvs);
+    int idx = fullhash & (len-1);
+    int reprobe_cnt=0;
+    while( true ) {
+      final Object K = key(kvs,idx);
+      if( K == null || K == TOMBSTONE ) return false; // A clear miss
+      final Object[] newkvs = chm._newkvs; // VOLATILE READ before key compare
+      if( keyeq(K,key,kvs,idx,fullhash,topmap._strategy) ) return true;
+      if( ++reprobe_cnt >= reprobe_limit(len) ) return false;
+      idx = (idx+1)&(len-1);
+    }
+  }
+
+  // --- remove_slot ---------------------------------------------------------
+  // Remove the mapping in slot idx, if the slot still holds exactly V.  No
+  // hashing and no probing; false if the slot moved on (a new value, or
+  // primed for a copy), and the caller falls back to a keyed remove.
+  private static final boolean remove_slot( final Object[] kvs, final int idx, final Object V ) {
+    if( !CAS_val(kvs,idx,V,TOMBSTONE) ) return false;
+    chm(kvs)._size.add(-1);     // Adjust sizes, same as putIfMatch
+    return true;
+  }
+
+  // The main class for iterating over the NBHM.  Starting an iterator does
+  // not wait for an in-progress table copy: it walks the top-level table as
+  // it finds it, then each newer table in turn.  Every key present when the
+  // iterator was made is claimed in one of these tables (keys are never
+  // un-claimed, and a copy only ever adds keys to the newer table).  A key
+  // found in a newer table is skipped if an older table in the walk also
+  // claims it: it was already visited there.  While a table has a newer one
+  // we copy each slot before reading it, so a slot we have walked past can
+  // not later claim a key.  Values are read straight from the slot unless it
+  // has been primed for a copy; then an official 'get' copies or reads
+  // through the Prime.  Iterator.remove kills the value in the slot it was
+  // read from, falling back to a keyed remove when that slot has moved on.
   private class SnapshotV implements Iterator<TypeV>, Enumeration<TypeV> {
-    final Object[] _sskvs;
+    final Object[] _sskvs0;     // Top-level table when the iterator was made
+    Object[] _sskvs;            // Table being walked
     public SnapshotV() {
-      while( true ) {           // Verify no table-copy-in-progress
-        Object[] topkvs = _kvs;
-        CHM topchm = chm(topkvs);
-        if( topchm._newkvs == null ) { // No table-copy-in-progress
-          // The "linearization point" for the iteration.  Every key in this
-          // table will be visited, but keys added later might be skipped or
-          // even be added to a following table (also not iterated over).
-          _sskvs = topkvs;
-          break;
-        }
-        // Table copy in-progress - so we cannot get a clean iteration.  We
-        // must help finish the table copy before we can start iterating.
-        topchm.help_copy_impl(NonBlockingHashMap.this,topkvs,true);
-      }
+      _sskvs = _sskvs0 = _kvs;
       // Warm-up the iterator
       next();
     }
     int length() { return len(_sskvs); }
     Object key(int idx) { return NonBlockingHashMap.key(_sskvs,idx); }
+    // Claimed in a table walked before the current one?
+    private boolean seen( final Object K ) {
+      final int fullhash = hash(NonBlockingHashMap.this,K);
+      for( Object[] kvs = _sskvs0; kvs != _sskvs; kvs = chm(kvs)._newkvs )
+        if( has_key(NonBlockingHashMap.this,kvs,K,fullhash) )
+          return true;
+      return false;
+    }
+    // Value for the key in slot idx: the slot itself holds the current value
+    // until it is primed for a copy, then ask an official 'get'.  Records
+    // where the value came from, for 'remove'.
+    private TypeV val( final int idx, final Object K ) {
+      final Object V = NonBlockingHashMap.val(_sskvs,idx);
+      if( V instanceof Prime ) { _nextkvs = null; return get(K); }
+      final Object[] newkvs = chm(_sskvs)._newkvs; // VOLATILE READ before returning V
+      _nextkvs = _sskvs;  _nextidx = idx;
+      return V == TOMBSTONE ? null : (TypeV)V;
+    }
     private int _idx;              // Varies from 0-keys.length
     private Object _nextK, _prevK; // Last 2 keys found
     private TypeV  _nextV, _prevV; // Last 2 values found
+    private Object[] _nextkvs, _prevkvs; // Tables the last 2 values were read from, or null
+    private int _nextidx, _previdx;      // Slots the last 2 values were read from
+    private Prime _box;            // Reused to freeze slots mid-copy, made on first use
     public boolean hasNext() { return _nextV != null; }
     public TypeV next() {
       // 'next' actually knows what the next value will be - it had to
@@ -1116,21 +1698,36 @@ public class NonBlockingHashMap<TypeK, TypeV>
       if( _idx != 0 && _nextV == null ) throw new NoSuchElementException();
       _prevK = _nextK;          // This will become the previous key
       _prevV = _nextV;          // This will become the previous value
+      _prevkvs = _nextkvs;  _previdx = _nextidx;
       _nextV = null;            // We have no more next-key
       // Attempt to set <_nextK,_nextV> to the next K,V pair.
       // _nextV is the trigger: stop searching when it is != null
-      while( _idx<length() ) {  // Scan array
-        _nextK = key(_idx++); // Get a key that definitely is in the set (for the moment!)
-        if( _nextK != null && // Found something?
-            _nextK != TOMBSTONE &&
-            (_nextV=get(_nextK)) != null )
-          break;                // Got it!  _nextK is a valid Key
-      }                         // Else keep scanning
-      return _prevV;            // Return current value.
+      while( true ) {
+        while( _idx<length() ) {  // Scan array
+          final CHM chm = chm(_sskvs);
+          if( chm._newkvs != null ) { // Copy in progress?  Freeze the slot first
+            if( _box == null ) _box = new Prime(null);
+            chm.copy_slot_and_check(NonBlockingHashMap.this,_sskvs,_idx,null,_box);
+          }
+          final int idx = _idx++;
+          _nextK = key(idx);    // Get a key that definitely is in the set (for the moment!)
+          if( _nextK != null && // Found something?
+              _nextK != TOMBSTONE &&
+              (_sskvs == _sskvs0 || !seen(_nextK)) && // Not visited in an older table?
+              (_nextV=val(idx,_nextK)) != null )
+            return _prevV;      // Got it!  _nextK is a valid Key
+        }                       // Else keep scanning
+        // Done with this table; move on to the next one, if any
+        final Object[] newkvs = chm(_sskvs)._newkvs;
+        if( newkvs == null ) return _prevV; // No more keys
+        _sskvs = newkvs;
+        _idx = 0;
+      }
     }
     public void remove() {
       if( _prevV == null ) throw new IllegalStateException();
-      putIfMatch( NonBlockingHashMap.this, _sskvs, _prevK, TOMBSTONE, _prevV );
+      if( _prevkvs == null || !remove_slot(_prevkvs,_previdx,_prevV) )
+        putIfMatch( NonBlockingHashMap.this, _kvs, _prevK, TOMBSTONE, _prevV );
       _prevV = null;
     }
 
@@ -1138,6 +1735,91 @@ public class NonBlockingHashMap<TypeK, TypeV>
     public boolean hasMoreElements() { return hasNext(); }
   }
 
+  // --- Spliterator --------------------------------------------------------
+  // Splits a snapshot of the K/V array by slot range, so parallel streams
+  // over the views get balanced chunks without first walking the table.
+  // Live values are read straight out of the snapshot; only a slot caught
+  // mid-copy by a later resize (a Prime) costs an official 'get'.  Weakly
+  // consistent, just like the iterators.
+  private class SnapshotS<T> implements Spliterator<T> {
+    final Object[] _sskvs;
+    final BiFunction<TypeK,TypeV,T> _f; // Makes an element from a K,V pair
+    final int _chars;
+    int _idx;                   // Next slot to look at
+    final int _fence;           // One past the last slot to look at
+    long _est;                  // Size estimate
+    SnapshotS( BiFunction<TypeK,TypeV,T> f, int chars ) {
+      this(snapshot(),f,chars,0,-1,-1);
+    }
+    SnapshotS( Object[] sskvs, BiFunction<TypeK,TypeV,T> f, int chars, int idx, int fence, long est ) {
+      _sskvs = sskvs;  _f = f;  _chars = chars;
+      _idx = idx;
+      _fence = fence < 0 ? len(sskvs) : fence;
+      _est = est < 0 ? chm(sskvs).size() : est;
+    }
+    public Spliterator<T> trySplit() {
+      final int lo = _idx, mid = (lo+_fence)>>>1;
+      if( mid <= lo ) return null;
+      _idx = mid;
+      return new SnapshotS<T>(_sskvs,_f,_chars,lo,mid,_est >>>= 1);
+    }
+    public boolean tryAdvance( Consumer<? super T> action ) {
+      if( action == null ) throw new NullPointerException();
+      while( _idx < _fence ) {
+        final T t = at(_idx++);
+        if( t != null ) { action.accept(t); return true; }
+      }
+      return false;
+    }
+    public void forEachRemaining( Consumer<? super T> action ) {
+      if( action == null ) throw new NullPointerException();
+      final int fence = _fence;
+      for( int idx=_idx; idx<fence; idx++ ) {
+        final T t = at(idx);
+        if( t != null ) action.accept(t);
+      }
+      _idx = fence;
+    }
+    // Element for slot idx, or null if the slot holds no live mapping
+    private T at( int idx ) {
+      final Object K = key(_sskvs,idx);
+      final Object V = live_val(_sskvs,idx,K);
+      return V == null ? null : _f.apply((TypeK)K,(TypeV)V);
+    }
+    public long estimateSize() { return _est; }
+    public int characteristics() { return _chars; }
+  }
+
+  // Live value for slot idx of a snapshot holding key K, or null if the slot
+  // holds no live mapping.  A slot caught mid-copy by a later resize (a
+  // Prime) costs an official 'get'.
+  private final Object live_val( final Object[] sskvs, final int idx, final Object K ) {
+    if( K == null || K == TOMBSTONE ) return null;
+    Object V = val(sskvs,idx);
+    final Object[] newkvs = chm(sskvs)._newkvs; // VOLATILE READ before using K,V
+    if( V instanceof Prime ) V = get(K); // Mid-copy: ask the official way
+    return V == TOMBSTONE ? null : V;
+  }
+
+  // Visit n slots of the top-level table, starting at slot 'start' and
+  // wrapping around, handing each live K/V pair to f.  This is the eviction
+  // hand for NonBlockingCache: it neither helps nor waits on a table copy,
+  // and slots caught mid-copy are simply skipped.  Returns the table length.
+  @SuppressWarnings("unchecked")
+  final int sweep( final long start, final int n, final BiConsumer<? super TypeK,? super TypeV> f ) {
+    final Object[] kvs = _kvs;
+    final int len = len(kvs);
+    for( int j=0; j<n; j++ ) {
+      final int idx = (int)((start+j) & (len-1));
+      final Object K = key(kvs,idx);
+      if( K == null || K == TOMBSTONE ) continue;
+      final Object V = val(kvs,idx);
+      if( V == null || V == TOMBSTONE || V instanceof Prime ) continue;
+      f.accept((TypeK)K,(TypeV)V);
+    }
+    return len;
+  }
+
   /** Returns an enumeration of the values in this table.
    *  @return an enumeration of the values in this table
    *  @see #values()  */
@@ -1164,6 +1846,13 @@ public class NonBlockingHashMap<TypeK, TypeV>
       @Override public int     size    (          ) { return NonBlockingHashMap.this.size         ( ); }
       @Override public boolean contains( Object v ) { return NonBlockingHashMap.this.containsValue(v); }
       @Override public Iterator<TypeV> iterator()   { return new SnapshotV(); }
+      @Override public boolean removeIf( final Predicate<? super TypeV> filter ) {
+        if( filter == null ) throw new NullPointerException();
+        return NonBlockingHashMap.this.removeIf((k,v) -> filter.test(v));
+      }
+      @Override public Spliterator<TypeV> spliterator() {
+        return new SnapshotS<TypeV>((k,v) -> v, Spliterator.CONCURRENT | Spliterator.NONNULL);
+      }
     };
   }
 
@@ -1204,6 +1893,13 @@ public class NonBlockingHashMap<TypeK, TypeV>
       @Override public boolean contains( Object k ) { return NonBlockingHashMap.this.containsKey(k); }
       @Override public boolean remove  ( Object k ) { return NonBlockingHashMap.this.remove  (k) != null; }
       @Override public Iterator<TypeK> iterator()   { return new SnapshotK(); }
+      @Override public boolean removeIf( final Predicate<? super TypeK> filter ) {
+        if( filter == null ) throw new NullPointerException();
+        return NonBlockingHashMap.this.removeIf((k,v) -> filter.test(k));
+      }
+      @Override public Spliterator<TypeK> spliterator() {
+        return new SnapshotS<TypeK>((k,v) -> k, Spliterator.CONCURRENT | Spliterator.DISTINCT | Spliterator.NONNULL);
+      }
     };
   }
 
@@ -1265,9 +1961,251 @@ public class NonBlockingHashMap<TypeK, TypeV>
         return v.equals(e.getValue());
       }
       @Override public Iterator<Map.Entry<TypeK,TypeV>> iterator() { return new SnapshotE(); }
+      @Override public boolean removeIf( final Predicate<? super Map.Entry<TypeK,TypeV>> filter ) {
+        if( filter == null ) throw new NullPointerException();
+        return NonBlockingHashMap.this.removeIf((k,v) -> filter.test(new NBHMEntry(k,v)));
+      }
+      @Override public Spliterator<Map.Entry<TypeK,TypeV>> spliterator() {
+        return new SnapshotS<Map.Entry<TypeK,TypeV>>((k,v) -> new NBHMEntry(k,v), Spliterator.CONCURRENT | Spliterator.DISTINCT | Spliterator.NONNULL);
+      }
     };
   }
 
+  // --- forEach, replaceAll, removeIf -------------------------------------
+  // Sequential walks over a snapshot of the K/V array, reading the slots in
+  // place: no iterator, no Entry and nothing else allocated per element.
+  // Weakly consistent, just like the iterators.  Updates go through the
+  // top-level table, and are conditional on the value the user's function
+  // saw, so racing updates are never silently overwritten.
+
+  /** Performs the given action for each mapping, walking the table in place
+   *  without allocating per element.
+   *  @throws NullPointerException if the action is null */
+  @Override
+  public void forEach( BiConsumer<? super TypeK,? super TypeV> action ) {
+    if( action == null ) throw new NullPointerException();
+    final Object[] sskvs = snapshot();
+    for( int idx=0; idx<len(sskvs); idx++ ) {
+      final Object K = key(sskvs,idx);
+      final Object V = live_val(sskvs,idx,K);
+      if( V != null ) action.accept((TypeK)K,(TypeV)V);
+    }
+  }
+
+  /** Replaces each value with the result of the given function.  Each
+   *  replacement is atomic: if another thread changes the value first, the
+   *  function is applied again to the new value.  Mappings removed
+   *  concurrently stay removed.
+   *  @throws NullPointerException if the function or any value it returns is null */
+  @Override
+  public void replaceAll( BiFunction<? super TypeK,? super TypeV,? extends TypeV> function ) {
+    if( function == null ) throw new NullPointerException();
+    final Object[] sskvs = snapshot();
+    for( int idx=0; idx<len(sskvs); idx++ ) {
+      final Object K = key(sskvs,idx);
+      Object V = live_val(sskvs,idx,K);
+      while( V != null ) {
+        final Object W = function.apply((TypeK)K,(TypeV)V);
+        if( W == null ) throw new NullPointerException();
+        final Object res = putIfMatch(this,_kvs,K,W,V);
+        if( res == V || V.equals(res) ) break; // Replaced
+        V = res == TOMBSTONE ? null : res;     // Lost a race; retry unless removed
+      }
+    }
+  }
+
+  /** Removes all of the mappings satisfying the given predicate.  Each
+   *  removal is atomic and only happens if the value is still the one the
+   *  predicate was tested against.
+   *  @return <tt>true</tt> if any mappings were removed
+   *  @throws NullPointerException if the predicate is null */
+  public boolean removeIf( BiPredicate<? super TypeK,? super TypeV> filter ) {
+    if( filter == null ) throw new NullPointerException();
+    boolean removed = false;
+    final Object[] sskvs = snapshot();
+    for( int idx=0; idx<len(sskvs); idx++ ) {
+      final Object K = key(sskvs,idx);
+      final Object V = live_val(sskvs,idx,K);
+      if( V != null && filter.test((TypeK)K,(TypeV)V) ) {
+        final Object res = putIfMatch(this,_kvs,K,TOMBSTONE,V);
+        if( res == V || V.equals(res) ) removed = true;
+      }
+    }
+    return removed;
+  }
+
+  // --- Bulk operations -----------------------------------------------------
+  // Bulk traversals walk a snapshot of the K/V array directly, slot range by
+  // slot range, without iterators or Entry objects.  Like the iterators they
+  // are weakly consistent.  When the map holds at least 'parallelismThreshold'
+  // mappings the slot range is split into ForkJoin tasks on the common pool,
+  // up to 4 per pool thread; otherwise the calling thread does all the work.
+  // A threshold of Long.MAX_VALUE always runs sequentially and a threshold of
+  // 1 gives the most parallelism, just as for ConcurrentHashMap.
+
+  /** Performs the given action for each (key, value).
+   *  @param parallelismThreshold the (estimated) number of mappings needed
+   *         for this operation to be executed in parallel
+   *  @param action the action
+   *  @throws NullPointerException if the action is null */
+  public void forEach( long parallelismThreshold, final BiConsumer<? super TypeK,? super TypeV> action ) {
+    if( action == null ) throw new NullPointerException();
+    bulk(parallelismThreshold,(k,v) -> { action.accept(k,v); return null; },null,null);
+  }
+
+  /** Returns a non-null result from applying the given search function on
+   *  each (key, value), or null if none.  Upon success, further element
+   *  processing is suppressed and the results of any other parallel
+   *  invocations of the search function are ignored.
+   *  @param parallelismThreshold the (estimated) number of mappings needed
+   *         for this operation to be executed in parallel
+   *  @param searchFunction a function returning a non-null result on
+   *         success, else null
+   *  @return a non-null result from applying the given search function on
+   *         each (key, value), or null if none
+   *  @throws NullPointerException if the function is null */
+  public <U> U search( long parallelismThreshold, BiFunction<? super TypeK,? super TypeV,? extends U> searchFunction ) {
+    if( searchFunction == null ) throw new NullPointerException();
+    final AtomicReference<U> found = new AtomicReference<U>();
+    bulk(parallelismThreshold,searchFunction,null,found);
+    return found.get();
+  }
+
+  /** Returns the result of accumulating the given transformation of all
+   *  (key, value) pairs using the given reducer to combine values, or null
+   *  if none.
+   *  @param parallelismThreshold the (estimated) number of mappings needed
+   *         for this operation to be executed in parallel
+   *  @param transformer a function returning the transformation for an
+   *         element, or null if there is no transformation (in which case it
+   *         is not combined)
+   *  @param reducer a commutative associative combining function
+   *  @return the result of accumulating the given transformation of all
+   *         (key, value) pairs
+   *  @throws NullPointerException if the transformer or reducer is null */
+  public <U> U reduce( long parallelismThreshold, BiFunction<? super TypeK,? super TypeV,? extends U> transformer,
+                       BiFunction<? super U,? super U,? extends U> reducer ) {
+    if( transformer == null || reducer == null ) throw new NullPointerException();
+    return bulk(parallelismThreshold,transformer,reducer,null);
+  }
+
+  /** Returns the result of accumulating all values using the given reducer
+   *  to combine values, or null if none.
+   *  @param parallelismThreshold the (estimated) number of mappings needed
+   *         for this operation to be executed in parallel
+   *  @param reducer a commutative associative combining function
+   *  @return the result of accumulating all values
+   *  @throws NullPointerException if the reducer is null */
+  public TypeV reduceValues( long parallelismThreshold, BiFunction<? super TypeV,? super TypeV,? extends TypeV> reducer ) {
+    if( reducer == null ) throw new NullPointerException();
+    return bulk(parallelismThreshold,(k,v) -> v,reducer,null);
+  }
+
+  /** Returns the result of accumulating the given transformation of all
+   *  (key, value) pairs using the given reducer to combine values, and the
+   *  given basis as an identity value.  Elements are accumulated as
+   *  primitive longs, without boxing.
+   *  @param parallelismThreshold the (estimated) number of mappings needed
+   *         for this operation to be executed in parallel
+   *  @param transformer a function returning the transformation for an element
+   *  @param basis the identity (initial default value) for the reduction
+   *  @param reducer a commutative associative combining function
+   *  @return the result of accumulating the given transformation of all
+   *         (key, value) pairs
+   *  @throws NullPointerException if the transformer or reducer is null */
+  public long reduceToLong( long parallelismThreshold, ToLongBiFunction<? super TypeK,? super TypeV> transformer,
+                            long basis, LongBinaryOperator reducer ) {
+    if( transformer == null || reducer == null ) throw new NullPointerException();
+    final Object[] sskvs = snapshot();
+    final LongBulkTask t = new LongBulkTask(sskvs,0,len(sskvs),grain(parallelismThreshold,sskvs),transformer,basis,reducer);
+    return t._grain == len(sskvs) ? t.compute() : ForkJoinPool.commonPool().invoke(t);
+  }
+
+  // Run a BulkTask over a fresh snapshot, in parallel if worth it
+  private final <R> R bulk( long threshold, BiFunction<? super TypeK,? super TypeV,? extends R> f,
+                            BiFunction<? super R,? super R,? extends R> r, AtomicReference<R> found ) {
+    final Object[] sskvs = snapshot();
+    final BulkTask<R> t = new BulkTask<R>(sskvs,0,len(sskvs),grain(threshold,sskvs),f,r,found);
+    return t._grain == len(sskvs) ? t.compute() : ForkJoinPool.commonPool().invoke(t);
+  }
+
+  // Slots per task: the whole table if below the threshold, else enough to
+  // make up to 4 tasks per common-pool thread with about 'threshold'
+  // mappings each.
+  private static final int grain( long threshold, Object[] sskvs ) {
+    final int len = len(sskvs);
+    final long sz = chm(sskvs).size();
+    if( threshold == Long.MAX_VALUE || sz < threshold ) return len;
+    final long tasks = Math.min(sz/Math.max(threshold,1),ForkJoinPool.getCommonPoolParallelism()<<2);
+    return tasks <= 1 ? len : (int)Math.max(1,len/tasks);
+  }
+
+  // Fork/join over the live K/V pairs in slots [lo,hi) of a snapshot.  Each
+  // pair is fed to 'f' and non-null results are folded with 'r'.  For a
+  // search, 'found' is set by the first non-null result, which stops all
+  // the other tasks early.
+  private final class BulkTask<R> extends RecursiveTask<R> {
+    final Object[] _sskvs;
+    final int _lo, _hi, _grain;
+    final BiFunction<? super TypeK,? super TypeV,? extends R> _f;
+    final BiFunction<? super R,? super R,? extends R> _r;
+    final AtomicReference<R> _found;
+    BulkTask( Object[] sskvs, int lo, int hi, int grain, BiFunction<? super TypeK,? super TypeV,? extends R> f,
+              BiFunction<? super R,? super R,? extends R> r, AtomicReference<R> found ) {
+      _sskvs = sskvs;  _lo = lo;  _hi = hi;  _grain = grain;  _f = f;  _r = r;  _found = found;
+    }
+    protected R compute() {
+      if( _hi-_lo > _grain ) {  // Split and fork the left half
+        final int mid = (_lo+_hi)>>>1;
+        final BulkTask<R> left = new BulkTask<R>(_sskvs,_lo,mid,_grain,_f,_r,_found);
+        left.fork();
+        return fold(new BulkTask<R>(_sskvs,mid,_hi,_grain,_f,_r,_found).compute(),left.join());
+      }
+      R acc = null;
+      for( int idx=_lo; idx<_hi; idx++ ) {
+        if( _found != null && _found.get() != null ) return null; // Somebody found it
+        final Object K = key(_sskvs,idx);
+        final Object V = live_val(_sskvs,idx,K);
+        if( V == null ) continue;
+        final R x = _f.apply((TypeK)K,(TypeV)V);
+        if( x == null ) continue;
+        if( _found != null ) { _found.compareAndSet(null,x); return null; }
+        acc = fold(acc,x);
+      }
+      return acc;
+    }
+    private R fold( R a, R b ) { return a == null ? b : (b == null || _r == null ? a : _r.apply(a,b)); }
+  }
+
+  // Same as BulkTask, accumulating into a primitive long
+  private final class LongBulkTask extends RecursiveTask<Long> {
+    final Object[] _sskvs;
+    final int _lo, _hi, _grain;
+    final ToLongBiFunction<? super TypeK,? super TypeV> _f;
+    final long _basis;
+    final LongBinaryOperator _r;
+    LongBulkTask( Object[] sskvs, int lo, int hi, int grain, ToLongBiFunction<? super TypeK,? super TypeV> f,
+                  long basis, LongBinaryOperator r ) {
+      _sskvs = sskvs;  _lo = lo;  _hi = hi;  _grain = grain;  _f = f;  _basis = basis;  _r = r;
+    }
+    protected Long compute() {
+      if( _hi-_lo > _grain ) {  // Split and fork the left half
+        final int mid = (_lo+_hi)>>>1;
+        final LongBulkTask left = new LongBulkTask(_sskvs,_lo,mid,_grain,_f,_basis,_r);
+        left.fork();
+        final long right = new LongBulkTask(_sskvs,mid,_hi,_grain,_f,_basis,_r).compute();
+        return _r.applyAsLong(right,left.join());
+      }
+      long acc = _basis;
+      for( int idx=_lo; idx<_hi; idx++ ) {
+        final Object K = key(_sskvs,idx);
+        final Object V = live_val(_sskvs,idx,K);
+        if( V != null ) acc = _r.applyAsLong(acc,_f.applyAsLong((TypeK)K,(TypeV)V));
+      }
+      return acc;
+    }
+  }
+
   // --- writeObject -------------------------------------------------------
   // Write a NBHM to a stream
   private void writeObject(java.io.ObjectOutputStream s) throws IOException  {
@@ -1294,4 +2232,78 @@ public class NonBlockingHashMap<TypeK, TypeV>
     }
   }
 
+  // --- exportTo / importFrom ---------------------------------------------
+  // A compact bulk format, much faster than Serializable: a magic number and
+  // the (estimated) size, then a 1 byte before each K,V pair and a 0 byte at
+  // the end.  The pairs stream straight out of a snapshot of the table with
+  // no per-key 'get', and the size lets the importer presize its table.
+  private static final int EXPORT_MAGIC = 0x4E42484D; // "NBHM"
+
+  /** Write all mappings to <code>out</code> in a compact binary format, read
+   *  back with {@link #importFrom}.  Mappings are streamed from a snapshot
+   *  of the table without any per-key lookups.  Concurrent updates may or
+   *  may not be included, as for iteration.
+   *  @param out destination; buffer it, as many small writes are made
+   *  @param kc codec for the keys
+   *  @param vc codec for the values
+   *  @return number of mappings written  */
+  public long exportTo( final DataOutput out, final Codec<? super TypeK> kc, final Codec<? super TypeV> vc ) throws IOException {
+    final Object[] sskvs = snapshot();
+    out.writeInt(EXPORT_MAGIC);
+    out.writeLong(chm(sskvs).size());
+    long cnt = 0;
+    for( int idx=0; idx<len(sskvs); idx++ ) {
+      final Object K = key(sskvs,idx);
+      final Object V = live_val(sskvs,idx,K);
+      if( V == null ) continue;
+      out.writeByte(1);
+      kc.write(out,(TypeK)K);
+      vc.write(out,(TypeV)V);
+      cnt++;
+    }
+    out.writeByte(0);
+    return cnt;
+  }
+
+  /** {@link #exportTo(DataOutput,Codec,Codec)} into a channel, through a
+   *  64K buffer.  The channel is flushed but not closed. */
+  public long exportTo( final WritableByteChannel ch, final Codec<? super TypeK> kc, final Codec<? super TypeV> vc ) throws IOException {
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch),1<<16));
+    final long cnt = exportTo(out,kc,vc);
+    out.flush();
+    return cnt;
+  }
+
+  /** Read a map written by {@link #exportTo}.  The table is presized from
+   *  the exported size, so loading it takes no resizes.
+   *  @param in source; buffer it, as many small reads are made
+   *  @param kc codec for the keys
+   *  @param vc codec for the values
+   *  @return a new map holding the mappings read  */
+  public static <K,V> NonBlockingHashMap<K,V> importFrom( final DataInput in, final Codec<K> kc, final Codec<V> vc ) throws IOException {
+    if( in.readInt() != EXPORT_MAGIC ) throw new StreamCorruptedException("not a NonBlockingHashMap export");
+    final long sz = in.readLong();
+    if( sz < 0 ) throw new StreamCorruptedException("bad size "+sz);
+    final NonBlockingHashMap<K,V> map = new NonBlockingHashMap<K,V>();
+    // Presize past the 1M cap of the constructor; only segment 0 is
+    // allocated up front anyways
+    int log2;
+    for( log2=MIN_SIZE_LOG; (1L<<log2) < (sz<<2) && log2 < MAX_SIZE_LOG; log2++ ) ;
+    map._kvs = new_kvs(new Counter(),log2);
+    byte b;
+    while( (b=in.readByte()) == 1 ) {
+      final K key = kc.read(in);
+      map.put(key,vc.read(in));
+    }
+    if( b != 0 ) throw new StreamCorruptedException("bad entry marker "+b);
+    return map;
+  }
+
+  /** {@link #importFrom(DataInput,Codec,Codec)} from a channel, through a
+   *  64K buffer.  The channel is not closed, but may have been read past the
+   *  end of the export. */
+  public static <K,V> NonBlockingHashMap<K,V> importFrom( final ReadableByteChannel ch, final Codec<K> kc, final Codec<V> vc ) throws IOException {
+    return importFrom(new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch),1<<16)),kc,vc);
+  }
+
 } // End NonBlockingHashMap class
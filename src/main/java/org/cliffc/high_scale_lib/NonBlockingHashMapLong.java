@@ -6,13 +6,33 @@
 package org.cliffc.high_scale_lib;
 import sun.misc.Unsafe;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
 
 /**
  * A lock-free alternate implementation of {@link java.util.concurrent.ConcurrentHashMap}
@@ -117,8 +137,11 @@ public class NonBlockingHashMapLong<TypeV>
   }
 
   // --- Adding a 'prime' bit onto Values via wrapping with a junk wrapper class
+  // A table copy reuses one wrapper for slot after slot (see copy_slot), so
+  // the wrapped value is not final: it only belongs to a slot while the
+  // wrapper is still in that slot.
   private static final class Prime {
-    final Object _V;
+    volatile Object _V;
     Prime( Object V ) { _V = V; }
     static Object unbox( Object V ) { return V instanceof Prime ? ((Prime)V)._V : V;  }
   }
@@ -197,6 +220,29 @@ public class NonBlockingHashMapLong<TypeV>
    *  or since the table was created.   */
   public long reprobes() { long r = _reprobes.get(); _reprobes = new Counter(); return r; }
 
+  // Opt-in event counts; null when disabled, so the hot paths pay only a
+  // null check.  Volatile so an enable is seen promptly and a new Recorder
+  // is published safely; a thread may still count a little late or early
+  // around an enable or disable.
+  private transient volatile MapStats.Recorder _stats;
+  /** Enable or disable gathering of the event counts reported by {@link
+   *  #stats}.  Turning them on starts the counts from zero; turning them
+   *  off drops them.
+   *  @param on true to gather statistics  */
+  public void setStatsEnabled( final boolean on ) {
+    _stats = on ? (_stats == null ? new MapStats.Recorder() : _stats) : null;
+  }
+  /** @return true if event counts are being gathered */
+  public boolean isStatsEnabled() { return _stats != null; }
+  /** Returns a snapshot of the table's health figures.  Event counts are
+   *  zero unless enabled with {@link #setStatsEnabled}.
+   *  @return a new {@link MapStats} snapshot */
+  public MapStats stats() {
+    final CHM chm = _chm;
+    final int one = _val_1==TOMBSTONE ? 0 : 1; // Key 0 lives outside the table
+    return new MapStats(chm.size()+one,chm.slots()+one,chm._keys.length,_stats);
+  }
+
 
   // --- reprobe_limit -----------------------------------------------------
   // Heuristic to decide if we have reprobed toooo many times.  Running over
@@ -450,6 +496,20 @@ public class NonBlockingHashMapLong<TypeV>
     private static final AtomicLongFieldUpdater<CHM> _resizerUpdater =
       AtomicLongFieldUpdater.newUpdater(CHM.class, "_resizers");
 
+    // Longest reprobe any key was claimed at.  A copy fills free slots with
+    // fake keys, so a fully copied table has no free slot to end a search
+    // for a missing key; this bounds the search instead (see has_key).  Only
+    // ever raised, and raised before the claiming CAS.
+    volatile int _max_reprobe;
+    private static final AtomicIntegerFieldUpdater<CHM> _maxReprobeUpdater =
+      AtomicIntegerFieldUpdater.newUpdater(CHM.class, "_max_reprobe");
+    private final void raise_max_reprobe( final int reprobe_cnt ) {
+      int max;
+      while( reprobe_cnt > (max=_max_reprobe) &&
+             !_maxReprobeUpdater.compareAndSet(this,max,reprobe_cnt) )
+        ;
+    }
+
     // --- key,val -------------------------------------------------------------
     // Access K,V for a given idx
     private final boolean CAS_key( int idx, long   old, long   key ) {
@@ -534,11 +594,41 @@ public class NonBlockingHashMapLong<TypeV>
           return _newchm == null // Table copy in progress?
             ? null               // Nope!  A clear miss
             : copy_slot_and_check(idx,key).get_impl(key); // Retry in the new table
-        
+
+        final MapStats.Recorder st = _nbhml._stats;
+        if( st != null ) st._getReprobes.add(1);
         idx = (idx+1)&(len-1);    // Reprobe by 1!  (could now prefetch)
       }
     }
+
+    // --- has_key -----------------------------------------------------------
+    // Is the key claimed in this one table, live or dead?  Same probe as
+    // get_impl, but never looks at values nor moves on to a newer table, and
+    // never looks further than any key was ever claimed.
+    private final boolean has_key( final long key ) {
+      final int len = _keys.length;
+      final int max = _max_reprobe;
+      int idx = (int)(key & (len-1)); // First key hash
+      int reprobe_cnt=0;
+      while( true ) {
+        final long K = _keys[idx];
+        if( K == NO_KEY ) return false; // A clear miss
+        if( K == key ) return true;
+        if( ++reprobe_cnt > max ) return false;
+        idx = (idx+1)&(len-1);
+      }
+    }
   
+    // --- remove_slot -------------------------------------------------------
+    // Remove the mapping in slot idx, if the slot still holds exactly V.  No
+    // probing; false if the slot moved on (a new value, or primed for a
+    // copy), and the caller falls back to a keyed remove.
+    private final boolean remove_slot( final int idx, final Object V ) {
+      if( !CAS_val(idx,V,TOMBSTONE) ) return false;
+      _size.add(-1);            // Adjust sizes, same as putIfMatch
+      return true;
+    }
+
     // --- putIfMatch ---------------------------------------------------------
     // Put, Remove, PutIfAbsent, etc.  Return the old value.  If the returned
     // value is equal to expVal (or expVal is NO_MATCH_OLD) then the put can
@@ -565,6 +655,7 @@ public class NonBlockingHashMapLong<TypeV>
           // this table.  No need to put a Tombstone - the Key is not here!
           if( putval == TOMBSTONE ) return putval; // Not-now & never-been in this table
           // Claim the zero key-slot
+          if( reprobe_cnt > _max_reprobe ) raise_max_reprobe(reprobe_cnt);
           if( CAS_key(idx, NO_KEY, key) ) { // Claim slot for Key
             _slots.add(1);      // Raise key-slots-used count
             break;              // Got it!
@@ -584,6 +675,8 @@ public class NonBlockingHashMapLong<TypeV>
           // by not allowing Keys to ever change.
           K = _keys[idx];       // CAS failed, get updated value
           assert K != NO_KEY ;  // If keys[idx] is NO_KEY, CAS shoulda worked
+          final MapStats.Recorder st = _nbhml._stats;
+          if( st != null ) st._casRetries.add(1);
         }
         // Key slot was not null, there exists a Key here
         if( K == key )
@@ -591,7 +684,8 @@ public class NonBlockingHashMapLong<TypeV>
       
         // get and put must have the same key lookup logic!  Lest 'get' give
         // up looking too soon.  
-        //topmap._reprobes.add(1);
+        final MapStats.Recorder st = _nbhml._stats;
+        if( st != null ) st._putReprobes.add(1);
         if( ++reprobe_cnt >= reprobe_limit(len) ) {
           // We simply must have a new table to do a 'put'.  At this point a
           // 'get' will also go to the new table (if any).  We do not need
@@ -652,6 +746,8 @@ public class NonBlockingHashMapLong<TypeV>
           return (V==null && expVal!=null) ? TOMBSTONE : V;
       } 
         // Else CAS failed
+        final MapStats.Recorder st = _nbhml._stats;
+        if( st != null ) st._casRetries.add(1);
         V = _vals[idx];         // Get new value
         // If a Prime'd value got installed, we need to re-run the put on the
         // new table.  Otherwise we lost the CAS to another racing put.
@@ -684,7 +780,16 @@ public class NonBlockingHashMapLong<TypeV>
     // Since this routine has a fast cutout for copy-already-started, callers
     // MUST 'help_copy' lest we have a path which forever runs through
     // 'resize' only to discover a copy-in-progress which never progresses.
+    // With statistics on, the time a caller spends starting a copy (sizing,
+    // throttled, allocating) is recorded as a pause.
     private final CHM resize() {
+      final MapStats.Recorder st = _nbhml._stats;
+      if( st == null || _newchm != null ) return resize_impl();
+      final long t0 = System.nanoTime();
+      try { return resize_impl(); }
+      finally { st.pause(System.nanoTime()-t0); }
+    }
+    private final CHM resize_impl() {
       // Check for resize already in progress, probably triggered by another thread
       CHM newchm = _newchm;     // VOLATILE READ
       if( newchm != null )      // See if resize is already in progress
@@ -711,16 +816,25 @@ public class NonBlockingHashMapLong<TypeV>
 
       // Last (re)size operation was very recent?  Then double again; slows
       // down resize operations for tables subject to a high key churn rate.
+      // A mostly-empty table is not doubled: it holds steady instead, so
+      // churn alone cannot grow a drained table without bound.
       long tm = System.currentTimeMillis();
       long q=0;
+      boolean recent = tm <= _nbhml._last_resize_milli+10000; // Recent resize (less than 10 sec ago)
+      boolean sparse = sz < (oldlen>>4); // Less than 1/16th of the table is live?
       if( newsz <= oldlen &&    // New table would shrink or hold steady?
-          tm <= _nbhml._last_resize_milli+10000 && // Recent resize (less than 1 sec ago)
+          recent && !sparse &&
           //(q=_slots.estimate_sum()) >= (sz<<1) ) // 1/2 of keys are dead?
           true )
         newsz = oldlen<<1;      // Double the existing size
 
-      // Do not shrink, ever
-      if( newsz < oldlen ) newsz = oldlen;
+      // Shrink a mostly-empty table, but only if it has not been resized
+      // recently.  The new table starts out 1/16th to 1/8th full, well clear
+      // of both the grow and the shrink thresholds, so a table near either
+      // threshold does not flip back and forth.
+      if( sparse && !recent ) newsz = sz<<3;
+      // Otherwise do not shrink
+      else if( newsz < oldlen ) newsz = oldlen;
       //System.out.println("old="+oldlen+" new="+newsz+" size()="+sz+" est_slots()="+q+" millis="+(tm-_nbhml._last_resize_milli));
 
       // Convert to power-of-2
@@ -738,15 +852,13 @@ public class NonBlockingHashMapLong<TypeV>
       // 2x but does not screw up the heuristic very much.
       int megs = ((((1<<log2)<<1)+4)<<3/*word to bytes*/)>>20/*megs*/;
       if( r >= 2 && megs > 0 ) { // Already 2 guys trying; wait and see
-        newchm = _newchm;        // Between dorking around, another thread did it
-        if( newchm != null )     // See if resize is already in progress
+        // Spin politely (never sleep) until the new table is published, or
+        // for up to 8*megs msec.
+        final long deadline = System.nanoTime() + 8L*megs*1000000L;
+        while( (newchm=_newchm) == null && System.nanoTime() - deadline < 0 )
+          Thread.yield();
+        if( newchm != null )     // Resize already in progress
           return newchm;         // Use the new table already
-        // TODO - use a wait with timeout, so we'll wakeup as soon as the new table
-        // is ready, or after the timeout in any case.
-        //synchronized( this ) { wait(8*megs); }         // Timeout - we always wakeup
-        // For now, sleep a tad and see if the 2 guys already trying to make
-        // the table actually get around to making it happen.
-        try { Thread.sleep(8*megs); } catch( Exception e ) { }
       }
       // Last check, since the 'new' below is expensive and there is a chance
       // that another thread slipped in a new thread while we ran the heuristic.
@@ -762,8 +874,13 @@ public class NonBlockingHashMapLong<TypeV>
         return _newchm;         // Use the new table already
 
       // The new table must be CAS'd in so only 1 winner amongst duplicate
-      // racing resizing threads.  Extra CHM's will be GC'd.
+      // racing resizing threads.  Extra CHM's will be GC'd.  The copy's start
+      // is stamped on the new table before it is published, so whichever
+      // thread promotes it sees the stamp.
+      if( _nbhml._stats != null ) newchm._copyStartNanos = System.nanoTime();
+      if( HighScaleEvents.ON ) newchm._jfr = HighScaleEvents.promotion_begin(_nbhml,_keys.length,newchm._keys.length);
       if( CAS_newchm( newchm ) ) { // NOW a resize-is-in-progress!
+        if( HighScaleEvents.ON ) HighScaleEvents.resize_start(_nbhml,_keys.length,newchm._keys.length,_size.estimate_get());
         //notifyAll();            // Wake up any sleepers
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Resize from "+oldlen+" to "+(1<<log2)+" and had "+(_resizers-1)+" extras" );
@@ -774,6 +891,12 @@ public class NonBlockingHashMapLong<TypeV>
     }
 
 
+    // When the copy into this table began, if statistics were on; zero
+    // otherwise.  Set before the table is published, never changed after.
+    long _copyStartNanos;
+    // The JFR promotion event begun with the copy into this table, if recording
+    Object _jfr;
+
     // The next part of the table to copy.  It monotonically transits from zero
     // to _keys.length.  Visitors to the table can claim 'work chunks' by
     // CAS'ing this field up, then copying the indicated indices from the old
@@ -795,7 +918,16 @@ public class NonBlockingHashMapLong<TypeV>
     // Help along an existing resize operation.  We hope its the top-level
     // copy (it was when we started) but this CHM might have been promoted out
     // of the top position. 
+    // With statistics on, the time a caller is drafted into copying is
+    // recorded as a pause.
     private final void help_copy_impl( final boolean copy_all ) {
+      final MapStats.Recorder st = _nbhml._stats;
+      if( st == null ) { help_copy_work(copy_all); return; }
+      final long t0 = System.nanoTime();
+      try { help_copy_work(copy_all); }
+      finally { st.pause(System.nanoTime()-t0); }
+    }
+    private final void help_copy_work( final boolean copy_all ) {
       final CHM newchm = _newchm;
       assert newchm != null;    // Already checked by caller
       int oldlen = _keys.length; // Total amount to copy
@@ -804,6 +936,7 @@ public class NonBlockingHashMapLong<TypeV>
       // ---
       int panic_start = -1;
       int copyidx=-9999;            // Fool javac to think it's initialized
+      Prime box = null;             // Reused for every slot we copy
       while( _copyDone < oldlen ) { // Still needing to copy?
         // Carve out a chunk of work.  The counter wraps around so every
         // thread eventually tries to copy every slot repeatedly.
@@ -825,9 +958,10 @@ public class NonBlockingHashMapLong<TypeV>
         }
       
         // We now know what to copy.  Try to copy.
+        if( box == null ) box = new Prime(null);
         int workdone = 0;
         for( int i=0; i<MIN_COPY_WORK; i++ )
-          if( copy_slot((copyidx+i)&(oldlen-1)) ) // Made an oldtable slot go dead?
+          if( copy_slot((copyidx+i)&(oldlen-1),box) ) // Made an oldtable slot go dead?
             workdone++;         // Yes!
         if( workdone > 0 )      // Report work-done occasionally
           copy_check_and_promote( workdone );// See if we can promote
@@ -859,10 +993,15 @@ public class NonBlockingHashMapLong<TypeV>
     // field to retry his operation in the new table, but probably has not
     // read it yet.
     private final CHM copy_slot_and_check( int idx, Object should_help ) {
+      return copy_slot_and_check(idx,should_help,null);
+    }
+    // As above, boxing a live value in 'spare' (see copy_slot) if the caller
+    // has one to reuse, such as an iterator freezing slot after slot.
+    private final CHM copy_slot_and_check( int idx, Object should_help, Prime spare ) {
       // We're only here because the caller saw a Prime, which implies a
       // table-copy is in progress.
       assert _newchm != null;     
-      if( copy_slot(idx) )      // Copy the desired slot
+      if( copy_slot(idx,spare) ) // Copy the desired slot
         copy_check_and_promote(1); // Record the slot copied
       // Generically help along any copy (except if called recursively from a helper)
       if( should_help != null ) _nbhml.help_copy();
@@ -894,6 +1033,14 @@ public class NonBlockingHashMapLong<TypeV>
           // Attempt to promote
           _nbhml.CAS(_chm_offset,this,_newchm) ) {
         _nbhml._last_resize_milli = System.currentTimeMillis();  // Record resize time for next check
+        final MapStats.Recorder st = _nbhml._stats;
+        if( st != null ) {
+          st._resizes.add(1);
+          final long start = _newchm._copyStartNanos;
+          if( start != 0 ) st._copyNanos.add(System.nanoTime()-start);
+        }
+        final Object jfr = _newchm._jfr;
+        if( jfr != null ) HighScaleEvents.resize_done(jfr);
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Promote table "+oldlen+" to "+_newchm._keys.length);
         //System.out.print("_"+oldlen+"]");
@@ -911,7 +1058,14 @@ public class NonBlockingHashMapLong<TypeV>
     // not-null must have been from a copy_slot (or other old-table overwrite)
     // and not from a thread directly writing in the new table.  Thus we can
     // count null-to-not-null transitions in the new table.
-    private boolean copy_slot( int idx ) {
+    //
+    // A live value is boxed in 'spare', if the caller has one, instead of a
+    // fresh Prime: whatever happens, by the time we return the slot holds
+    // TOMBPRIME and 'spare' is free to box the next slot.  So a bulk copy
+    // allocates nothing per slot.  A thread that read the box from this slot
+    // may then find it re-used and holding some other slot's value; it must
+    // check that the box is still in this slot before trusting the value.
+    private boolean copy_slot( int idx, Prime spare ) {
       // Blindly set the key slot from NO_KEY to some key which hashes here,
       // to eagerly stop fresh put's from inserting new values in the old
       // table when the old table is mid-resize.  We don't need to act on the
@@ -926,7 +1080,10 @@ public class NonBlockingHashMapLong<TypeV>
       // Box what we see in the old table, to prevent further updates.
       Object oldval = _vals[idx]; // Read OLD table
       while( !(oldval instanceof Prime) ) {
-        final Prime box = (oldval == null || oldval == TOMBSTONE) ? TOMBPRIME : new Prime(oldval);
+        final Prime box;
+        if( oldval == null || oldval == TOMBSTONE ) box = TOMBPRIME;
+        else if( spare == null ) box = new Prime(oldval);
+        else { box = spare;  spare._V = oldval; }
         if( CAS_val(idx,oldval,box) ) { // CAS down a box'd version of oldval
           // If we made the Value slot hold a TOMBPRIME, then we both
           // prevented further updates here but also the (absent) oldval is
@@ -952,6 +1109,8 @@ public class NonBlockingHashMapLong<TypeV>
       // new table - somebody else should have recorded the null-not_null
       // transition in this copy.
       Object old_unboxed = ((Prime)oldval)._V;
+      if( _vals[idx] != oldval ) // Box moved on, maybe to another slot?
+        return false;           // Then this slot is TOMBPRIME: copy already complete here!
       assert old_unboxed != TOMBSTONE;
       boolean copied_into_new = (_newchm.putIfMatch(key, old_unboxed, null) == null);
 
@@ -969,31 +1128,67 @@ public class NonBlockingHashMapLong<TypeV>
     
 
   // --- Snapshot ------------------------------------------------------------
+  // "Snapshot" a clean view of the table, for iterating over the NBHML.
+  private final CHM snapshot() {
+    while( true ) {             // Verify no table-copy-in-progress
+      final CHM topchm = _chm;
+      if( topchm._newchm == null ) // No table-copy-in-progress
+        // The "linearization point" for the iteration.  Every key in this
+        // table will be visited, but keys added later might be skipped or
+        // even be added to a following table (also not iterated over).
+        return topchm;
+      // Table copy in-progress - so we cannot get a clean iteration.  We
+      // must help finish the table copy before we can start iterating.
+      topchm.help_copy_impl(true);
+    }
+  }
+
+  // Starting an iterator does not wait for an in-progress table copy: it
+  // walks the top-level table as it finds it, then each newer table in turn.
+  // A key found in a newer table is skipped if an older table in the walk
+  // also claims it (a copy's fake keys count too: 'get' on one finds the
+  // real key, if any).  While a table has a newer one we copy each slot
+  // before reading it, so a slot we have walked past can not later claim a
+  // key.  Values are read straight from the slot unless it has been copied,
+  // so walking the table does not re-probe for every key, and
+  // Iterator.remove kills the value in the slot it was read from, falling
+  // back to a keyed remove when that slot has moved on.
   private class SnapshotV implements Iterator<TypeV>, Enumeration<TypeV> {
-    final CHM _sschm;
-    public SnapshotV() { 
-      CHM topchm;
-      while( true ) {           // Verify no table-copy-in-progress
-        topchm = _chm;
-        if( topchm._newchm == null ) // No table-copy-in-progress
-          break; 
-        // Table copy in-progress - so we cannot get a clean iteration.  We
-        // must help finish the table copy before we can start iterating.
-        topchm.help_copy_impl(true);
-      }
-      // The "linearization point" for the iteration.  Every key in this table
-      // will be visited, but keys added later might be skipped or even be
-      // added to a following table (also not iterated over).
-      _sschm = topchm; 
+    CHM _sschm0;                // Top-level table when the iterator was made
+    CHM _sschm;                 // Table being walked
+    public SnapshotV() { reset(); }
+    // Start over from the current top-level table
+    void reset() {
+      _sschm = _sschm0 = _chm;
       // Warm-up the iterator
       _idx = -1;
       next(); 
     }
     int length() { return _sschm._keys.length; }
     long key(final int idx) { return _sschm._keys[idx]; }
+    // Value for the key in slot idx: the slot itself holds the current value
+    // until it is primed for a copy, then ask an official 'get'.
+    // Records where the value came from, for 'remove'.
+    private TypeV val( final int idx, final long K ) {
+      final Object V = _sschm._vals[idx];
+      if( V instanceof Prime ) { _nextchm = null; return get(K); }
+      final CHM newchm = _sschm._newchm; // VOLATILE READ before returning V
+      _nextchm = _sschm;  _nextidx = idx;
+      return V == TOMBSTONE ? null : (TypeV)V;
+    }
+    // Claimed in a table walked before the current one?
+    private boolean seen( final long K ) {
+      for( CHM chm = _sschm0; chm != _sschm; chm = chm._newchm )
+        if( chm.has_key(K) )
+          return true;
+      return false;
+    }
     private int _idx;           // -2 for NO_KEY, -1 for CHECK_NEW_TABLE_LONG, 0-keys.length
     private long  _nextK, _prevK; // Last 2 keys found
     private TypeV _nextV, _prevV; // Last 2 values found
+    private CHM _nextchm, _prevchm; // Tables the last 2 values were read from, or null
+    private int _nextidx, _previdx; // Slots the last 2 values were read from
+    private Prime _box;         // Reused to freeze slots mid-copy, made on first use
     public boolean hasNext() { return _nextV != null; }
     public TypeV next() {
       // 'next' actually knows what the next value will be - it had to
@@ -1004,25 +1199,40 @@ public class NonBlockingHashMapLong<TypeV>
       if( _idx != -1 && _nextV == null ) throw new NoSuchElementException();
       _prevK = _nextK;          // This will become the previous key
       _prevV = _nextV;          // This will become the previous value
+      _prevchm = _nextchm;  _previdx = _nextidx;
       _nextV = null;            // We have no more next-key
       // Attempt to set <_nextK,_nextV> to the next K,V pair.
       // _nextV is the trigger: stop searching when it is != null
       if( _idx == -1 ) {        // Check for NO_KEY
         _idx = 0;               // Setup for next phase of search
         _nextK = NO_KEY;
+        _nextchm = null;        // Not in any table
         if( (_nextV=get(_nextK)) != null ) return _prevV;
       }
-      while( _idx<length() ) {  // Scan array
-        _nextK = key(_idx++); // Get a key that definitely is in the set (for the moment!)
-        if( _nextK != NO_KEY && // Found something?
-            (_nextV=get(_nextK)) != null )
-          break;                // Got it!  _nextK is a valid Key
-      }                         // Else keep scanning
-      return _prevV;            // Return current value.
+      while( true ) {
+        while( _idx<length() ) {  // Scan array
+          if( _sschm._newchm != null ) { // Copy in progress?  Freeze the slot first
+            if( _box == null ) _box = new Prime(null);
+            _sschm.copy_slot_and_check(_idx,null,_box);
+          }
+          final int idx = _idx++;
+          _nextK = key(idx);    // Get a key that definitely is in the set (for the moment!)
+          if( _nextK != NO_KEY && // Found something?
+              (_sschm == _sschm0 || !seen(_nextK)) && // Not visited in an older table?
+              (_nextV=val(idx,_nextK)) != null )
+            return _prevV;      // Got it!  _nextK is a valid Key
+        }                       // Else keep scanning
+        // Done with this table; move on to the next one, if any
+        final CHM newchm = _sschm._newchm;
+        if( newchm == null ) return _prevV; // No more keys
+        _sschm = newchm;
+        _idx = 0;
+      }
     }
     public void remove() { 
       if( _prevV == null ) throw new IllegalStateException();
-      _sschm.putIfMatch( _prevK, TOMBSTONE, _prevV );
+      if( _prevchm == null || !_prevchm.remove_slot(_previdx,_prevV) )
+        putIfMatch( _prevK, TOMBSTONE, _prevV );
       _prevV = null;
     }
     public TypeV nextElement() { return next(); }
@@ -1054,6 +1264,10 @@ public class NonBlockingHashMapLong<TypeV>
       public int     size    (          ) { return NonBlockingHashMapLong.this.size    ( ); }
       public boolean contains( Object v ) { return NonBlockingHashMapLong.this.containsValue(v); }
       public Iterator<TypeV> iterator()   { return new SnapshotV(); }
+      public boolean removeIf( final Predicate<? super TypeV> filter ) {
+        if( filter == null ) throw new NullPointerException();
+        return NonBlockingHashMapLong.this.removeIf((k,v) -> filter.test(v));
+      }
     };
   }
 
@@ -1078,6 +1292,43 @@ public class NonBlockingHashMapLong<TypeV>
     /** True if there are more keys to iterate over. */
     public boolean hasMoreElements() { return hasNext(); }
   }
+  /** A reusable cursor over the mappings of this map, for iterating without
+   *  producing garbage: keys come back as primitive {@code long}s and no
+   *  {@link java.util.Map.Entry} is made.  Call {@link #advance} to move to
+   *  the next mapping, then read it with {@link #key} and {@link #value}.
+   *  The cursor is weakly consistent, exactly like {@link #entrySet}'s
+   *  iterator, and may be rewound with {@link #reset} and reused.  A cursor
+   *  is not safe for use by more than one thread at a time. */
+  public class LongObjCursor {
+    private final SnapshotV _ss;
+    private long  _key;
+    private TypeV _val;
+    /** A new LongObjCursor, positioned before the first mapping */
+    public LongObjCursor() { _ss = new SnapshotV(); }
+    /** Move to the next mapping.
+     *  @return false if there are no more mappings */
+    public boolean advance() {
+      if( !_ss.hasNext() ) { _val = null; return false; }
+      _val = _ss.next();
+      _key = _ss._prevK;
+      return true;
+    }
+    /** The key of the current mapping, as a primitive {@code long}. */
+    public long key() { return _key; }
+    /** The value of the current mapping, as of when the cursor reached it. */
+    public TypeV value() { return _val; }
+    /** Remove the current mapping, if it still maps to {@link #value}. */
+    public void remove() {
+      if( _val == null ) throw new IllegalStateException();
+      _ss.remove();
+    }
+    /** Rewind to before the first mapping of the map as it is now. */
+    public void reset() { _val = null; _ss.reset(); }
+  }
+  /** Returns a new reusable {@link LongObjCursor} over this map.
+   *  @return a cursor positioned before the first mapping */
+  public LongObjCursor cursor() { return new LongObjCursor(); }
+
   /** Returns an enumeration of the <strong>auto-boxed</strong> keys in this table.
    *  <strong>Warning:</strong> this version will auto-box all returned keys.
    *  @return an enumeration of the auto-boxed keys in this table
@@ -1105,6 +1356,10 @@ public class NonBlockingHashMapLong<TypeV>
       public boolean contains( Object k ) { return NonBlockingHashMapLong.this.containsKey(k); }
       public boolean remove  ( Object k ) { return NonBlockingHashMapLong.this.remove  (k) != null; }
       public IteratorLong iterator()    { return new IteratorLong(); }
+      public boolean removeIf( final Predicate<? super Long> filter ) {
+        if( filter == null ) throw new NullPointerException();
+        return NonBlockingHashMapLong.this.removeIf((k,v) -> filter.test(k));
+      }
     };
   }
 
@@ -1166,9 +1421,92 @@ public class NonBlockingHashMapLong<TypeV>
         return v.equals(e.getValue());
       }
       public Iterator<Map.Entry<Long,TypeV>> iterator() { return new SnapshotE(); }
+      public boolean removeIf( final Predicate<? super Map.Entry<Long,TypeV>> filter ) {
+        if( filter == null ) throw new NullPointerException();
+        return NonBlockingHashMapLong.this.removeIf((k,v) -> filter.test(new NBHMLEntry(k,v)));
+      }
     };
   }
 
+  // --- forEach, replaceAll, removeIf -------------------------------------
+  // Sequential walks over a snapshot of the table, reading the slots in
+  // place: no iterator and no Entry per element (keys are still auto-boxed
+  // to meet the Map interfaces).  Weakly consistent, just like the
+  // iterators.  Updates go through the top-level table, and are conditional
+  // on the value the user's function saw, so racing updates are never
+  // silently overwritten.
+
+  // Live value in slot idx of a snapshot, or null.  A slot caught mid-copy
+  // by a later resize (a Prime) costs an official 'get'.
+  private final Object live_val( final CHM sschm, final int idx ) {
+    final long K = sschm._keys[idx];
+    if( K == NO_KEY ) return null;
+    Object V = sschm._vals[idx];
+    final CHM newchm = sschm._newchm; // VOLATILE READ before using V
+    if( V instanceof Prime ) V = get(K); // Mid-copy: ask the official way
+    return V == TOMBSTONE ? null : V;
+  }
+
+  /** Performs the given action for each mapping, walking the table in place.
+   *  <strong>Warning:</strong> keys are auto-boxed.
+   *  @throws NullPointerException if the action is null */
+  public void forEach( BiConsumer<? super Long,? super TypeV> action ) {
+    if( action == null ) throw new NullPointerException();
+    final Object V1 = _val_1;
+    if( V1 != TOMBSTONE ) action.accept(NO_KEY,(TypeV)V1);
+    final CHM sschm = snapshot();
+    for( int idx=0; idx<sschm._keys.length; idx++ ) {
+      final Object V = live_val(sschm,idx);
+      if( V != null ) action.accept(sschm._keys[idx],(TypeV)V);
+    }
+  }
+
+  /** Replaces each value with the result of the given function.  Each
+   *  replacement is atomic: if another thread changes the value first, the
+   *  function is applied again to the new value.  Mappings removed
+   *  concurrently stay removed.
+   *  @throws NullPointerException if the function or any value it returns is null */
+  public void replaceAll( BiFunction<? super Long,? super TypeV,? extends TypeV> function ) {
+    if( function == null ) throw new NullPointerException();
+    replace_impl(NO_KEY,_val_1,function);
+    final CHM sschm = snapshot();
+    for( int idx=0; idx<sschm._keys.length; idx++ )
+      replace_impl(sschm._keys[idx],live_val(sschm,idx),function);
+  }
+  private final void replace_impl( final long K, Object V, BiFunction<? super Long,? super TypeV,? extends TypeV> function ) {
+    while( V != null && V != TOMBSTONE ) {
+      final Object W = function.apply(K,(TypeV)V);
+      if( W == null ) throw new NullPointerException();
+      final Object res = putIfMatch(K,W,V);
+      if( res == V || V.equals(res) ) break; // Replaced
+      V = res;                  // Lost a race; retry unless removed
+    }
+  }
+
+  /** Removes all of the mappings satisfying the given predicate.  Each
+   *  removal is atomic and only happens if the value is still the one the
+   *  predicate was tested against.  <strong>Warning:</strong> keys are
+   *  auto-boxed.
+   *  @return <tt>true</tt> if any mappings were removed
+   *  @throws NullPointerException if the predicate is null */
+  public boolean removeIf( BiPredicate<? super Long,? super TypeV> filter ) {
+    if( filter == null ) throw new NullPointerException();
+    boolean removed = false;
+    final Object V1 = _val_1;
+    if( V1 != TOMBSTONE && filter.test(NO_KEY,(TypeV)V1) && remove(NO_KEY,V1) )
+      removed = true;
+    final CHM sschm = snapshot();
+    for( int idx=0; idx<sschm._keys.length; idx++ ) {
+      final long K = sschm._keys[idx];
+      final Object V = live_val(sschm,idx);
+      if( V != null && filter.test(K,(TypeV)V) ) {
+        final Object res = putIfMatch(K,TOMBSTONE,V);
+        if( res == V || V.equals(res) ) removed = true;
+      }
+    }
+    return removed;
+  }
+
   // --- writeObject -------------------------------------------------------
   // Write a NBHML to a stream
   private void writeObject(java.io.ObjectOutputStream s) throws IOException  {
@@ -1194,5 +1532,180 @@ public class NonBlockingHashMapLong<TypeV>
       put(K,V);               // Insert with an offical put
     }
   }
-  
+
+  // --- exportTo / importFrom ---------------------------------------------
+  // Same compact bulk format as NonBlockingHashMap's, with the keys written
+  // as raw longs: a magic number and the (estimated) size, then a 1 byte
+  // before each K,V pair and a 0 byte at the end.
+  private static final int EXPORT_MAGIC = 0x4E42484C; // "NBHL"
+
+  /** Write all mappings to <code>out</code> in a compact binary format, read
+   *  back with {@link #importFrom}.  Keys are written as raw longs, and
+   *  mappings are streamed from a snapshot of the table without any
+   *  per-key lookups.  Concurrent updates may or may not be included, as
+   *  for iteration.
+   *  @param out destination; buffer it, as many small writes are made
+   *  @param vc codec for the values
+   *  @return number of mappings written  */
+  public long exportTo( final DataOutput out, final Codec<? super TypeV> vc ) throws IOException {
+    final CHM sschm = snapshot();
+    final Object V1 = _val_1;
+    out.writeInt(EXPORT_MAGIC);
+    out.writeLong(sschm.size() + (V1==TOMBSTONE?0:1));
+    long cnt = 0;
+    if( V1 != TOMBSTONE ) {
+      out.writeByte(1);
+      out.writeLong(NO_KEY);
+      vc.write(out,(TypeV)V1);
+      cnt++;
+    }
+    for( int idx=0; idx<sschm._keys.length; idx++ ) {
+      final Object V = live_val(sschm,idx);
+      if( V == null ) continue;
+      out.writeByte(1);
+      out.writeLong(sschm._keys[idx]);
+      vc.write(out,(TypeV)V);
+      cnt++;
+    }
+    out.writeByte(0);
+    return cnt;
+  }
+
+  /** {@link #exportTo(DataOutput,Codec)} into a channel, through a 64K
+   *  buffer.  The channel is flushed but not closed. */
+  public long exportTo( final WritableByteChannel ch, final Codec<? super TypeV> vc ) throws IOException {
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch),1<<16));
+    final long cnt = exportTo(out,vc);
+    out.flush();
+    return cnt;
+  }
+
+  /** Read a map written by {@link #exportTo}.  The table is presized from
+   *  the exported size, so loading it takes no resizes.
+   *  @param in source; buffer it, as many small reads are made
+   *  @param vc codec for the values
+   *  @return a new map holding the mappings read  */
+  public static <V> NonBlockingHashMapLong<V> importFrom( final DataInput in, final Codec<V> vc ) throws IOException {
+    if( in.readInt() != EXPORT_MAGIC ) throw new StreamCorruptedException("not a NonBlockingHashMapLong export");
+    final long sz = in.readLong();
+    if( sz < 0 ) throw new StreamCorruptedException("bad size "+sz);
+    // Tables resize once a quarter full
+    final NonBlockingHashMapLong<V> map = new NonBlockingHashMapLong<V>((int)Math.min(sz<<2,1<<30));
+    byte b;
+    while( (b=in.readByte()) == 1 ) {
+      final long key = in.readLong();
+      map.put(key,vc.read(in));
+    }
+    if( b != 0 ) throw new StreamCorruptedException("bad entry marker "+b);
+    return map;
+  }
+
+  /** {@link #importFrom(DataInput,Codec)} from a channel, through a 64K
+   *  buffer.  The channel is not closed, but may have been read past the
+   *  end of the export. */
+  public static <V> NonBlockingHashMapLong<V> importFrom( final ReadableByteChannel ch, final Codec<V> vc ) throws IOException {
+    return importFrom(new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch),1<<16)),vc);
+  }
+
+  // --- saveSnapshot / loadSnapshot -----------------------------------------
+  // A file image of the table itself, for fast reloads.  A 32-byte header
+  // (magic, version, table length, key-0 flag, live count), then the raw
+  // _keys array, then the values in slot order: key 0's first, if present,
+  // then a 1 byte and the value, or a 0 byte for a dead slot, per claimed
+  // key.  Dead keys are kept, lest the holes break a later key's reprobe
+  // chain.  Because the table length is kept too, every key lands back in
+  // its own slot: the keys reload with a bulk copy and no hashing or puts.
+  // The keys go through memory-mapped chunks; the values, being of
+  // variable length, through a buffered stream.
+  private static final int SNAP_MAGIC = 0x4E42484E; // "NBHN"
+  private static final int SNAP_VERSION = 1;
+  private static final int SNAP_HEADER = 32;
+  private static final int SNAP_CHUNK = 1<<27; // Keys per mapping, 1G bytes
+
+  /** Write the map to <code>file</code> as an image of its hash table, for
+   *  a fast {@link #loadSnapshot}.  Keys are written as the raw key array
+   *  and values with the given codec.  Concurrent updates may or may not be
+   *  included, as for iteration.
+   *  @param file replaced if it exists
+   *  @param vc codec for the values
+   *  @return number of mappings written  */
+  public long saveSnapshot( final Path file, final Codec<? super TypeV> vc ) throws IOException {
+    final CHM sschm = snapshot();
+    final long[] keys = sschm._keys;
+    final int len = keys.length;
+    try( FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                           StandardOpenOption.READ, StandardOpenOption.WRITE) ) {
+      ch.position(SNAP_HEADER+8L*len);
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch),1<<16));
+      final Object V1 = _val_1;
+      long cnt = 0;
+      if( V1 != TOMBSTONE ) { vc.write(out,(TypeV)V1); cnt++; }
+      LongBuffer lb = null;
+      for( int idx=0; idx<len; idx++ ) {
+        if( (idx & (SNAP_CHUNK-1)) == 0 )
+          lb = ch.map(FileChannel.MapMode.READ_WRITE, SNAP_HEADER+8L*idx, 8L*Math.min(SNAP_CHUNK,len-idx)).asLongBuffer();
+        final long K = keys[idx];   // Read once: a key claimed after this is not in the image
+        lb.put(K);
+        if( K == NO_KEY ) continue;
+        final Object V = live_val(sschm,idx);
+        if( V == null ) { out.writeByte(0); continue; }
+        out.writeByte(1);
+        vc.write(out,(TypeV)V);
+        cnt++;
+      }
+      out.flush();
+      final ByteBuffer hdr = ByteBuffer.allocate(SNAP_HEADER);
+      hdr.putInt(SNAP_MAGIC).putInt(SNAP_VERSION).putInt(len).put((byte)(V1 == TOMBSTONE ? 0 : 1)).putLong(cnt);
+      hdr.clear();
+      while( hdr.hasRemaining() ) ch.write(hdr,hdr.position());
+      return cnt;
+    }
+  }
+
+  /** Read a map written by {@link #saveSnapshot}.  The table is rebuilt at
+   *  its saved length with a bulk copy of the key array; only the values
+   *  are decoded one by one.
+   *  @param file a snapshot file
+   *  @param vc codec for the values
+   *  @return a new map holding the mappings read  */
+  public static <V> NonBlockingHashMapLong<V> loadSnapshot( final Path file, final Codec<V> vc ) throws IOException {
+    try( FileChannel ch = FileChannel.open(file, StandardOpenOption.READ) ) {
+      final ByteBuffer hdr = ByteBuffer.allocate(SNAP_HEADER);
+      while( hdr.hasRemaining() && ch.read(hdr,hdr.position()) >= 0 ) ;
+      hdr.flip();
+      if( hdr.remaining() < SNAP_HEADER || hdr.getInt() != SNAP_MAGIC )
+        throw new StreamCorruptedException("not a NonBlockingHashMapLong snapshot");
+      final int version = hdr.getInt();
+      if( version != SNAP_VERSION ) throw new StreamCorruptedException("unknown snapshot version "+version);
+      final int len = hdr.getInt();
+      if( len < MIN_SIZE || Integer.bitCount(len) != 1 ) throw new StreamCorruptedException("bad table length "+len);
+      final boolean has1 = hdr.get() != 0;
+      final long cnt = hdr.getLong();
+
+      final NonBlockingHashMapLong<V> map = new NonBlockingHashMapLong<V>(len);
+      final CHM chm = map._chm;
+      assert chm._keys.length == len;
+      for( int idx=0; idx<len; idx+=SNAP_CHUNK ) {
+        final int n = Math.min(SNAP_CHUNK,len-idx);
+        ch.map(FileChannel.MapMode.READ_ONLY, SNAP_HEADER+8L*idx, 8L*n).asLongBuffer().get(chm._keys,idx,n);
+      }
+      ch.position(SNAP_HEADER+8L*len);
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch),1<<16));
+      long live = 0, slots = 0;
+      if( has1 ) { map._val_1 = vc.read(in); live++; }
+      for( int idx=0; idx<len; idx++ ) {
+        if( chm._keys[idx] == NO_KEY ) continue;
+        slots++;
+        final byte b = in.readByte();
+        if( b == 1 ) { chm._vals[idx] = vc.read(in); live++; }
+        else if( b == 0 ) chm._vals[idx] = TOMBSTONE;
+        else throw new StreamCorruptedException("bad slot marker "+b);
+      }
+      if( live != cnt ) throw new StreamCorruptedException("expected "+cnt+" mappings but found "+live);
+      chm._size.add(live - (has1 ? 1 : 0));
+      chm._slots.add(slots);
+      return map;
+    }
+  }
+
 }  // End NonBlockingHashMapLong class
@@ -0,0 +1,835 @@
+package org.cliffc.high_scale_lib;
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A lock-free hash table from primitive {@code long} keys to primitive
+ * {@code long} values.  Values live in a {@code long[]} alongside the keys,
+ * so unlike a {@link NonBlockingHashMapLong} holding {@link
+ * java.util.concurrent.atomic.AtomicLong}s, an update touches one table
+ * slot and allocates nothing.  The claim-key, CAS-value and cooperative
+ * table-copy protocol is that of {@link NonBlockingHashMapLong}, and all
+ * operations, including {@link #addAndGet}, are non-blocking.
+ *
+ * <p>Values are limited to 63 bits, between {@link #MIN_VALUE} and {@link
+ * #MAX_VALUE}.  The spare bit marks a value frozen by a table copy, in place
+ * of the {@code Prime} wrapper the other maps allocate.  {@link #NO_VALUE}
+ * is returned where the boxed maps return {@code null}.
+ *
+ * @since 1.0.7
+ * @see NonBlockingOffHeapMapLongLong
+ */
+public class NonBlockingHashMapLongLong {
+
+  private static final int REPROBE_LIMIT=10; // Too many reprobes then force a table-resize
+
+  // --- Bits to allow Unsafe access to arrays
+  private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
+  private static final int _Lbase  = _unsafe.arrayBaseOffset(long[].class);
+  private static final int _Lscale = _unsafe.arrayIndexScale(long[].class);
+  private static long rawIndex(final long[] ary, final int idx) {
+    assert idx >= 0 && idx < ary.length;
+    return _Lbase + (long)idx * _Lscale;
+  }
+
+  // --- Bits to allow Unsafe CAS'ing of the CHM field
+  private static final long _chm_offset;
+  private static final long _val_1_offset;
+  static {                      // <clinit>
+    Field f = null;
+    try { f = NonBlockingHashMapLongLong.class.getDeclaredField("_chm"); }
+    catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
+    _chm_offset = _unsafe.objectFieldOffset(f);
+
+    try { f = NonBlockingHashMapLongLong.class.getDeclaredField("_val_1"); }
+    catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
+    _val_1_offset = _unsafe.objectFieldOffset(f);
+  }
+  private final boolean CAS( final long offset, final Object old, final Object nnn ) {
+    return _unsafe.compareAndSwapObject(this, offset, old, nnn );
+  }
+  private final boolean CAS_val_1( final long old, final long nnn ) {
+    return _unsafe.compareAndSwapLong(this, _val_1_offset, old, nnn );
+  }
+
+  // --- Value encoding --------------------
+  /** Returned by lookups and updates when the key has no mapping. */
+  public static final long NO_VALUE = Long.MIN_VALUE;
+  /** Smallest value that can be stored. */
+  public static final long MIN_VALUE = (Long.MIN_VALUE>>1)+4;
+  /** Largest value that can be stored. */
+  public static final long MAX_VALUE = Long.MAX_VALUE>>1;
+
+  // Values are stored XOR'd with BIAS, which leaves the top two bits of any
+  // legal value equal and maps the 4 values just below MIN_VALUE onto the
+  // sentinels below.  In particular a fresh long[] reads as EMPTY.  A value
+  // is 'prime'd - frozen by a table copy - by flipping bit 62, which makes
+  // the top two bits differ; so a Prime costs nothing to allocate.
+  private static final long BIAS = Long.MIN_VALUE>>1;
+  private static final long PRIME_BIT = 1L<<62;
+  // Never-set value; the initial array contents.  Plays the part of 'null'
+  // in NonBlockingHashMapLong.
+  private static final long EMPTY = 0;
+  // This K/V pair has been deleted (but the Key slot is forever claimed).
+  private static final long TOMBSTONE = 1;
+  // putIfMatch wildcards; never stored in a table.
+  private static final long NO_MATCH_OLD = 2;
+  private static final long MATCH_ANY = 3;
+  // Prime'd version of TOMBSTONE
+  private static final long TOMBPRIME = TOMBSTONE^PRIME_BIT;
+  private static boolean is_prime( final long V ) { return (V ^ (V<<1)) < 0; }
+
+  private static long encode( final long val ) {
+    if( val < MIN_VALUE || val > MAX_VALUE )
+      throw new IllegalArgumentException("value out of range: "+val);
+    return val^BIAS;
+  }
+  private static long decode( final long V ) {
+    assert !is_prime(V);
+    return V == EMPTY || V == TOMBSTONE ? NO_VALUE : V^BIAS;
+  }
+  // Encode a sum, which may have left the legal range
+  private static long encode_sum( final long old, final long delta ) {
+    final long sum = old + delta;
+    if( ((old ^ sum) & (delta ^ sum)) < 0 || sum < MIN_VALUE || sum > MAX_VALUE )
+      throw new ArithmeticException("value out of range: "+old+" + "+delta);
+    return sum^BIAS;
+  }
+
+  // I exclude 1 long from the 2^64 possibilities, and test for it before
+  // entering the main array.  The NO_KEY value must be zero, the initial
+  // value set by Java before it hands me the array.
+  private static final long NO_KEY = 0L;
+
+  // --- The Hash Table --------------------
+  private transient CHM _chm;
+  // This next field holds the encoded value for Key 0 - the special key
+  // value which is the initial array value, and also means:
+  // no-key-inserted-yet.
+  private transient volatile long _val_1; // Value for Key: NO_KEY
+
+  // Time since last resize
+  private transient long _last_resize_milli;
+
+  // --- Minimum table size ----------------
+  private static final int MIN_SIZE_LOG=4;             //
+  private static final int MIN_SIZE=(1<<MIN_SIZE_LOG); // Must be power of 2
+
+  // --- reprobe_limit -----------------------------------------------------
+  // Heuristic to decide if we have reprobed toooo many times.  Running over
+  // the reprobe limit on a 'get' call acts as a 'miss'; on a 'put' call it
+  // can trigger a table resize.  Several places must have exact agreement on
+  // what the reprobe_limit is, so we share it here.
+  private static final int reprobe_limit( int len ) {
+    return REPROBE_LIMIT + (len>>2);
+  }
+
+  // --- NonBlockingHashMapLongLong ------------------------------------------
+  // Constructors
+  /** Create a new NonBlockingHashMapLongLong with default minimum size
+   *  (currently set to 16 K/V pairs). */
+  public NonBlockingHashMapLongLong( ) { this(MIN_SIZE); }
+
+  /** Create a new NonBlockingHashMapLongLong with initial room for the given
+   *  number of elements, thus avoiding internal resizing operations to reach
+   *  an appropriate size.  The initial size will be rounded up internally to
+   *  the next larger power of 2. */
+  public NonBlockingHashMapLongLong( final int initial_sz ) {
+    if( initial_sz < 0 ) throw new IllegalArgumentException();
+    int i;                      // Convert to next largest power-of-2
+    for( i=MIN_SIZE_LOG; (1<<i) < initial_sz; i++ ) ;
+    _chm = new CHM(this,new Counter(),i);
+    _val_1 = TOMBSTONE;         // Always as-if deleted
+    _last_resize_milli = System.currentTimeMillis();
+  }
+
+  // --- wrappers ------------------------------------------------------------
+
+  /** Returns the number of key-value mappings in this map.
+   *  @return the number of key-value mappings in this map */
+  public int     size       ( )          { return (_val_1==TOMBSTONE?0:1) + (int)_chm.size(); }
+  /** Returns <tt>size() == 0</tt>.
+   *  @return <tt>size() == 0</tt> */
+  public boolean isEmpty    ( )          { return size() == 0; }
+  /** Tests if the key in the table.
+   * @return <tt>true</tt> if the key is in the table */
+  public boolean containsKey( long key ) { return get(key) != NO_VALUE; }
+
+  /** Maps the specified key to the specified value in the table.
+   *  @param key key with which the specified value is to be associated
+   *  @param val value to be associated with the specified key
+   *  @return the previous value associated with <tt>key</tt>, or
+   *          {@link #NO_VALUE} if there was no mapping for <tt>key</tt>
+   *  @throws IllegalArgumentException if the value is out of range */
+  public long    put        ( long key, long val ) { return putIfMatch( key,encode(val),NO_MATCH_OLD);}
+
+  /** Atomically, do a {@link #put} if-and-only-if the key is not mapped.
+   *  @return the previous value associated with the specified key,
+   *         or {@link #NO_VALUE} if there was no mapping for the key
+   *  @throws IllegalArgumentException if the value is out of range */
+  public long    putIfAbsent( long key, long val ) { return putIfMatch( key,encode(val),TOMBSTONE   );}
+
+  /** Removes the key (and its corresponding value) from this map.
+   *  This method does nothing if the key is not in the map.
+   *  @return the previous value associated with <tt>key</tt>, or
+   *         {@link #NO_VALUE} if there was no mapping for <tt>key</tt>*/
+  public long    remove     ( long key )           { return putIfMatch( key,TOMBSTONE,NO_MATCH_OLD);}
+
+  /** Atomically do a {@link #remove(long)} if-and-only-if the key is mapped
+   *  to the given value.
+   *  @return <tt>true</tt> if the value was removed */
+  public boolean remove     ( long key, long val ) {
+    if( val < MIN_VALUE || val > MAX_VALUE ) return false;
+    return putIfMatch( key,TOMBSTONE,encode(val) ) == val;
+  }
+
+  /** Atomically do a <code>put(key,val)</code> if-and-only-if the key is
+   *  mapped to some value already.
+   *  @return the previous value, or {@link #NO_VALUE} if there was none
+   *  @throws IllegalArgumentException if the value is out of range */
+  public long    replace    ( long key, long val ) { return putIfMatch( key,encode(val),MATCH_ANY   );}
+
+  /** Atomically set the value for the key to <code>update</code>
+   *  if-and-only-if it is currently <code>expect</code>.  An
+   *  <code>expect</code> of {@link #NO_VALUE} matches an absent key.
+   *  @return <tt>true</tt> if the value was set
+   *  @throws IllegalArgumentException if the update is out of range */
+  public boolean compareAndSet( long key, long expect, long update ) {
+    final long putval = encode(update);
+    if( expect == NO_VALUE ) return putIfMatch( key, putval, TOMBSTONE ) == NO_VALUE;
+    if( expect < MIN_VALUE || expect > MAX_VALUE ) return false;
+    return putIfMatch( key, putval, encode(expect) ) == expect;
+  }
+
+  /** Atomically add <code>delta</code> to the value for the key, starting
+   *  from zero if the key is not mapped.  Lock-free and allocation-free.
+   *  @return the updated value
+   *  @throws ArithmeticException if the sum is out of range */
+  public long    addAndGet  ( long key, long delta ) {
+    if( key == NO_KEY ) {
+      while( true ) {
+        final long V = _val_1;
+        final long nv = encode_sum(V == TOMBSTONE ? 0 : V^BIAS, delta);
+        if( CAS_val_1(V,nv) ) return nv^BIAS;
+      }
+    }
+    return _chm.add_impl( key, delta )^BIAS;
+  }
+  /** Atomically add <code>delta</code> to the value for the key, starting
+   *  from zero if the key is not mapped.
+   *  @return the value before the add, or zero if the key was not mapped
+   *  @throws ArithmeticException if the sum is out of range */
+  public long    getAndAdd  ( long key, long delta ) { return addAndGet(key,delta) - delta; }
+  /** Atomically add one to the value for the key, starting from zero.
+   *  @return the updated value */
+  public long    incrementAndGet( long key )         { return addAndGet(key, 1); }
+  /** Atomically subtract one from the value for the key, starting from zero.
+   *  @return the updated value */
+  public long    decrementAndGet( long key )         { return addAndGet(key,-1); }
+
+  private final long putIfMatch( long key, long newVal, long oldVal ) {
+    if( key == NO_KEY ) {
+      while( true ) {
+        final long curVal = _val_1;
+        if( !(oldVal == NO_MATCH_OLD || // Do we care about expected-Value at all?
+              curVal == oldVal ||       // No instant match already?
+              (oldVal == MATCH_ANY && curVal != TOMBSTONE)) )
+          return decode(curVal);        // Match failed; report what was there
+        if( CAS_val_1(curVal,newVal) )  // Retry until the CAS lands or the match fails
+          return decode(curVal);        // Return the value replaced
+      }
+    }
+    final long res = _chm.putIfMatch( key, newVal, oldVal );
+    assert !is_prime(res);
+    return decode(res);         // EMPTY if a failed match claimed a fresh key slot
+  }
+
+  /** Removes all of the mappings from this map. */
+  public void clear() {         // Smack a new empty table down
+    CHM newchm = new CHM(this,new Counter(),MIN_SIZE_LOG);
+    while( !CAS(_chm_offset,_chm,newchm) ) // Spin until the clear works
+      ;
+    CAS_val_1(_val_1,TOMBSTONE);
+  }
+
+  // --- get -----------------------------------------------------------------
+  /** Returns the value to which the specified key is mapped, or {@link
+   *  #NO_VALUE} if this map contains no mapping for the key. */
+  // Never returns a Prime nor a Tombstone.
+  public final long get( long key ) {
+    if( key == NO_KEY )
+      return decode(_val_1);
+    final long V = _chm.get_impl(key);
+    assert !is_prime(V);        // Never return a Prime
+    return decode(V);
+  }
+
+  /** Returns the value mapped to the key, or the given default if none.
+   *  @return the mapped value, or <tt>dflt</tt> */
+  public long getOrDefault( long key, long dflt ) {
+    final long V = get(key);
+    return V == NO_VALUE ? dflt : V;
+  }
+
+  // --- help_copy -----------------------------------------------------------
+  // Help along an existing resize operation.  This is just a fast cut-out
+  // wrapper, to encourage inlining for the fast no-copy-in-progress case.  We
+  // always help the top-most table copy, even if there are nested table
+  // copies in progress.
+  private final void help_copy( ) {
+    // Read the top-level CHM only once.  We'll try to help this copy along,
+    // even if it gets promoted out from under us (i.e., the copy completes
+    // and another CHM becomes the top-level copy).
+    CHM topchm = _chm;
+    if( topchm._newchm == null ) return; // No copy in-progress
+    topchm.help_copy_impl(false);
+  }
+
+  // --- CHM -----------------------------------------------------------------
+  // The control structure for the NonBlockingHashMapLongLong
+  private static final class CHM {
+    // Back-pointer to top-level structure
+    final NonBlockingHashMapLongLong _map;
+
+    // Size in active K,V pairs
+    private final Counter _size;
+    public int size () { return (int)_size.get(); }
+
+    // Count of used slots, to tell when table is full of dead unusable slots
+    private final Counter _slots;
+    public int slots() { return (int)_slots.get(); }
+
+    // New mappings, used during resizing.  The 'next' CHM - created during a
+    // resize operation.  It monotonically transits from null to set (once).
+    volatile CHM _newchm;
+    private static final AtomicReferenceFieldUpdater<CHM,CHM> _newchmUpdater =
+      AtomicReferenceFieldUpdater.newUpdater(CHM.class,CHM.class, "_newchm");
+    // Set the _newchm field if we can.  AtomicUpdaters do not fail spuriously.
+    boolean CAS_newchm( CHM newchm ) {
+      return _newchmUpdater.compareAndSet(this,null,newchm);
+    }
+    // Count of threads attempting an initial resize; see resize
+    volatile long _resizers;
+    private static final AtomicLongFieldUpdater<CHM> _resizerUpdater =
+      AtomicLongFieldUpdater.newUpdater(CHM.class, "_resizers");
+
+    // --- key,val -------------------------------------------------------------
+    // Access K,V for a given idx
+    private final boolean CAS_key( int idx, long old, long key ) {
+      return _unsafe.compareAndSwapLong( _keys, rawIndex(_keys, idx), old, key );
+    }
+    private final boolean CAS_val( int idx, long old, long val ) {
+      return _unsafe.compareAndSwapLong( _vals, rawIndex(_vals, idx), old, val );
+    }
+    private final long val( int idx ) {
+      return _unsafe.getLongVolatile( _vals, rawIndex(_vals, idx) );
+    }
+
+    final long [] _keys;
+    final long [] _vals;
+
+    // Simple constructor
+    CHM( final NonBlockingHashMapLongLong map, Counter size, final int logsize ) {
+      _map = map;
+      _size = size;
+      _slots= new Counter();
+      _keys = new long[1<<logsize];
+      _vals = new long[1<<logsize];
+    }
+
+    // --- get_impl ----------------------------------------------------------
+    // Never returns a Prime nor a Tombstone.
+    private final long get_impl ( final long key ) {
+      final int len = _keys.length;
+      int idx = (int)(key & (len-1)); // First key hash
+
+      // Main spin/reprobe loop, looking for a Key hit
+      int reprobe_cnt=0;
+      while( true ) {
+        final long K = _keys[idx]; // Get key   before volatile read, could be NO_KEY
+        final long V = val(idx);   // Get value, could be EMPTY or Tombstone or Prime
+        if( K == NO_KEY ) return EMPTY; // A clear miss
+
+        // Key-compare
+        if( key == K ) {
+          // Key hit!  Check for no table-copy-in-progress
+          if( !is_prime(V) )    // No copy?
+            return V == TOMBSTONE ? EMPTY : V;
+          // Key hit - but slot is (possibly partially) copied to the new table.
+          // Finish the copy & retry in the new table.
+          return copy_slot_and_check(idx,true).get_impl(key); // Retry in the new table
+        }
+        // get and put must have the same key lookup logic!  But only 'put'
+        // needs to force a table-resize for a too-long key-reprobe sequence.
+        // Check for too-many-reprobes on get.
+        if( ++reprobe_cnt >= reprobe_limit(len) ) // too many probes
+          return _newchm == null // Table copy in progress?
+            ? EMPTY              // Nope!  A clear miss
+            : copy_slot_and_check(idx,true).get_impl(key); // Retry in the new table
+
+        idx = (idx+1)&(len-1);    // Reprobe by 1!  (could now prefetch)
+      }
+    }
+
+    // --- claim_key ---------------------------------------------------------
+    // Key-Claim stanza shared by putIfMatch and add_impl: find the key's
+    // slot, claiming a free one if need be.  Returns the slot index in the
+    // low 32 bits and the reprobe count, wanted by tableFull, in the high;
+    // or -1 if the table has too many reprobes, and the caller must retry in
+    // the new table; or -2 if the key is absent and 'claim' is false.
+    private final long claim_key( final long key, final boolean claim ) {
+      final int len = _keys.length;
+      int idx = (int)(key & (len-1)); // The first key
+      int reprobe_cnt=0;
+      while( true ) {           // Spin till we get a Key slot
+        long K = _keys[idx];    // Get current key
+        if( K == NO_KEY ) {     // Slot is free?
+          // Found an empty Key slot - which means this Key has never been in
+          // this table.  No need to put a Tombstone - the Key is not here!
+          if( !claim ) return -2; // Not-now & never-been in this table
+          // Claim the zero key-slot
+          if( CAS_key(idx, NO_KEY, key) ) { // Claim slot for Key
+            _slots.add(1);      // Raise key-slots-used count
+            return ((long)reprobe_cnt<<32)|idx; // Got it!
+          }
+          // CAS to claim the key-slot failed.  Keys never change once set, so
+          // re-reading recovers the witness.
+          K = _keys[idx];       // CAS failed, get updated value
+          assert K != NO_KEY ;  // If keys[idx] is NO_KEY, CAS shoulda worked
+        }
+        // Key slot was not null, there exists a Key here
+        if( K == key )
+          return ((long)reprobe_cnt<<32)|idx; // Got it!
+        // get and put must have the same key lookup logic!  Lest 'get' give
+        // up looking too soon.
+        if( ++reprobe_cnt >= reprobe_limit(len) )
+          return -1;            // Must have a new table
+        idx = (idx+1)&(len-1);  // Reprobe!
+      }
+    }
+
+    // --- putIfMatch ---------------------------------------------------------
+    // Put, Remove, PutIfAbsent, etc.  Return the old value.  If the returned
+    // value is equal to expVal (or expVal is NO_MATCH_OLD) then the put can
+    // be assumed to work (although might have been immediately overwritten).
+    // Only the path through copy_slot passes in an expected value of EMPTY,
+    // and putIfMatch only returns EMPTY if passed in an expected EMPTY.
+    private final long putIfMatch( final long key, final long putval, final long expVal ) {
+      assert putval != EMPTY;
+      assert !is_prime(putval);
+      assert !is_prime(expVal);
+      final int len = _keys.length;
+
+      // ---
+      // Key-Claim stanza: spin till we can claim a Key (or force a resizing).
+      final long claimed = claim_key(key, putval != TOMBSTONE);
+      if( claimed == -2 ) return putval; // Removing a never-been key
+      if( claimed == -1 ) {
+        // We simply must have a new table to do a 'put'.  At this point a
+        // 'get' will also go to the new table (if any).  We do not need
+        // to claim a key slot (indeed, we cannot find a free one to claim!).
+        final CHM newchm = resize();
+        if( expVal != EMPTY ) _map.help_copy(); // help along an existing copy
+        return newchm.putIfMatch(key,putval,expVal);
+      }
+
+      // ---
+      // Found the proper Key slot, now update the matching Value slot.  We
+      // never put an EMPTY, so Value slots monotonically move from EMPTY to
+      // not-EMPTY (deleted Values use Tombstone).
+      final int idx = (int)claimed;
+      long V = val(idx);
+      if( putval == V ) return V; // Fast cutout for no-change
+
+      // See if we want to move to a new table (to avoid high average re-probe
+      // counts).  We only check on the initial set of a Value from EMPTY to
+      // not-EMPTY (i.e., once per key-insert).
+      if( (V == EMPTY && tableFull((int)(claimed>>>32),len)) ||
+          // Or we found a Prime: resize is already in progress.  The resize
+          // call below will do a CAS on _newchm forcing the read.
+          is_prime(V) ) {
+        resize();               // Force the new table copy to start
+        return copy_slot_and_check(idx,expVal != EMPTY).putIfMatch(key,putval,expVal);
+      }
+
+      // ---
+      // We are finally prepared to update the existing table
+      while( true ) {
+        assert !is_prime(V);
+
+        // Must match old, and we do not?  Then bail out now.  Note that either V
+        // or expVal might be TOMBSTONE.  Also V can be EMPTY, if we've never
+        // inserted a value before.  expVal is EMPTY if we are called from
+        // copy_slot.
+        if( expVal != NO_MATCH_OLD && // Do we care about expected-Value at all?
+            V != expVal &&            // No match?
+            (expVal != MATCH_ANY || V == TOMBSTONE || V == EMPTY) &&
+            !(V==EMPTY && expVal == TOMBSTONE) ) // Match on EMPTY/TOMBSTONE combo
+          return V;                   // Do not update!
+
+        // Actually change the Value in the Key,Value pair
+        if( CAS_val(idx, V, putval ) ) {
+          // CAS succeeded - we did the update!
+          // Both normal put's and table-copy calls putIfMatch, but table-copy
+          // does not (effectively) increase the number of live k/v pairs.
+          if( expVal != EMPTY ) {
+            // Adjust sizes - a striped counter
+            if(  (V == EMPTY || V == TOMBSTONE) && putval != TOMBSTONE ) _size.add( 1);
+            if( !(V == EMPTY || V == TOMBSTONE) && putval == TOMBSTONE ) _size.add(-1);
+          }
+          return (V==EMPTY && expVal!=EMPTY) ? TOMBSTONE : V;
+        }
+        // Else CAS failed
+        V = val(idx);           // Get new value
+        // If a Prime'd value got installed, we need to re-run the put on the
+        // new table.  Otherwise we lost the CAS to another racing put.
+        // Simply retry from the start.
+        if( is_prime(V) )
+          return copy_slot_and_check(idx,expVal != EMPTY).putIfMatch(key,putval,expVal);
+      }
+    }
+
+    // --- add_impl ----------------------------------------------------------
+    // Add delta to the key's value in place, an absent value counting as
+    // zero.  Returns the new encoded value.  Same shape as putIfMatch, but
+    // the value to CAS in is recomputed from each witness.
+    private final long add_impl( final long key, final long delta ) {
+      final int len = _keys.length;
+      final long claimed = claim_key(key, true);
+      if( claimed == -1 ) {     // Table is full; must go to a new table
+        final CHM newchm = resize();
+        _map.help_copy();       // help along an existing copy
+        return newchm.add_impl(key,delta);
+      }
+      final int idx = (int)claimed;
+      long V = val(idx);
+      if( (V == EMPTY && tableFull((int)(claimed>>>32),len)) || is_prime(V) ) {
+        resize();               // Force the new table copy to start
+        return copy_slot_and_check(idx,true).add_impl(key,delta);
+      }
+      while( true ) {
+        assert !is_prime(V);
+        final boolean absent = V == EMPTY || V == TOMBSTONE;
+        final long nv = encode_sum(absent ? 0 : V^BIAS, delta);
+        if( CAS_val(idx, V, nv) ) {
+          if( absent ) _size.add(1);
+          return nv;
+        }
+        V = val(idx);           // Lost a race; retry on the new witness
+        if( is_prime(V) )       // Unless the slot is being copied
+          return copy_slot_and_check(idx,true).add_impl(key,delta);
+      }
+    }
+
+    // --- tableFull ---------------------------------------------------------
+    // Heuristic to decide if this table is too full, and we should start a
+    // new table.  The invariant is:
+    //   slots.estimate_sum >= max_reprobe_cnt >= reprobe_limit(len)
+    private final boolean tableFull( int reprobe_cnt, int len ) {
+      return
+        // Do the cheap check first: we allow some number of reprobes always
+        reprobe_cnt >= REPROBE_LIMIT &&
+        // More expensive check: see if the table is > 1/4 full.
+        _slots.estimate_get() >= reprobe_limit(len);
+    }
+
+    // --- resize ------------------------------------------------------------
+    // Resizing after too many probes.  "How Big???" heuristics are here.
+    // Callers will (not this routine) will 'help_copy' any in-progress copy.
+    // Since this routine has a fast cutout for copy-already-started, callers
+    // MUST 'help_copy' lest we have a path which forever runs through
+    // 'resize' only to discover a copy-in-progress which never progresses.
+    private final CHM resize() {
+      // Check for resize already in progress, probably triggered by another thread
+      CHM newchm = _newchm;     // VOLATILE READ
+      if( newchm != null )      // See if resize is already in progress
+        return newchm;          // Use the new table already
+
+      // No copy in-progress, so start one.  First up: compute new table size.
+      int oldlen = _keys.length; // Old count of K,V pairs allowed
+      int sz = size();          // Get current table count of active K,V pairs
+      int newsz = sz;           // First size estimate
+
+      // Heuristic to determine new size: NonBlockingHashMapLong's default
+      // opt_for_space heuristic.
+      if( sz >= (oldlen>>1) )   // If we are >50% full of keys then...
+        newsz = oldlen<<1;      // Double size
+
+      // Last (re)size operation was very recent?  Then double again; slows
+      // down resize operations for tables subject to a high key churn rate.
+      // A mostly-empty table is not doubled: it holds steady instead.
+      long tm = System.currentTimeMillis();
+      boolean recent = tm <= _map._last_resize_milli+10000; // Recent resize (less than 10 sec ago)
+      boolean sparse = sz < (oldlen>>4); // Less than 1/16th of the table is live?
+      if( newsz <= oldlen && recent && !sparse )
+        newsz = oldlen<<1;      // Double the existing size
+      // Shrink a mostly-empty table, but only if it has not been resized
+      // recently.
+      if( sparse && !recent ) newsz = sz<<3;
+      // Otherwise do not shrink
+      else if( newsz < oldlen ) newsz = oldlen;
+
+      // Convert to power-of-2
+      int log2;
+      for( log2=MIN_SIZE_LOG; (1<<log2) < newsz; log2++ ) ; // Compute log2 of size
+
+      // Now limit the number of threads actually allocating memory to a
+      // handful - lest we have 750 threads all trying to allocate a giant
+      // resized array.
+      long r = _resizers;
+      while( !_resizerUpdater.compareAndSet(this,r,r+1) )
+        r = _resizers;
+      // Size calculation: 2 longs (K+V) per table entry
+      int megs = (((1<<log2)<<1)<<3/*word to bytes*/)>>20/*megs*/;
+      if( r >= 2 && megs > 0 ) { // Already 2 guys trying; wait and see
+        // Spin politely (never sleep) until the new table is published, or
+        // for up to 8*megs msec.
+        final long deadline = System.nanoTime() + 8L*megs*1000000L;
+        while( (newchm=_newchm) == null && System.nanoTime() - deadline < 0 )
+          Thread.yield();
+        if( newchm != null )     // Resize already in progress
+          return newchm;         // Use the new table already
+      }
+      // Last check, since the 'new' below is expensive and there is a chance
+      // that another thread slipped in a new thread while we ran the heuristic.
+      newchm = _newchm;
+      if( newchm != null )      // See if resize is already in progress
+        return newchm;          // Use the new table already
+
+      // New CHM - actually allocate the big arrays
+      newchm = new CHM(_map,_size,log2);
+
+      // Another check after the slow allocation
+      if( _newchm != null )     // See if resize is already in progress
+        return _newchm;         // Use the new table already
+
+      // The new table must be CAS'd in so only 1 winner amongst duplicate
+      // racing resizing threads.  Extra CHM's will be GC'd.
+      if( !CAS_newchm( newchm ) ) // NOW a resize-is-in-progress!
+        newchm = _newchm;       // CAS failed?  Reread new table
+      return newchm;
+    }
+
+    // The next part of the table to copy.  It monotonically transits from zero
+    // to _keys.length.  Visitors to the table can claim 'work chunks' by
+    // CAS'ing this field up, then copying the indicated indices from the old
+    // table to the new table.  Workers are not required to finish any chunk;
+    // the counter simply wraps and work is copied duplicately until somebody
+    // somewhere completes the count.
+    volatile long _copyIdx = 0;
+    static private final AtomicLongFieldUpdater<CHM> _copyIdxUpdater =
+      AtomicLongFieldUpdater.newUpdater(CHM.class, "_copyIdx");
+
+    // Work-done reporting.  Used to efficiently signal when we can move to
+    // the new table.  From 0 to _keys.length refers to copying from the old
+    // table to the new.
+    volatile long _copyDone= 0;
+    static private final AtomicLongFieldUpdater<CHM> _copyDoneUpdater =
+      AtomicLongFieldUpdater.newUpdater(CHM.class, "_copyDone");
+
+    // --- help_copy_impl ----------------------------------------------------
+    // Help along an existing resize operation.  We hope its the top-level
+    // copy (it was when we started) but this CHM might have been promoted out
+    // of the top position.
+    private final void help_copy_impl( final boolean copy_all ) {
+      final CHM newchm = _newchm;
+      assert newchm != null;    // Already checked by caller
+      int oldlen = _keys.length; // Total amount to copy
+      final int MIN_COPY_WORK = Math.min(oldlen,1024); // Limit per-thread work
+
+      // ---
+      int panic_start = -1;
+      int copyidx=-9999;            // Fool javac to think it's initialized
+      while( _copyDone < oldlen ) { // Still needing to copy?
+        // Carve out a chunk of work.  The counter wraps around so every
+        // thread eventually tries to copy every slot repeatedly.  We "panic"
+        // if we have tried TWICE to copy every slot - and it still has not
+        // happened - and then do all the copy work ourselves.
+        if( panic_start == -1 ) { // No panic?
+          copyidx = (int)_copyIdx;
+          while( copyidx < (oldlen<<1) && // 'panic' check
+                 !_copyIdxUpdater.compareAndSet(this,copyidx,copyidx+MIN_COPY_WORK) )
+            copyidx = (int)_copyIdx;     // Re-read
+          if( !(copyidx < (oldlen<<1)) ) // Panic!
+            panic_start = copyidx;       // Record where we started to panic-copy
+        }
+
+        // We now know what to copy.  Try to copy.
+        int workdone = 0;
+        for( int i=0; i<MIN_COPY_WORK; i++ )
+          if( copy_slot((copyidx+i)&(oldlen-1)) ) // Made an oldtable slot go dead?
+            workdone++;         // Yes!
+        if( workdone > 0 )      // Report work-done occasionally
+          copy_check_and_promote( workdone );// See if we can promote
+
+        copyidx += MIN_COPY_WORK;
+        if( !copy_all && panic_start == -1 ) // No panic?
+          return;               // Then done copying after doing MIN_COPY_WORK
+      }
+      // Extra promotion check, in case another thread finished all copying
+      // then got stalled before promoting.
+      copy_check_and_promote( 0 ); // See if we can promote
+    }
+
+    // --- copy_slot_and_check -----------------------------------------------
+    // Copy slot 'idx' from the old table to the new table.  If this thread
+    // confirmed the copy, update the counters and check for promotion.
+    //
+    // Returns the result of reading the volatile _newchm, mostly as a
+    // convenience to callers, which retry their operation in the new table.
+    private final CHM copy_slot_and_check( int idx, boolean should_help ) {
+      // We're only here because the caller saw a Prime, which implies a
+      // table-copy is in progress.
+      assert _newchm != null;
+      if( copy_slot(idx) )      // Copy the desired slot
+        copy_check_and_promote(1); // Record the slot copied
+      // Generically help along any copy (except if called recursively from a helper)
+      if( should_help ) _map.help_copy();
+      return _newchm;
+    }
+
+    // --- copy_check_and_promote --------------------------------------------
+    private final void copy_check_and_promote( int workdone ) {
+      int oldlen = _keys.length;
+      // We made a slot unusable and so did some of the needed copy work
+      long copyDone = _copyDone;
+      long nowDone = copyDone+workdone;
+      assert nowDone <= oldlen;
+      if( workdone > 0 ) {
+        while( !_copyDoneUpdater.compareAndSet(this,copyDone,nowDone) ) {
+          copyDone = _copyDone;   // Reload, retry
+          nowDone = copyDone+workdone;
+          assert nowDone <= oldlen;
+        }
+      }
+
+      // Check for copy being ALL done, and promote.  Note that we might have
+      // nested in-progress copies and manage to finish a nested copy before
+      // finishing the top-level copy.  We only promote top-level copies.
+      if( nowDone == oldlen &&   // Ready to promote this table?
+          _map._chm == this &&   // Looking at the top-level table?
+          // Attempt to promote
+          _map.CAS(_chm_offset,this,_newchm) ) {
+        _map._last_resize_milli = System.currentTimeMillis();  // Record resize time for next check
+      }
+    }
+
+    // --- copy_slot ---------------------------------------------------------
+    // Copy one K/V pair from the old table to the new.  Returns true if we
+    // can confirm that the new table guaranteed has a value for this
+    // old-table slot.  We don't allow any direct updates on the new table,
+    // unless they first happened to the old table - so that any transition
+    // in the new table from EMPTY to not-EMPTY must have been from a
+    // copy_slot (or other old-table overwrite) and not from a thread directly
+    // writing in the new table.  Thus we can count EMPTY-to-not-EMPTY
+    // transitions in the new table.
+    private boolean copy_slot( int idx ) {
+      // Blindly set the key slot from NO_KEY to some key which hashes here,
+      // to eagerly stop fresh put's from inserting new values in the old
+      // table when the old table is mid-resize.
+      long key;
+      while( (key=_keys[idx]) == NO_KEY )
+        CAS_key(idx, NO_KEY, (idx+_keys.length)/*a non-zero key which hashes here*/);
+
+      // ---
+      // Prevent new values from appearing in the old table.
+      // Prime what we see in the old table, to prevent further updates.
+      long oldval = val(idx);   // Read OLD table
+      while( !is_prime(oldval) ) {
+        final long box = (oldval == EMPTY || oldval == TOMBSTONE) ? TOMBPRIME : oldval^PRIME_BIT;
+        if( CAS_val(idx,oldval,box) ) { // CAS down a prime'd version of oldval
+          // If we made the Value slot hold a TOMBPRIME, then we both
+          // prevented further updates here but also the (absent) oldval is
+          // vaccuously available in the new table.
+          if( box == TOMBPRIME )
+            return true;
+          // Otherwise we prime'd something, but it still needs to be
+          // copied into the new table.
+          oldval = box;         // Record updated oldval
+          break;                // Break loop; oldval is now prime'd by us
+        }
+        oldval = val(idx);      // Else try, try again
+      }
+      if( oldval == TOMBPRIME ) return false; // Copy already complete here!
+
+      // ---
+      // Copy the value into the new table, but only if we overwrite an EMPTY.
+      // If another value is already in the new table, then somebody else
+      // wrote something there and that write is happens-after any value that
+      // appears in the old table.
+      final long old_unboxed = oldval^PRIME_BIT;
+      assert old_unboxed != TOMBSTONE;
+      boolean copied_into_new = (_newchm.putIfMatch(key, old_unboxed, EMPTY) == EMPTY);
+
+      // ---
+      // Finally, now that any old value is exposed in the new table, we can
+      // forever hide the old-table value by slapping a TOMBPRIME down.
+      while( !CAS_val(idx,oldval,TOMBPRIME) )
+        oldval = val(idx);
+
+      return copied_into_new;
+    } // end copy_slot
+  } // End of CHM
+
+  // --- Snapshot ------------------------------------------------------------
+  // "Snapshot" a clean view of the table, for iterating.
+  private final CHM snapshot() {
+    while( true ) {             // Verify no table-copy-in-progress
+      final CHM topchm = _chm;
+      if( topchm._newchm == null ) // No table-copy-in-progress
+        // The "linearization point" for the iteration.  Every key in this
+        // table will be visited, but keys added later might be skipped or
+        // even be added to a following table (also not iterated over).
+        return topchm;
+      // Table copy in-progress - so we cannot get a clean iteration.  We
+      // must help finish the table copy before we can start iterating.
+      topchm.help_copy_impl(true);
+    }
+  }
+
+  /** Returns an iterator over the keys, without auto-boxing via {@link
+   *  LongIterator#nextLong}.  The iterator supports removal, and reflects
+   *  the map at some point at or since its creation.
+   *  @return an iterator over the keys */
+  public LongIterator keys() { return new IteratorLong(); }
+
+  private class IteratorLong implements LongIterator {
+    final CHM _sschm = snapshot();
+    private int _idx = -1;      // -1 for NO_KEY, then 0-keys.length
+    private long _nextK, _prevK;
+    private boolean _hasNext, _hasPrev;
+    IteratorLong() { advance(); }
+    // Find the next key with a live value
+    private void advance() {
+      _hasNext = false;
+      if( _idx == -1 ) {
+        _idx = 0;
+        if( get(NO_KEY) != NO_VALUE ) { _nextK = NO_KEY; _hasNext = true; return; }
+      }
+      while( _idx < _sschm._keys.length ) {
+        final long K = _sschm._keys[_idx++];
+        if( K != NO_KEY && get(K) != NO_VALUE ) { _nextK = K; _hasNext = true; return; }
+      }
+    }
+    public boolean hasNext() { return _hasNext; }
+    public long nextLong() {
+      if( !_hasNext ) throw new NoSuchElementException();
+      _prevK = _nextK;
+      _hasPrev = true;
+      advance();
+      return _prevK;
+    }
+    /** <strong>Auto-box</strong> and return the next key. */
+    public Long next() { return nextLong(); }
+    public void remove() {
+      if( !_hasPrev ) throw new IllegalStateException();
+      NonBlockingHashMapLongLong.this.remove(_prevK);
+      _hasPrev = false;
+    }
+  }
+
+}  // End NonBlockingHashMapLongLong class
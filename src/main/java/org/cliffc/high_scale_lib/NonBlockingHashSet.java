@@ -52,6 +52,8 @@ public class NonBlockingHashSet<E> extends AbstractSet<E> implements Serializabl
 
   public Iterator<E>iterator(                    ) { return _map.keySet().iterator(); }
 
+  public Spliterator<E>spliterator(              ) { return _map.keySet().spliterator(); }
+
   // ---
 
   /**
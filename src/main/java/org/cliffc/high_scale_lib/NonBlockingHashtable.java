@@ -834,15 +834,13 @@ public class NonBlockingHashtable<TypeK, TypeV>
       // 2x but does not screw up the heuristic very much.
       int megs = ((((1<<log2)<<1)+4)<<3/*word to bytes*/)>>20/*megs*/;
       if( r >= 2 && megs > 0 ) { // Already 2 guys trying; wait and see
-        newkvs = _newkvs;        // Between dorking around, another thread did it
-        if( newkvs != null )     // See if resize is already in progress
+        // Spin politely (never sleep) until the new table is published, or
+        // for up to 8*megs msec.
+        final long deadline = System.nanoTime() + 8L*megs*1000000L;
+        while( (newkvs=_newkvs) == null && System.nanoTime() - deadline < 0 )
+          Thread.yield();
+        if( newkvs != null )     // Resize already in progress
           return newkvs;         // Use the new table already
-        // TODO - use a wait with timeout, so we'll wakeup as soon as the new table
-        // is ready, or after the timeout in any case.
-        //synchronized( this ) { wait(8*megs); }         // Timeout - we always wakeup
-        // For now, sleep a tad and see if the 2 guys already trying to make
-        // the table actually get around to making it happen.
-        try { Thread.sleep(8*megs); } catch( Exception e ) { }
       }
       // Last check, since the 'new' below is expensive and there is a chance
       // that another thread slipped in a new thread while we ran the heuristic.
@@ -10,6 +10,10 @@ import java.lang.reflect.Field;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
 import sun.misc.Unsafe;
 
 /**
@@ -93,7 +97,7 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
   private static final long _kvs_offset;
   static {                      // <clinit>
     Field f = null;
-    try { f = NonBlockingHashMap.class.getDeclaredField("_kvs"); }
+    try { f = NonBlockingIdentityHashMap.class.getDeclaredField("_kvs"); }
     catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
     _kvs_offset = _unsafe.objectFieldOffset(f);
   }
@@ -230,6 +234,29 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
    *  or since the table was created.   */
   public long reprobes() { long r = _reprobes.get(); _reprobes = new Counter(); return r; }
 
+  // Opt-in event counts; null when disabled, so the hot paths pay only a
+  // null check.  Volatile so an enable is seen promptly and a new Recorder
+  // is published safely; a thread may still count a little late or early
+  // around an enable or disable.
+  private transient volatile MapStats.Recorder _stats;
+  /** Enable or disable gathering of the event counts reported by {@link
+   *  #stats}.  Turning them on starts the counts from zero; turning them
+   *  off drops them.
+   *  @param on true to gather statistics  */
+  public void setStatsEnabled( final boolean on ) {
+    _stats = on ? (_stats == null ? new MapStats.Recorder() : _stats) : null;
+  }
+  /** @return true if event counts are being gathered */
+  public boolean isStatsEnabled() { return _stats != null; }
+  /** Returns a snapshot of the table's health figures.  Event counts are
+   *  zero unless enabled with {@link #setStatsEnabled}.
+   *  @return a new {@link MapStats} snapshot */
+  public MapStats stats() {
+    final Object[] kvs = _kvs;
+    final CHM chm = chm(kvs);
+    return new MapStats(chm.size(),chm.slots(),len(kvs),_stats);
+  }
+
 
   // --- reprobe_limit -----------------------------------------------------
   // Heuristic to decide if we have reprobed toooo many times.  Running over
@@ -509,6 +536,8 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
           key == TOMBSTONE ) // found a TOMBSTONE key, means no more keys in this table
         return newkvs == null ? null : get_impl(topmap,topmap.help_copy(newkvs),key,fullhash); // Retry in the new table
 
+      final MapStats.Recorder st = topmap._stats;
+      if( st != null ) st._getReprobes.add(1);
       idx = (idx+1)&(len-1);    // Reprobe by 1!  (could now prefetch)
     }
   }
@@ -560,6 +589,8 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
         // by not allowing Keys to ever change.
         K = key(kvs,idx);       // CAS failed, get updated value
         assert K != null;       // If keys[idx] is null, CAS shoulda worked
+        final MapStats.Recorder st = topmap._stats;
+        if( st != null ) st._casRetries.add(1);
       }
       // Key slot was not null, there exists a Key here
 
@@ -574,7 +605,8 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
 
       // get and put must have the same key lookup logic!  Lest 'get' give
       // up looking too soon.
-      //topmap._reprobes.add(1);
+      final MapStats.Recorder st = topmap._stats;
+      if( st != null ) st._putReprobes.add(1);
       if( ++reprobe_cnt >= reprobe_limit(len) || // too many probes or
           key == TOMBSTONE ) { // found a TOMBSTONE key, means no more keys
         // We simply must have a new table to do a 'put'.  At this point a
@@ -647,6 +679,8 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
         return (V==null && expVal!=null) ? TOMBSTONE : V;
       } 
       // Else CAS failed
+      final MapStats.Recorder st = topmap._stats;
+      if( st != null ) st._casRetries.add(1);
       V = val(kvs,idx);         // Get new value
       // If a Prime'd value got installed, we need to re-run the put on the
       // new table.  Otherwise we lost the CAS to another racing put.
@@ -756,7 +790,16 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
     // Since this routine has a fast cutout for copy-already-started, callers
     // MUST 'help_copy' lest we have a path which forever runs through
     // 'resize' only to discover a copy-in-progress which never progresses.
+    // With statistics on, the time a caller spends starting a copy (sizing,
+    // throttled, allocating) is recorded as a pause.
     private final Object[] resize( NonBlockingIdentityHashMap topmap, Object[] kvs) {
+      final MapStats.Recorder st = topmap._stats;
+      if( st == null || _newkvs != null ) return resize_impl(topmap,kvs);
+      final long t0 = System.nanoTime();
+      try { return resize_impl(topmap,kvs); }
+      finally { st.pause(System.nanoTime()-t0); }
+    }
+    private final Object[] resize_impl( NonBlockingIdentityHashMap topmap, Object[] kvs) {
       assert chm(kvs) == this;
 
       // Check for resize already in progress, probably triggered by another thread
@@ -808,15 +851,13 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
       // 2x but does not screw up the heuristic very much.
       int megs = ((((1<<log2)<<1)+4)<<3/*word to bytes*/)>>20/*megs*/;
       if( r >= 2 && megs > 0 ) { // Already 2 guys trying; wait and see
-        newkvs = _newkvs;        // Between dorking around, another thread did it
-        if( newkvs != null )     // See if resize is already in progress
+        // Spin politely (never sleep) until the new table is published, or
+        // for up to 8*megs msec.
+        final long deadline = System.nanoTime() + 8L*megs*1000000L;
+        while( (newkvs=_newkvs) == null && System.nanoTime() - deadline < 0 )
+          Thread.yield();
+        if( newkvs != null )     // Resize already in progress
           return newkvs;         // Use the new table already
-        // TODO - use a wait with timeout, so we'll wakeup as soon as the new table
-        // is ready, or after the timeout in any case.
-        //synchronized( this ) { wait(8*megs); }         // Timeout - we always wakeup
-        // For now, sleep a tad and see if the 2 guys already trying to make
-        // the table actually get around to making it happen.
-        try { Thread.sleep(8*megs); } catch( Exception e ) { }
       }
       // Last check, since the 'new' below is expensive and there is a chance
       // that another thread slipped in a new thread while we ran the heuristic.
@@ -834,8 +875,14 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
         return _newkvs;         // Use the new table already
 
       // The new table must be CAS'd in so only 1 winner amongst duplicate
-      // racing resizing threads.  Extra CHM's will be GC'd.
+      // racing resizing threads.  Extra CHM's will be GC'd.  The copy's start
+      // is stamped on the new table before it is published, so whichever
+      // thread promotes it sees the stamp.
+      final CHM newchm = chm(newkvs);
+      if( topmap._stats != null ) newchm._copyStartNanos = System.nanoTime();
+      if( HighScaleEvents.ON ) newchm._jfr = HighScaleEvents.promotion_begin(topmap,len(kvs),len(newkvs));
       if( CAS_newkvs( newkvs ) ) { // NOW a resize-is-in-progress!
+        if( HighScaleEvents.ON ) HighScaleEvents.resize_start(topmap,len(kvs),len(newkvs),_size.estimate_get());
         //notifyAll();            // Wake up any sleepers
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Resize from "+oldlen+" to "+(1<<log2)+" and had "+(_resizers-1)+" extras" );
@@ -847,6 +894,12 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
     }
 
 
+    // When the copy into this table began, if statistics were on; zero
+    // otherwise.  Set before the table is published, never changed after.
+    long _copyStartNanos;
+    // The JFR promotion event begun with the copy into this table, if recording
+    Object _jfr;
+
     // The next part of the table to copy.  It monotonically transits from zero
     // to _kvs.length.  Visitors to the table can claim 'work chunks' by
     // CAS'ing this field up, then copying the indicated indices from the old
@@ -868,7 +921,16 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
     // Help along an existing resize operation.  We hope its the top-level
     // copy (it was when we started) but this CHM might have been promoted out
     // of the top position.
+    // With statistics on, the time a caller is drafted into copying is
+    // recorded as a pause.
     private final void help_copy_impl( NonBlockingIdentityHashMap topmap, Object[] oldkvs, boolean copy_all ) {
+      final MapStats.Recorder st = topmap._stats;
+      if( st == null ) { help_copy_work(topmap,oldkvs,copy_all); return; }
+      final long t0 = System.nanoTime();
+      try { help_copy_work(topmap,oldkvs,copy_all); }
+      finally { st.pause(System.nanoTime()-t0); }
+    }
+    private final void help_copy_work( NonBlockingIdentityHashMap topmap, Object[] oldkvs, boolean copy_all ) {
       assert chm(oldkvs) == this;
       Object[] newkvs = _newkvs;
       assert newkvs != null;    // Already checked by caller
@@ -968,6 +1030,14 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
           // Attempt to promote
           topmap.CAS_kvs(oldkvs,_newkvs) ) {
         topmap._last_resize_milli = System.currentTimeMillis(); // Record resize time for next check
+        final MapStats.Recorder st = topmap._stats;
+        if( st != null ) {
+          st._resizes.add(1);
+          final long start = chm(_newkvs)._copyStartNanos;
+          if( start != 0 ) st._copyNanos.add(System.nanoTime()-start);
+        }
+        final Object jfr = chm(_newkvs)._jfr;
+        if( jfr != null ) HighScaleEvents.resize_done(jfr);
         //long nano = System.nanoTime();
         //System.out.println(" "+nano+" Promote table to "+len(_newkvs));
         //if( System.out != null ) System.out.print("]");
@@ -1044,25 +1114,26 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
 
 
   // --- Snapshot ------------------------------------------------------------
-  // The main class for iterating over the NBHM.  It "snapshots" a clean
-  // view of the K/V array.
+  // "Snapshot" a clean view of the K/V array, for iterating over the map.
+  private final Object[] snapshot() {
+    while( true ) {             // Verify no table-copy-in-progress
+      Object[] topkvs = _kvs;
+      CHM topchm = chm(topkvs);
+      if( topchm._newkvs == null ) // No table-copy-in-progress
+        // The "linearization point" for the iteration.  Every key in this
+        // table will be visited, but keys added later might be skipped or
+        // even be added to a following table (also not iterated over).
+        return topkvs;
+      // Table copy in-progress - so we cannot get a clean iteration.  We
+      // must help finish the table copy before we can start iterating.
+      topchm.help_copy_impl(this,topkvs,true);
+    }
+  }
+
   private class SnapshotV implements Iterator<TypeV>, Enumeration<TypeV> {
     final Object[] _sskvs;
     public SnapshotV() {
-      while( true ) {           // Verify no table-copy-in-progress
-        Object[] topkvs = _kvs;
-        CHM topchm = chm(topkvs);
-        if( topchm._newkvs == null ) { // No table-copy-in-progress
-          // The "linearization point" for the iteration.  Every key in this
-          // table will be visited, but keys added later might be skipped or
-          // even be added to a following table (also not iterated over).
-          _sskvs = topkvs;
-          break;
-        }
-        // Table copy in-progress - so we cannot get a clean iteration.  We
-        // must help finish the table copy before we can start iterating.
-        topchm.help_copy_impl(NonBlockingIdentityHashMap.this,topkvs,true);
-      }
+      _sskvs = snapshot();
       // Warm-up the iterator
       next();
     }
@@ -1129,6 +1200,10 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
       @Override public int     size    (          ) { return NonBlockingIdentityHashMap.this.size         ( ); }
       @Override public boolean contains( Object v ) { return NonBlockingIdentityHashMap.this.containsValue(v); }
       @Override public Iterator<TypeV> iterator()   { return new SnapshotV(); }
+      @Override public boolean removeIf( final Predicate<? super TypeV> filter ) {
+        if( filter == null ) throw new NullPointerException();
+        return NonBlockingIdentityHashMap.this.removeIf((k,v) -> filter.test(v));
+      }
     };
   }
 
@@ -1169,6 +1244,10 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
       @Override public boolean contains( Object k ) { return NonBlockingIdentityHashMap.this.containsKey(k); }
       @Override public boolean remove  ( Object k ) { return NonBlockingIdentityHashMap.this.remove  (k) != null; }
       @Override public Iterator<TypeK> iterator()   { return new SnapshotK(); }
+      @Override public boolean removeIf( final Predicate<? super TypeK> filter ) {
+        if( filter == null ) throw new NullPointerException();
+        return NonBlockingIdentityHashMap.this.removeIf((k,v) -> filter.test(k));
+      }
     };
   }
 
@@ -1230,9 +1309,86 @@ public class NonBlockingIdentityHashMap<TypeK, TypeV>
         return v.equals(e.getValue());
       }
       @Override public Iterator<Map.Entry<TypeK,TypeV>> iterator() { return new SnapshotE(); }
+      @Override public boolean removeIf( final Predicate<? super Map.Entry<TypeK,TypeV>> filter ) {
+        if( filter == null ) throw new NullPointerException();
+        return NonBlockingIdentityHashMap.this.removeIf((k,v) -> filter.test(new NBHMEntry(k,v)));
+      }
     };
   }
 
+  // --- forEach, replaceAll, removeIf -------------------------------------
+  // Sequential walks over a snapshot of the K/V array, reading the slots in
+  // place: no iterator, no Entry and nothing else allocated per element.
+  // Weakly consistent, just like the iterators.  Updates go through the
+  // top-level table, and are conditional on the value the user's function
+  // saw, so racing updates are never silently overwritten.
+
+  // Live value in slot idx of a snapshot holding key K, or null.  A slot
+  // caught mid-copy by a later resize (a Prime) costs an official 'get'.
+  private final Object live_val( final Object[] sskvs, final int idx, final Object K ) {
+    if( K == null || K == TOMBSTONE ) return null;
+    Object V = val(sskvs,idx);
+    final Object[] newkvs = chm(sskvs)._newkvs; // VOLATILE READ before using K,V
+    if( V instanceof Prime ) V = get(K); // Mid-copy: ask the official way
+    return V == TOMBSTONE ? null : V;
+  }
+
+  /** Performs the given action for each mapping, walking the table in place
+   *  without allocating per element.
+   *  @throws NullPointerException if the action is null */
+  @Override
+  public void forEach( BiConsumer<? super TypeK,? super TypeV> action ) {
+    if( action == null ) throw new NullPointerException();
+    final Object[] sskvs = snapshot();
+    for( int idx=0; idx<len(sskvs); idx++ ) {
+      final Object K = key(sskvs,idx);
+      final Object V = live_val(sskvs,idx,K);
+      if( V != null ) action.accept((TypeK)K,(TypeV)V);
+    }
+  }
+
+  /** Replaces each value with the result of the given function.  Each
+   *  replacement is atomic: if another thread changes the value first, the
+   *  function is applied again to the new value.  Mappings removed
+   *  concurrently stay removed.
+   *  @throws NullPointerException if the function or any value it returns is null */
+  @Override
+  public void replaceAll( BiFunction<? super TypeK,? super TypeV,? extends TypeV> function ) {
+    if( function == null ) throw new NullPointerException();
+    final Object[] sskvs = snapshot();
+    for( int idx=0; idx<len(sskvs); idx++ ) {
+      final Object K = key(sskvs,idx);
+      Object V = live_val(sskvs,idx,K);
+      while( V != null ) {
+        final Object W = function.apply((TypeK)K,(TypeV)V);
+        if( W == null ) throw new NullPointerException();
+        final Object res = putIfMatch(this,_kvs,K,W,V);
+        if( res == V || V.equals(res) ) break; // Replaced
+        V = res == TOMBSTONE ? null : res;     // Lost a race; retry unless removed
+      }
+    }
+  }
+
+  /** Removes all of the mappings satisfying the given predicate.  Each
+   *  removal is atomic and only happens if the value is still the one the
+   *  predicate was tested against.
+   *  @return <tt>true</tt> if any mappings were removed
+   *  @throws NullPointerException if the predicate is null */
+  public boolean removeIf( BiPredicate<? super TypeK,? super TypeV> filter ) {
+    if( filter == null ) throw new NullPointerException();
+    boolean removed = false;
+    final Object[] sskvs = snapshot();
+    for( int idx=0; idx<len(sskvs); idx++ ) {
+      final Object K = key(sskvs,idx);
+      final Object V = live_val(sskvs,idx,K);
+      if( V != null && filter.test((TypeK)K,(TypeV)V) ) {
+        final Object res = putIfMatch(this,_kvs,K,TOMBSTONE,V);
+        if( res == V || V.equals(res) ) removed = true;
+      }
+    }
+    return removed;
+  }
+
   // --- writeObject -------------------------------------------------------
   // Write a NBHM to a stream
   private void writeObject(java.io.ObjectOutputStream s) throws IOException  {
@@ -0,0 +1,758 @@
+package org.cliffc.high_scale_lib;
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A lock-free hash table from object keys to primitive {@code long}
+ * counters.  Each mapping costs a key slot, a memoized hash and a {@code
+ * long} in parallel arrays - where a {@link NonBlockingHashMap} of {@link
+ * Counter}s pays for a Counter, its table and its stripes per key.  Updates
+ * CAS the counter in place and allocate nothing.
+ *
+ * <p>Keys are hashed and compared as in {@link NonBlockingHashMap}, and the
+ * table is grown by the same cooperative copy; all operations are
+ * non-blocking.  An absent key reads as zero.  Counts are limited to 63
+ * bits, between {@link #MIN_VALUE} and {@link #MAX_VALUE}: the spare bit
+ * marks a count frozen by a table copy, in place of the {@code Prime}
+ * wrapper the other maps allocate.
+ *
+ * <p>{@link #drain} hands off and removes every count in one pass, for
+ * periodic reporting.  A key drained and then counted again reuses its old
+ * slot, so a steady set of keys causes no table churn.
+ *
+ * @since 1.0.7
+ * @param <TypeK> the type of keys maintained by this map
+ */
+public class NonBlockingObjectLongMap<TypeK> {
+
+  private static final int REPROBE_LIMIT=10; // Too many reprobes then force a table-resize
+
+  // --- Bits to allow Unsafe access to arrays
+  private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
+  private static final int _Obase  = _unsafe.arrayBaseOffset(Object[].class);
+  private static final int _Oscale = _unsafe.arrayIndexScale(Object[].class);
+  private static long rawIndex(final Object[] ary, final int idx) {
+    assert idx >= 0 && idx < ary.length;
+    return _Obase + (long)idx * _Oscale;
+  }
+  private static final int _Lbase  = _unsafe.arrayBaseOffset(long[].class);
+  private static final int _Lscale = _unsafe.arrayIndexScale(long[].class);
+  private static long rawIndex(final long[] ary, final int idx) {
+    assert idx >= 0 && idx < ary.length;
+    return _Lbase + (long)idx * _Lscale;
+  }
+
+  // --- Bits to allow Unsafe CAS'ing of the CHM field
+  private static final long _chm_offset;
+  static {                      // <clinit>
+    Field f = null;
+    try { f = NonBlockingObjectLongMap.class.getDeclaredField("_chm"); }
+    catch( java.lang.NoSuchFieldException e ) { throw new RuntimeException(e); }
+    _chm_offset = _unsafe.objectFieldOffset(f);
+  }
+  private final boolean CAS( final long offset, final Object old, final Object nnn ) {
+    return _unsafe.compareAndSwapObject(this, offset, old, nnn );
+  }
+
+  // --- Value encoding --------------------
+  /** Smallest count that can be stored. */
+  public static final long MIN_VALUE = (Long.MIN_VALUE>>1)+4;
+  /** Largest count that can be stored. */
+  public static final long MAX_VALUE = Long.MAX_VALUE>>1;
+
+  // Counts are stored as in NonBlockingHashMapLongLong: XOR'd with BIAS,
+  // which leaves the top two bits of any legal count equal and maps the 4
+  // values just below MIN_VALUE onto the sentinels below.  A fresh long[]
+  // reads as EMPTY.  A count is 'prime'd by flipping bit 62.
+  private static final long BIAS = Long.MIN_VALUE>>1;
+  private static final long PRIME_BIT = 1L<<62;
+  // Never-set value; plays the part of 'null' in NonBlockingHashMap.
+  private static final long EMPTY = 0;
+  // This K/V pair has been deleted (but the Key slot is forever claimed).
+  private static final long TOMBSTONE = 1;
+  // putIfMatch wildcard; never stored in a table.
+  private static final long NO_MATCH_OLD = 2;
+  // Prime'd version of TOMBSTONE
+  private static final long TOMBPRIME = TOMBSTONE^PRIME_BIT;
+  private static boolean is_prime( final long V ) { return (V ^ (V<<1)) < 0; }
+
+  private static long encode( final long val ) {
+    if( val < MIN_VALUE || val > MAX_VALUE )
+      throw new IllegalArgumentException("value out of range: "+val);
+    return val^BIAS;
+  }
+  // Absent keys count as zero
+  private static long decode( final long V ) {
+    assert !is_prime(V);
+    return V == EMPTY || V == TOMBSTONE ? 0 : V^BIAS;
+  }
+  // Encode a sum, which may have left the legal range
+  private static long encode_sum( final long old, final long delta ) {
+    final long sum = old + delta;
+    if( ((old ^ sum) & (delta ^ sum)) < 0 || sum < MIN_VALUE || sum > MAX_VALUE )
+      throw new ArithmeticException("value out of range: "+old+" + "+delta);
+    return sum^BIAS;
+  }
+
+  // Key sentinel: a key slot killed by a table copy before any key claimed
+  // it.  As in NonBlockingHashMap, finding one means no more keys follow in
+  // this table.
+  private static final Object TOMBSTONE_KEY = new Object();
+
+  // --- hash ----------------------------------------------------------------
+  // NonBlockingHashMap's spreader, so keys probe alike in both maps
+  private static final int hash( final Object key ) {
+    return NonBlockingHashMap.spread(key.hashCode()); // throws NullPointerException if key null
+  }
+
+  // --- The Hash Table --------------------
+  private transient CHM _chm;
+
+  // Time since last resize
+  private transient long _last_resize_milli;
+
+  // --- Minimum table size ----------------
+  private static final int MIN_SIZE_LOG=3;             //
+  private static final int MIN_SIZE=(1<<MIN_SIZE_LOG); // Must be power of 2
+  // Largest table: slot indices are ints and the index math must not overflow
+  private static final int MAX_SIZE_LOG=30;
+
+  // --- reprobe_limit -----------------------------------------------------
+  // Heuristic to decide if we have reprobed toooo many times.  Running over
+  // the reprobe limit on a 'get' call acts as a 'miss'; on a 'put' call it
+  // can trigger a table resize.  Several places must have exact agreement on
+  // what the reprobe_limit is, so we share it here.
+  private static final int reprobe_limit( int len ) {
+    return REPROBE_LIMIT + (len>>2);
+  }
+
+  // --- NonBlockingObjectLongMap --------------------------------------------
+  // Constructors
+  /** Create a new NonBlockingObjectLongMap with default minimum size
+   *  (currently set to 8 K/V pairs). */
+  public NonBlockingObjectLongMap( ) { this(MIN_SIZE); }
+
+  /** Create a new NonBlockingObjectLongMap with initial room for the given
+   *  number of elements, thus avoiding internal resizing operations to reach
+   *  an appropriate size.  The initial size will be rounded up internally to
+   *  the next larger power of 2. */
+  public NonBlockingObjectLongMap( final int initial_sz ) {
+    if( initial_sz < 0 ) throw new IllegalArgumentException();
+    int i;                      // Convert to next largest power-of-2
+    for( i=MIN_SIZE_LOG; (1<<i) < initial_sz && i < MAX_SIZE_LOG; i++ ) ;
+    _chm = new CHM(this,new Counter(),i);
+    _last_resize_milli = System.currentTimeMillis();
+  }
+
+  // --- wrappers ------------------------------------------------------------
+
+  /** Returns the number of keys with a count in this map.
+   *  @return the number of keys with a count */
+  public int     size       ( )            { return _chm.size(); }
+  /** Returns <tt>size() == 0</tt>.
+   *  @return <tt>size() == 0</tt> */
+  public boolean isEmpty    ( )            { return size() == 0; }
+  /** Tests if the key has a count, even a zero count.
+   * @return <tt>true</tt> if the key is in the table
+   * @throws NullPointerException if the key is null */
+  public boolean containsKey( Object key ) { return _chm.get_impl(key,hash(key)) != EMPTY; }
+
+  /** Returns the count for the key, or zero if the key is not mapped.
+   *  @throws NullPointerException if the key is null */
+  public long    getLong    ( Object key ) { return decode(_chm.get_impl(key,hash(key))); }
+
+  /** Set the count for the key.
+   *  @return the previous count, or zero if the key was not mapped
+   *  @throws IllegalArgumentException if the value is out of range
+   *  @throws NullPointerException if the key is null */
+  public long    put        ( TypeK key, long val ) { return decode(_chm.putIfMatch(key,hash(key),encode(val),NO_MATCH_OLD)); }
+
+  /** Removes the key and its count from this map.
+   *  @return the previous count, or zero if the key was not mapped
+   *  @throws NullPointerException if the key is null */
+  public long    remove     ( Object key ) { return decode(_chm.putIfMatch(key,hash(key),TOMBSTONE,NO_MATCH_OLD)); }
+
+  /** Atomically add <code>delta</code> to the count for the key, starting
+   *  from zero if the key is not mapped.  Lock-free and allocation-free.
+   *  @return the updated count
+   *  @throws ArithmeticException if the sum is out of range
+   *  @throws NullPointerException if the key is null */
+  public long    addAndGet  ( TypeK key, long delta ) { return _chm.add_impl(key,hash(key),delta)^BIAS; }
+  /** Atomically add <code>delta</code> to the count for the key.
+   *  @return the count before the add, or zero if the key was not mapped */
+  public long    getAndAdd  ( TypeK key, long delta ) { return addAndGet(key,delta) - delta; }
+  /** Atomically add one to the count for the key.
+   *  @return the updated count */
+  public long    increment  ( TypeK key ) { return addAndGet(key, 1); }
+  /** Atomically subtract one from the count for the key.
+   *  @return the updated count */
+  public long    decrement  ( TypeK key ) { return addAndGet(key,-1); }
+
+  /** Removes all of the mappings from this map. */
+  public void clear() {         // Smack a new empty table down
+    CHM newchm = new CHM(this,new Counter(),MIN_SIZE_LOG);
+    while( !CAS(_chm_offset,_chm,newchm) ) // Spin until the clear works
+      ;
+  }
+
+  /** Passes every key and its count to <code>f</code>.  Keys added or
+   *  removed during the pass may or may not be seen.
+   *  @param f called once per key */
+  public void forEach( final ObjLongConsumer<? super TypeK> f ) {
+    final CHM sschm = snapshot();
+    for( int i=0; i<sschm._keys.length; i++ ) {
+      final Object K = sschm._keys[i];
+      if( K == null || K == TOMBSTONE_KEY ) continue;
+      final long V = _chm.get_impl(K,hash(K));
+      if( V != EMPTY ) f.accept((TypeK)K,V^BIAS);
+    }
+  }
+
+  /** Atomically takes and removes each key's count in turn, passing it to
+   *  <code>f</code>: a snapshot-and-reset for periodic reporting.  Every
+   *  update lands in exactly one drain - counts added to a key after its
+   *  turn are left for the next one.
+   *  @param f called once per key drained
+   *  @return number of keys drained */
+  public int drain( final ObjLongConsumer<? super TypeK> f ) {
+    final CHM sschm = snapshot();
+    int n = 0;
+    for( int i=0; i<sschm._keys.length; i++ ) {
+      final Object K = sschm._keys[i];
+      if( K == null || K == TOMBSTONE_KEY ) continue;
+      final long V = _chm.putIfMatch(K,hash(K),TOMBSTONE,NO_MATCH_OLD);
+      if( V == EMPTY || V == TOMBSTONE ) continue;
+      f.accept((TypeK)K,V^BIAS);
+      n++;
+    }
+    return n;
+  }
+
+  // --- help_copy -----------------------------------------------------------
+  // Help along an existing resize operation.  This is just a fast cut-out
+  // wrapper, to encourage inlining for the fast no-copy-in-progress case.  We
+  // always help the top-most table copy, even if there are nested table
+  // copies in progress.
+  private final void help_copy( ) {
+    CHM topchm = _chm;
+    if( topchm._newchm == null ) return; // No copy in-progress
+    topchm.help_copy_impl(false);
+  }
+
+  // --- CHM -----------------------------------------------------------------
+  // The control structure for the NonBlockingObjectLongMap
+  private static final class CHM {
+    // Back-pointer to top-level structure
+    final NonBlockingObjectLongMap _map;
+
+    // Size in active K,V pairs
+    private final Counter _size;
+    public int size () { return (int)_size.get(); }
+
+    // Count of used slots, to tell when table is full of dead unusable slots
+    private final Counter _slots;
+    public int slots() { return (int)_slots.get(); }
+
+    // New mappings, used during resizing.  The 'next' CHM - created during a
+    // resize operation.  It's the volatile variable that is read as we cross
+    // from one table to the next, to get the required memory orderings.  It
+    // monotonically transits from null to set (once).
+    volatile CHM _newchm;
+    private static final AtomicReferenceFieldUpdater<CHM,CHM> _newchmUpdater =
+      AtomicReferenceFieldUpdater.newUpdater(CHM.class,CHM.class, "_newchm");
+    // Set the _newchm field if we can.  AtomicUpdaters do not fail spuriously.
+    boolean CAS_newchm( CHM newchm ) {
+      return _newchmUpdater.compareAndSet(this,null,newchm);
+    }
+    // Count of threads attempting an initial resize; see resize
+    volatile long _resizers;
+    private static final AtomicLongFieldUpdater<CHM> _resizerUpdater =
+      AtomicLongFieldUpdater.newUpdater(CHM.class, "_resizers");
+
+    // --- key,val -------------------------------------------------------------
+    // Access K,V for a given idx
+    private final boolean CAS_key( int idx, Object old, Object key ) {
+      return _unsafe.compareAndSwapObject( _keys, rawIndex(_keys, idx), old, key );
+    }
+    private final boolean CAS_val( int idx, long old, long val ) {
+      return _unsafe.compareAndSwapLong( _vals, rawIndex(_vals, idx), old, val );
+    }
+    private final long val( int idx ) {
+      return _unsafe.getLongVolatile( _vals, rawIndex(_vals, idx) );
+    }
+
+    final Object[] _keys;
+    final int   [] _hashes;         // Memoized full hashes; zero while a key is installed
+    final long  [] _vals;
+
+    // Simple constructor
+    CHM( final NonBlockingObjectLongMap map, Counter size, final int logsize ) {
+      _map = map;
+      _size = size;
+      _slots= new Counter();
+      _keys   = new Object[1<<logsize];
+      _hashes = new int   [1<<logsize];
+      _vals   = new long  [1<<logsize];
+    }
+
+    // --- keyeq -------------------------------------------------------------
+    // Check for key equality as NonBlockingHashMap does: pointer compare
+    // first, then the memoized hashes as a fast negative test, and finally
+    // the full 'equals' v-call.
+    private final boolean keyeq( Object K, Object key, int idx, int fullhash ) {
+      if( K==key ) return true;
+      final int hash = _hashes[idx];
+      return (hash == 0 || hash == fullhash) &&
+        K != TOMBSTONE_KEY &&   // Do not call users' equals call with a Tombstone
+        key.equals(K);
+    }
+
+    // --- get_impl ----------------------------------------------------------
+    // Never returns a Prime nor a Tombstone.
+    private final long get_impl( final Object key, final int fullhash ) {
+      final int len = _keys.length;
+      int idx = fullhash & (len-1); // First key hash
+
+      // Main spin/reprobe loop, looking for a Key hit
+      int reprobe_cnt=0;
+      while( true ) {
+        final Object K = _keys[idx]; // Get key   before volatile read, could be null
+        final long   V = val(idx);   // Get value, could be EMPTY or Tombstone or Prime
+        if( K == null ) return EMPTY; // A clear miss
+
+        // We need a volatile-read here to preserve happens-before semantics
+        // on newly inserted Keys, lest a Key-compare read the uninitialized
+        // Key body.
+        final CHM newchm = _newchm; // VOLATILE READ before key compare
+
+        // Key-compare
+        if( keyeq(K,key,idx,fullhash) ) {
+          // Key hit!  Check for no table-copy-in-progress
+          if( !is_prime(V) )    // No copy?
+            return V == TOMBSTONE ? EMPTY : V;
+          // Key hit - but slot is (possibly partially) copied to the new table.
+          // Finish the copy & retry in the new table.
+          return copy_slot_and_check(idx,true).get_impl(key,fullhash); // Retry in the new table
+        }
+        // get and put must have the same key lookup logic!  But only 'put'
+        // needs to force a table-resize for a too-long key-reprobe sequence.
+        // Check for too-many-reprobes on get - and flip to the new table.
+        if( ++reprobe_cnt >= reprobe_limit(len) || // too many probes
+            K == TOMBSTONE_KEY ) // found a TOMBSTONE key, means no more keys in this table
+          return newchm == null ? EMPTY : _map.help_copy_and_get(newchm).get_impl(key,fullhash);
+
+        idx = (idx+1)&(len-1);    // Reprobe by 1!  (could now prefetch)
+      }
+    }
+
+    // --- claim_key ---------------------------------------------------------
+    // Key-Claim stanza shared by putIfMatch and add_impl: find the key's
+    // slot, claiming a free one if need be.  Returns the slot index in the
+    // low 32 bits and the reprobe count, wanted by tableFull, in the high;
+    // or -1 if the caller must retry in the new table; or -2 if the key is
+    // absent and 'claim' is false.
+    private final long claim_key( final Object key, final int fullhash, final boolean claim ) {
+      final int len = _keys.length;
+      int idx = fullhash & (len-1); // The first key
+      int reprobe_cnt=0;
+      while( true ) {           // Spin till we get a Key slot
+        Object K = _keys[idx];  // Get current key
+        if( K == null ) {       // Slot is free?
+          // Found an empty Key slot - which means this Key has never been in
+          // this table.  No need to put a Tombstone - the Key is not here!
+          if( !claim ) return -2; // Not-now & never-been in this table
+          // Claim the null key-slot
+          if( CAS_key(idx, null, key) ) { // Claim slot for Key
+            _slots.add(1);      // Raise key-slots-used count
+            _hashes[idx] = fullhash; // Memoize fullhash
+            return ((long)reprobe_cnt<<32)|idx; // Got it!
+          }
+          // CAS to claim the key-slot failed.  Keys never change once set, so
+          // re-reading recovers the witness.
+          K = _keys[idx];       // CAS failed, get updated value
+          assert K != null;     // If keys[idx] is null, CAS shoulda worked
+        }
+        // Key slot was not null, there exists a Key here.  Volatile-read
+        // before the key compare, as in get_impl.
+        final CHM newchm = _newchm;
+        if( keyeq(K,key,idx,fullhash) )
+          return ((long)reprobe_cnt<<32)|idx; // Got it!
+
+        // get and put must have the same key lookup logic!  Lest 'get' give
+        // up looking too soon.
+        if( ++reprobe_cnt >= reprobe_limit(len) || // too many probes or
+            K == TOMBSTONE_KEY ) // found a TOMBSTONE key, means no more keys
+          return claim ? -1 : (newchm == null ? -2 : -1);
+
+        idx = (idx+1)&(len-1);  // Reprobe!
+      }
+    }
+
+    // --- putIfMatch ---------------------------------------------------------
+    // Put, Remove, and the table copy.  Return the old value.  If the
+    // returned value is equal to expVal (or expVal is NO_MATCH_OLD) then the
+    // put can be assumed to work (although might have been immediately
+    // overwritten).  Only the path through copy_slot passes in an expected
+    // value of EMPTY, and putIfMatch only returns EMPTY if passed in an
+    // expected EMPTY.
+    private final long putIfMatch( final Object key, final int fullhash, final long putval, final long expVal ) {
+      assert putval != EMPTY;
+      assert !is_prime(putval);
+      final int len = _keys.length;
+
+      // ---
+      // Key-Claim stanza: spin till we can claim a Key (or force a resizing).
+      final long claimed = claim_key(key, fullhash, putval != TOMBSTONE);
+      if( claimed == -2 ) return putval; // Removing a never-been key
+      if( claimed == -1 ) {
+        // We simply must have a new table to do a 'put'.  At this point a
+        // 'get' will also go to the new table (if any).
+        final CHM newchm = resize();
+        if( expVal != EMPTY ) _map.help_copy(); // help along an existing copy
+        return newchm.putIfMatch(key,fullhash,putval,expVal);
+      }
+
+      // ---
+      // Found the proper Key slot, now update the matching Value slot.
+      final int idx = (int)claimed;
+      long V = val(idx);
+      if( putval == V ) return V; // Fast cutout for no-change
+
+      // See if we want to move to a new table (to avoid high average re-probe
+      // counts).  We only check on the initial set of a Value from EMPTY to
+      // not-EMPTY (i.e., once per key-insert).
+      if( (V == EMPTY && tableFull((int)(claimed>>>32),len)) ||
+          // Or we found a Prime: resize is already in progress.
+          is_prime(V) ) {
+        resize();               // Force the new table copy to start
+        return copy_slot_and_check(idx,expVal != EMPTY).putIfMatch(key,fullhash,putval,expVal);
+      }
+
+      // ---
+      // We are finally prepared to update the existing table
+      while( true ) {
+        assert !is_prime(V);
+        // Must match old, and we do not?  Then bail out now.  expVal is EMPTY
+        // only when called from copy_slot.
+        if( expVal != NO_MATCH_OLD && V != expVal )
+          return V;             // Do not update!
+
+        // Actually change the Value in the Key,Value pair
+        if( CAS_val(idx, V, putval ) ) {
+          // CAS succeeded - we did the update!  Table-copy does not
+          // (effectively) increase the number of live k/v pairs.
+          if( expVal != EMPTY ) {
+            // Adjust sizes - a striped counter
+            if(  (V == EMPTY || V == TOMBSTONE) && putval != TOMBSTONE ) _size.add( 1);
+            if( !(V == EMPTY || V == TOMBSTONE) && putval == TOMBSTONE ) _size.add(-1);
+          }
+          return (V==EMPTY && expVal!=EMPTY) ? TOMBSTONE : V;
+        }
+        // Else CAS failed
+        V = val(idx);           // Get new value
+        // If a Prime'd value got installed, we need to re-run the put on the
+        // new table.  Otherwise we lost the CAS to another racing put.
+        if( is_prime(V) )
+          return copy_slot_and_check(idx,expVal != EMPTY).putIfMatch(key,fullhash,putval,expVal);
+      }
+    }
+
+    // --- add_impl ----------------------------------------------------------
+    // Add delta to the key's count in place, an absent count being zero.
+    // Returns the new encoded count.  Same shape as putIfMatch, but the
+    // value to CAS in is recomputed from each witness.
+    private final long add_impl( final Object key, final int fullhash, final long delta ) {
+      final int len = _keys.length;
+      final long claimed = claim_key(key, fullhash, true);
+      if( claimed == -1 ) {     // Table is full; must go to a new table
+        final CHM newchm = resize();
+        _map.help_copy();       // help along an existing copy
+        return newchm.add_impl(key,fullhash,delta);
+      }
+      final int idx = (int)claimed;
+      long V = val(idx);
+      if( (V == EMPTY && tableFull((int)(claimed>>>32),len)) || is_prime(V) ) {
+        resize();               // Force the new table copy to start
+        return copy_slot_and_check(idx,true).add_impl(key,fullhash,delta);
+      }
+      while( true ) {
+        assert !is_prime(V);
+        final boolean absent = V == EMPTY || V == TOMBSTONE;
+        final long nv = encode_sum(absent ? 0 : V^BIAS, delta);
+        if( CAS_val(idx, V, nv) ) {
+          if( absent ) _size.add(1);
+          return nv;
+        }
+        V = val(idx);           // Lost a race; retry on the new witness
+        if( is_prime(V) )       // Unless the slot is being copied
+          return copy_slot_and_check(idx,true).add_impl(key,fullhash,delta);
+      }
+    }
+
+    // --- tableFull ---------------------------------------------------------
+    // Heuristic to decide if this table is too full, and we should start a
+    // new table.  The invariant is:
+    //   slots.estimate_sum >= max_reprobe_cnt >= reprobe_limit(len)
+    private final boolean tableFull( int reprobe_cnt, int len ) {
+      return
+        // Do the cheap check first: we allow some number of reprobes always
+        reprobe_cnt >= REPROBE_LIMIT &&
+        // More expensive check: see if the table is > 1/4 full.
+        _slots.estimate_get() >= reprobe_limit(len);
+    }
+
+    // --- resize ------------------------------------------------------------
+    // Resizing after too many probes.  "How Big???" heuristics are
+    // NonBlockingHashMap's.  Callers will (not this routine) will 'help_copy'
+    // any in-progress copy.
+    private final CHM resize() {
+      // Check for resize already in progress, probably triggered by another thread
+      CHM newchm = _newchm;     // VOLATILE READ
+      if( newchm != null )      // See if resize is already in progress
+        return newchm;          // Use the new table already
+
+      // No copy in-progress, so start one.  First up: compute new table size.
+      int oldlen = _keys.length; // Old count of K,V pairs allowed
+      int sz = size();          // Get current table count of active K,V pairs
+      long newsz = sz;          // First size estimate; long lest it overflow
+
+      // Heuristic to determine new size.  We expect plenty of dead-slots-with-keys
+      // and we need some decent padding to avoid endless reprobing.
+      if( sz >= (oldlen>>2) ) { // If we are >25% full of keys then...
+        newsz = (long)oldlen<<1; // Double size
+        if( sz >= (oldlen>>1) ) // If we are >50% full of keys then...
+          newsz = (long)oldlen<<2; // Double double size
+      }
+
+      // Last (re)size operation was very recent?  Then double again; slows
+      // down resize operations for tables subject to a high key churn rate.
+      long tm = System.currentTimeMillis();
+      boolean recent = tm <= _map._last_resize_milli+10000; // Recent resize (less than 10 sec ago)
+      boolean sparse = sz < (oldlen>>4); // Less than 1/16th of the table is live?
+      if( newsz <= oldlen && recent && !sparse &&
+          _slots.estimate_get() >= (sz<<1) ) // 1/2 of keys are dead?
+        newsz = (long)oldlen<<1; // Double the existing size
+
+      // Shrink a mostly-empty table, but only if it has not been resized
+      // recently.
+      if( sparse && !recent ) newsz = (long)sz<<3;
+      // Otherwise do not shrink
+      else if( newsz < oldlen ) newsz = oldlen;
+
+      // Convert to power-of-2
+      int log2;
+      for( log2=MIN_SIZE_LOG; (1<<log2) < newsz && log2 < MAX_SIZE_LOG; log2++ ) ; // Compute log2 of size
+
+      // Now limit the number of threads actually allocating memory to a
+      // handful - lest we have 750 threads all trying to allocate a giant
+      // resized array.
+      long r = _resizers;
+      while( !_resizerUpdater.compareAndSet(this,r,r+1) )
+        r = _resizers;
+      // Size calculation: a key ref, a hash and a long per table entry
+      int megs = (int)((((long)(1<<log2))*(4+4+8))>>20/*megs*/);
+      if( r >= 2 && megs > 0 ) { // Already 2 guys trying; wait and see
+        // Spin politely (never sleep) until the new table is published, or
+        // for up to 8*megs msec.
+        final long deadline = System.nanoTime() + 8L*megs*1000000L;
+        while( (newchm=_newchm) == null && System.nanoTime() - deadline < 0 )
+          Thread.yield();
+        if( newchm != null )     // Resize already in progress
+          return newchm;         // Use the new table already
+      }
+      // Last check, since the 'new' below is expensive and there is a chance
+      // that another thread slipped in a new thread while we ran the heuristic.
+      newchm = _newchm;
+      if( newchm != null )      // See if resize is already in progress
+        return newchm;          // Use the new table already
+
+      // New CHM - actually allocate the big arrays
+      newchm = new CHM(_map,_size,log2);
+
+      // Another check after the slow allocation
+      if( _newchm != null )     // See if resize is already in progress
+        return _newchm;         // Use the new table already
+
+      // The new table must be CAS'd in so only 1 winner amongst duplicate
+      // racing resizing threads.  Extra CHM's will be GC'd.
+      if( !CAS_newchm( newchm ) ) // NOW a resize-is-in-progress!
+        newchm = _newchm;       // CAS failed?  Reread new table
+      return newchm;
+    }
+
+    // The next part of the table to copy.  It monotonically transits from zero
+    // to _keys.length.  Visitors to the table can claim 'work chunks' by
+    // CAS'ing this field up, then copying the indicated indices from the old
+    // table to the new table.
+    volatile long _copyIdx = 0;
+    static private final AtomicLongFieldUpdater<CHM> _copyIdxUpdater =
+      AtomicLongFieldUpdater.newUpdater(CHM.class, "_copyIdx");
+
+    // Work-done reporting.  Used to efficiently signal when we can move to
+    // the new table.
+    volatile long _copyDone= 0;
+    static private final AtomicLongFieldUpdater<CHM> _copyDoneUpdater =
+      AtomicLongFieldUpdater.newUpdater(CHM.class, "_copyDone");
+
+    // --- help_copy_impl ----------------------------------------------------
+    // Help along an existing resize operation.  We hope its the top-level
+    // copy (it was when we started) but this CHM might have been promoted out
+    // of the top position.
+    private final void help_copy_impl( final boolean copy_all ) {
+      final CHM newchm = _newchm;
+      assert newchm != null;    // Already checked by caller
+      int oldlen = _keys.length; // Total amount to copy
+      final int MIN_COPY_WORK = Math.min(oldlen,1024); // Limit per-thread work
+
+      // ---
+      int panic_start = -1;
+      int copyidx=-9999;            // Fool javac to think it's initialized
+      while( _copyDone < oldlen ) { // Still needing to copy?
+        // Carve out a chunk of work.  The counter wraps around so every
+        // thread eventually tries to copy every slot repeatedly.  We "panic"
+        // if we have tried TWICE to copy every slot - and it still has not
+        // happened - and then do all the copy work ourselves.
+        if( panic_start == -1 ) { // No panic?
+          copyidx = (int)_copyIdx;
+          while( copyidx < (oldlen<<1) && // 'panic' check
+                 !_copyIdxUpdater.compareAndSet(this,copyidx,copyidx+MIN_COPY_WORK) )
+            copyidx = (int)_copyIdx;     // Re-read
+          if( !(copyidx < (oldlen<<1)) ) // Panic!
+            panic_start = copyidx;       // Record where we started to panic-copy
+        }
+
+        // We now know what to copy.  Try to copy.
+        int workdone = 0;
+        for( int i=0; i<MIN_COPY_WORK; i++ )
+          if( copy_slot((copyidx+i)&(oldlen-1)) ) // Made an oldtable slot go dead?
+            workdone++;         // Yes!
+        if( workdone > 0 )      // Report work-done occasionally
+          copy_check_and_promote( workdone );// See if we can promote
+
+        copyidx += MIN_COPY_WORK;
+        if( !copy_all && panic_start == -1 ) // No panic?
+          return;               // Then done copying after doing MIN_COPY_WORK
+      }
+      // Extra promotion check, in case another thread finished all copying
+      // then got stalled before promoting.
+      copy_check_and_promote( 0 ); // See if we can promote
+    }
+
+    // --- copy_slot_and_check -----------------------------------------------
+    // Copy slot 'idx' from the old table to the new table.  If this thread
+    // confirmed the copy, update the counters and check for promotion.
+    // Returns the new table, for callers to retry their operation in.
+    private final CHM copy_slot_and_check( int idx, boolean should_help ) {
+      assert _newchm != null;
+      if( copy_slot(idx) )      // Copy the desired slot
+        copy_check_and_promote(1); // Record the slot copied
+      // Generically help along any copy (except if called recursively from a helper)
+      if( should_help ) _map.help_copy();
+      return _newchm;
+    }
+
+    // --- copy_check_and_promote --------------------------------------------
+    private final void copy_check_and_promote( int workdone ) {
+      int oldlen = _keys.length;
+      // We made a slot unusable and so did some of the needed copy work
+      long copyDone = _copyDone;
+      long nowDone = copyDone+workdone;
+      assert nowDone <= oldlen;
+      if( workdone > 0 ) {
+        while( !_copyDoneUpdater.compareAndSet(this,copyDone,nowDone) ) {
+          copyDone = _copyDone;   // Reload, retry
+          nowDone = copyDone+workdone;
+          assert nowDone <= oldlen;
+        }
+      }
+
+      // Check for copy being ALL done, and promote.  We only promote
+      // top-level copies.
+      if( nowDone == oldlen &&   // Ready to promote this table?
+          _map._chm == this &&   // Looking at the top-level table?
+          // Attempt to promote
+          _map.CAS(_chm_offset,this,_newchm) ) {
+        _map._last_resize_milli = System.currentTimeMillis();  // Record resize time for next check
+      }
+    }
+
+    // --- copy_slot ---------------------------------------------------------
+    // Copy one K/V pair from the old table to the new.  Returns true if we
+    // can confirm that the new table guaranteed has a value for this
+    // old-table slot.  As in NonBlockingHashMap.
+    private boolean copy_slot( int idx ) {
+      // Blindly set the key slot from null to TOMBSTONE, to eagerly stop
+      // fresh put's from inserting new values in the old table when the old
+      // table is mid-resize.
+      Object key;
+      while( (key=_keys[idx]) == null )
+        CAS_key(idx, null, TOMBSTONE_KEY);
+
+      // ---
+      // Prevent new values from appearing in the old table.
+      // Prime what we see in the old table, to prevent further updates.
+      long oldval = val(idx);   // Read OLD table
+      while( !is_prime(oldval) ) {
+        final long box = (oldval == EMPTY || oldval == TOMBSTONE) ? TOMBPRIME : oldval^PRIME_BIT;
+        if( CAS_val(idx,oldval,box) ) { // CAS down a prime'd version of oldval
+          // If we made the Value slot hold a TOMBPRIME, then we both
+          // prevented further updates here but also the (absent) oldval is
+          // vaccuously available in the new table.
+          if( box == TOMBPRIME )
+            return true;
+          // Otherwise we prime'd something, but it still needs to be
+          // copied into the new table.
+          oldval = box;         // Record updated oldval
+          break;                // Break loop; oldval is now prime'd by us
+        }
+        oldval = val(idx);      // Else try, try again
+      }
+      if( oldval == TOMBPRIME ) return false; // Copy already complete here!
+
+      // ---
+      // Copy the value into the new table, but only if we overwrite an EMPTY.
+      // A live value means a real key; its hash may not be memoized yet.
+      final long old_unboxed = oldval^PRIME_BIT;
+      assert old_unboxed != TOMBSTONE;
+      final int h = _hashes[idx];
+      boolean copied_into_new =
+        (_newchm.putIfMatch(key, h == 0 ? hash(key) : h, old_unboxed, EMPTY) == EMPTY);
+
+      // ---
+      // Finally, now that any old value is exposed in the new table, we can
+      // forever hide the old-table value by slapping a TOMBPRIME down.
+      while( !CAS_val(idx,oldval,TOMBPRIME) )
+        oldval = val(idx);
+
+      return copied_into_new;
+    } // end copy_slot
+  } // End of CHM
+
+  // Help copy the top-level table along, then hand back the given table to
+  // retry in: the get path's variant of help_copy.
+  private final CHM help_copy_and_get( final CHM newchm ) {
+    help_copy();
+    return newchm;
+  }
+
+  // --- Snapshot ------------------------------------------------------------
+  // "Snapshot" a clean view of the table, for iterating.
+  private final CHM snapshot() {
+    while( true ) {             // Verify no table-copy-in-progress
+      final CHM topchm = _chm;
+      if( topchm._newchm == null ) // No table-copy-in-progress
+        // The "linearization point" for the iteration.  Every key in this
+        // table will be visited, but keys added later might be skipped or
+        // even be added to a following table (also not iterated over).
+        return topchm;
+      // Table copy in-progress - so we cannot get a clean iteration.  We
+      // must help finish the table copy before we can start iterating.
+      topchm.help_copy_impl(true);
+    }
+  }
+
+}  // End NonBlockingObjectLongMap class
@@ -0,0 +1,67 @@
+package com.boundary.high_scale_lib;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import junit.framework.TestCase;
+import org.cliffc.high_scale_lib.Counter;
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
+import org.cliffc.high_scale_lib.NonBlockingSetInt;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test HighScaleMXBeans via JUnit
+public class HighScaleMXBeansTest extends TestCase {
+
+  public void testRegister() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    NonBlockingHashMap<Integer,Integer> map = new NonBlockingHashMap<Integer,Integer>();
+    ObjectName mn = HighScaleMXBeans.register("flows", map);
+    for( int i=0; i<10000; i++ ) map.put(i,i);
+    assertThat( (Long)server.getAttribute(mn,"Size"), is(10000L) );
+    assertTrue( (Long)server.getAttribute(mn,"Capacity") >= 10000 );
+    assertTrue( (Long)server.getAttribute(mn,"Resizes") > 0 );
+
+    NonBlockingHashMapLong<String> lmap = new NonBlockingHashMapLong<String>();
+    ObjectName ln = HighScaleMXBeans.register("flows", lmap);
+    lmap.put(1,"one");
+    assertThat( (Long)server.getAttribute(ln,"Size"), is(1L) );
+
+    NonBlockingSetInt set = new NonBlockingSetInt();
+    set.add(1000);
+    ObjectName sn = HighScaleMXBeans.register("ports", set);
+    assertThat( (Integer)server.getAttribute(sn,"Size"), is(1) );
+    assertTrue( (Integer)server.getAttribute(sn,"SizeInBytes") > 0 );
+
+    Counter c = new Counter();
+    c.add(42);
+    ObjectName cn = HighScaleMXBeans.register("packets", c);
+    assertThat( (Long)server.getAttribute(cn,"Value"), is(42L) );
+    assertThat( (Integer)server.getAttribute(cn,"Stripes"), is(c.internal_size()) );
+
+    for( ObjectName n : new ObjectName[]{mn,ln,sn,cn} ) {
+      assertTrue( server.isRegistered(n) );
+      HighScaleMXBeans.unregister(n);
+      assertFalse( server.isRegistered(n) );
+    }
+    assertThat( mn.getDomain(), is("com.boundary.high_scale_lib") );
+  }
+
+  // Unregistering restores the stats setting the map had before
+  public void testStatsRestored() throws Exception {
+    NonBlockingHashMap<Integer,Integer> map = new NonBlockingHashMap<Integer,Integer>();
+    ObjectName a = HighScaleMXBeans.register("a", map);
+    ObjectName b = HighScaleMXBeans.register("b", map);
+    assertTrue( map.isStatsEnabled() );
+    HighScaleMXBeans.unregister(a);
+    assertTrue( map.isStatsEnabled() ); // Still registered as "b"
+    HighScaleMXBeans.unregister(b);
+    assertFalse( map.isStatsEnabled() );
+
+    NonBlockingHashMapLong<String> lmap = new NonBlockingHashMapLong<String>();
+    lmap.setStatsEnabled(true);
+    HighScaleMXBeans.unregister(HighScaleMXBeans.register("c", lmap));
+    assertTrue( lmap.isStatsEnabled() );
+  }
+}
@@ -0,0 +1,114 @@
+package com.boundary.high_scale_lib;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test NonBlockingExpiringMap via JUnit, on a hand-driven clock
+public class NonBlockingExpiringMapTest extends TestCase {
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private AtomicLong _clock;
+  protected void setUp   () { _clock = new AtomicLong(12345); }
+  protected void tearDown() { _clock = null; }
+
+  private NonBlockingExpiringMap<String,String> map(long ttl, boolean access) {
+    return new NonBlockingExpiringMap<String,String>(ttl, access, _clock::get);
+  }
+
+  public void testExpireAfterWrite() {
+    NonBlockingExpiringMap<String,String> m = map(100*MS, false);
+    assertThat( m.put("k1","v1"), nullValue() );
+    assertThat( m.put("k2","v2", 1, TimeUnit.SECONDS), nullValue() );
+    _clock.addAndGet(50*MS);
+    assertThat( m.get("k1"), is("v1") );
+    _clock.addAndGet(50*MS);
+    assertThat( m.get("k1"), nullValue() );
+    assertFalse( m.containsKey("k1") );
+    assertThat( m.get("k2"), is("v2") );
+    assertThat( m.putIfAbsent("k1","v1b"), nullValue() );
+    assertThat( m.replace("k1","v1c"), is("v1b") );
+    assertThat( m.entrySet().size(), is(2) );
+    _clock.addAndGet(1000*MS);
+    assertThat( m.replace("k1","v1d"), nullValue() );
+    assertThat( m.putIfAbsent("k2","v2b"), nullValue() );
+    assertThat( m.get("k2"), is("v2b") );
+  }
+
+  public void testExpireAfterAccess() {
+    NonBlockingExpiringMap<String,String> m = map(100*MS, true);
+    m.put("hot","v");
+    m.put("cold","v");
+    for( int i=0; i<10; i++ ) {
+      _clock.addAndGet(60*MS);
+      assertThat( m.get("hot"), is("v") );
+    }
+    assertThat( m.get("cold"), nullValue() );
+    assertThat( m.size(), is(1) );
+  }
+
+  // The wheel reaps untouched entries, at all levels, without any reads
+  public void testWheel() {
+    NonBlockingExpiringMap<String,String> m = map(100*MS, false);
+    long[] ttls = { 1, 60, 70, 4000, 4400, 300000, 10000000 }; // ms; ticks are 2^20ns
+    for( int i=0; i<ttls.length; i++ )
+      for( int j=0; j<100; j++ )
+        m.put(i+"/"+j, "v", ttls[i], TimeUnit.MILLISECONDS);
+    assertThat( m.size(), is(ttls.length*100) );
+    long t = 0;
+    for( int i=0; i<ttls.length; i++ ) {
+      // Step the clock in uneven strides up to just past this TTL
+      while( t < ttls[i] + 2 ) {
+        long step = Math.min(ttls[i] + 2 - t, 1 + t/7);
+        _clock.addAndGet(step*MS);
+        t += step;
+        m.expire();
+      }
+      int live = 0;
+      for( long ttl : ttls ) if( ttl > t ) live += 100;
+      assertThat( "ttl "+ttls[i], m.size(), is(live) );
+    }
+  }
+
+  // Overwritten entries leave stale wheel slots that must not reap the new value
+  public void testOverwrite() {
+    NonBlockingExpiringMap<String,String> m = map(100*MS, false);
+    m.put("k","v1");
+    _clock.addAndGet(90*MS);
+    m.put("k","v2");
+    _clock.addAndGet(20*MS);
+    m.expire();
+    assertThat( m.size(), is(1) );
+    assertThat( m.get("k"), is("v2") );
+    _clock.addAndGet(100*MS);
+    m.expire();
+    assertThat( m.size(), is(0) );
+  }
+
+  // A long idle span is crossed in one bounded step; tick by tick, 500 days
+  // would take hours
+  public void testLongIdle() {
+    NonBlockingExpiringMap<String,String> m = map(100*MS, false);
+    m.put("short","v");
+    m.put("long","v", 2000, TimeUnit.DAYS);
+    _clock.addAndGet(TimeUnit.DAYS.toNanos(500));
+    m.expire();
+    assertThat( m.size(), is(1) );
+    assertThat( m.get("long"), is("v") );
+    _clock.addAndGet(TimeUnit.DAYS.toNanos(1501));
+    m.expire();
+    assertThat( m.size(), is(0) );
+  }
+
+  public void testRealClock() throws InterruptedException {
+    NonBlockingExpiringMap<Integer,Integer> m =
+      new NonBlockingExpiringMap<Integer,Integer>(20, TimeUnit.MILLISECONDS);
+    for( int i=0; i<1000; i++ ) m.put(i,i);
+    Thread.sleep(200);
+    m.expire();
+    assertThat( m.size(), is(0) );
+  }
+}
@@ -0,0 +1,49 @@
+package com.boundary.high_scale_lib;
+
+import java.util.*;
+import junit.framework.TestCase;
+import org.cliffc.high_scale_lib.LongIterator;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test NonBlockingHashSetLong via JUnit
+public class NonBlockingHashSetLongTest extends TestCase {
+
+  private NonBlockingHashSetLong _nbhsl;
+  protected void setUp   () { _nbhsl = new NonBlockingHashSetLong(); }
+  protected void tearDown() { _nbhsl = null; }
+
+  // longIterator visits every member once, key 0 included, and removes
+  // the member it last returned even after hasNext has looked ahead
+  public void testLongIterator() {
+    assertFalse( _nbhsl.longIterator().hasNext() );
+    for( long i=0; i<1000; i++ ) _nbhsl.add(i*3);
+    final Set<Long> seen = new HashSet<Long>();
+    for( LongIterator it = _nbhsl.longIterator(); it.hasNext(); )
+      assertTrue( seen.add(it.nextLong()) );
+    assertThat( seen.size(), is(1000) );
+    for( long i=0; i<1000; i++ ) assertTrue( seen.contains(i*3) );
+
+    final LongIterator it = _nbhsl.longIterator();
+    try { it.remove(); fail(); } catch( IllegalStateException e ) { }
+    int n = 0;
+    while( it.hasNext() ) {
+      final long k = it.nextLong();
+      if( (k & 1) == 0 ) {
+        if( (n++ & 1) == 0 ) it.hasNext(); // Look ahead first
+        it.remove();
+        assertFalse( _nbhsl.contains(k) );
+      }
+    }
+    try { it.nextLong(); fail(); } catch( NoSuchElementException e ) { }
+    assertThat( _nbhsl.size(), is(500) );
+    assertFalse( _nbhsl.contains(0L) );
+    assertTrue ( _nbhsl.contains(3L) );
+  }
+
+  public void testToString() {
+    assertThat( _nbhsl.toString(), is("[]") );
+    _nbhsl.add(42);
+    assertThat( _nbhsl.toString(), is("[42]") );
+  }
+}
@@ -0,0 +1,77 @@
+package com.boundary.high_scale_lib;
+
+import java.util.*;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test NonBlockingWeakHashMap via JUnit
+public class NonBlockingWeakHashMapTest extends TestCase {
+
+  public void testBasic() {
+    NonBlockingWeakHashMap<String,String> map = new NonBlockingWeakHashMap<String,String>();
+    String k1 = new String("k1"), k2 = new String("k2");
+    assertTrue ( map.isEmpty() );
+    assertThat ( map.put(k1,"v1"), nullValue() );
+    assertThat ( map.put(k2,"v2"), nullValue() );
+    assertThat ( map.size(), is(2) );
+    // Lookups go by equals, not by reference
+    assertThat ( map.get("k1"), is("v1") );
+    assertThat ( map.putIfAbsent("k1","x"), is("v1") );
+    assertThat ( map.replace("k1","v1a"), is("v1") );
+    assertTrue ( map.replace("k1","v1a","v1b") );
+    assertFalse( map.remove("k1","v1a") );
+    assertTrue ( map.remove("k1","v1b") );
+    assertThat ( map.remove("k2"), is("v2") );
+    assertTrue ( map.isEmpty() );
+    assertFalse( map.containsKey(k1) );
+  }
+
+  public void testIteration() {
+    NonBlockingWeakHashMap<String,Integer> map = new NonBlockingWeakHashMap<String,Integer>();
+    List<String> keys = new ArrayList<String>();
+    for( int i=0; i<100; i++ ) { keys.add("k"+i); map.put(keys.get(i), i); }
+    int sum = 0;
+    for( Map.Entry<String,Integer> e : map.entrySet() ) {
+      assertThat( e.getKey(), is("k"+e.getValue()) );
+      sum += e.getValue();
+    }
+    assertThat( sum, is(99*100/2) );
+    for( Iterator<Integer> it = map.values().iterator(); it.hasNext(); )
+      if( (it.next()&1) == 1 ) it.remove();
+    assertThat( map.size(), is(50) );
+    assertThat( map.keySet().size(), is(50) );
+  }
+
+  public void testIdentity() {
+    NonBlockingWeakHashMap<String,String> map = new NonBlockingWeakIdentityHashMap<String,String>();
+    String k1 = new String("k");
+    String k2 = new String("k");
+    map.put(k1,"v1");
+    map.put(k2,"v2");
+    assertThat( map.size(), is(2) );
+    assertThat( map.get(k1), is("v1") );
+    assertThat( map.get(k2), is("v2") );
+    assertThat( map.get("k"), nullValue() );
+  }
+
+  // Unreachable keys are drained as other keys are put
+  public void testReclaim() throws InterruptedException {
+    reclaim(new NonBlockingWeakHashMap<Object,Object>());
+    reclaim(new NonBlockingWeakIdentityHashMap<Object,Object>());
+    reclaim(new NonBlockingWeakHashMap<Object,Object>(true));
+  }
+
+  private void reclaim(NonBlockingWeakHashMap<Object,Object> map) throws InterruptedException {
+    Object[] live = new Object[100];
+    for( int i=0; i<live.length; i++ ) map.put(live[i] = new Object(), i);
+    for( int i=0; i<10000; i++ ) map.put(new Object(), i);
+    for( int tries=0; tries<100 && map.size() > live.length; tries++ ) {
+      System.gc();
+      Thread.sleep(10);
+      map.put(live[0], 0);      // Drains the reference queue
+    }
+    assertThat( map.size(), is(live.length) );
+    for( int i=0; i<live.length; i++ ) assertThat( map.get(live[i]), is((Object)Integer.valueOf(i)) );
+  }
+}
@@ -0,0 +1,45 @@
+package org.cliffc.high_scale_lib;
+
+import java.io.File;
+import java.util.*;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test the JFR events via JUnit
+public class HighScaleEventsTest extends TestCase {
+
+  public void testResizeEvents() throws Exception {
+    assertTrue( HighScaleEvents.ON );
+    File f = File.createTempFile("hsl",".jfr");
+    try {
+      Recording r = new Recording();
+      r.enable("org.cliffc.high_scale_lib.ResizeStart");
+      r.enable("org.cliffc.high_scale_lib.TablePromotion");
+      r.start();
+      NonBlockingHashMap<Integer,Integer> map = new NonBlockingHashMap<Integer,Integer>();
+      for( int i=0; i<10000; i++ ) map.put(i,i);
+      NonBlockingHashMapLong<Integer> lmap = new NonBlockingHashMapLong<Integer>();
+      for( int i=0; i<10000; i++ ) lmap.put(i,i);
+      r.stop();
+      r.dump(f.toPath());
+      r.close();
+      int starts=0, promotes=0;
+      for( RecordedEvent e : RecordingFile.readAllEvents(f.toPath()) ) {
+        String n = e.getEventType().getName();
+        if( n.endsWith("ResizeStart") ) starts++;
+        if( n.endsWith("TablePromotion") ) {
+          promotes++;
+          assertTrue( e.getLong("newLength") > e.getLong("oldLength") );
+        }
+      }
+      assertTrue( starts > 1 );
+      assertTrue( promotes > 1 );
+    } finally {
+      f.delete();
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package org.cliffc.high_scale_lib;
+
+import java.util.*;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test NonBlockingCache via JUnit
+public class NonBlockingCacheTest extends TestCase {
+
+  public void testBasic() {
+    NonBlockingCache<String,String> c = new NonBlockingCache<String,String>(10);
+    assertThat( c.get("k1"), nullValue() );
+    assertThat( c.put("k1","v1"), nullValue() );
+    assertThat( c.put("k1","v2"), is("v1") );
+    assertThat( c.putIfAbsent("k1","v3"), is("v2") );
+    assertThat( c.get("k1"), is("v2") );
+    assertThat( c.computeIfAbsent("k2", k -> k+"!"), is("k2!") );
+    assertThat( c.size(), is(2) );
+    assertThat( c.weightedSize(), is(2L) );
+    assertThat( c.remove("k1"), is("v2") );
+    assertThat( c.weightedSize(), is(1L) );
+    assertThat( c.hits(), is(1L) );
+    assertThat( c.misses(), is(2L) );
+    c.clear();
+    assertThat( c.size(), is(0) );
+    assertThat( c.weightedSize(), is(0L) );
+  }
+
+  // Capacity holds, and entries touched between inserts are never evicted
+  public void testClock() {
+    NonBlockingCache<Integer,Integer> c = new NonBlockingCache<Integer,Integer>(100);
+    for( int i=0; i<50; i++ ) c.put(i,i);
+    for( int i=1000; i<11000; i++ ) {
+      c.put(i,i);
+      for( int j=0; j<50; j++ ) assertThat( c.get(j), is(j) );
+      assertTrue( c.weightedSize() <= 100 );
+    }
+    assertThat( c.size(), is(100) );
+    assertThat( c.evictions(), is(10000L-50) );
+  }
+
+  public void testWeigher() {
+    NonBlockingCache<String,String> c =
+      new NonBlockingCache<String,String>(100, (k,v) -> v.length());
+    for( int i=0; i<1000; i++ ) c.put("k"+i, "0123456789");
+    assertThat( c.weightedSize(), is(100L) );
+    assertThat( c.size(), is(10) );
+  }
+
+  public void testConcurrent() throws InterruptedException {
+    final NonBlockingCache<Integer,Integer> c = new NonBlockingCache<Integer,Integer>(1000);
+    Thread[] ts = new Thread[4];
+    for( int t=0; t<ts.length; t++ ) {
+      final int base = t<<20;
+      ts[t] = new Thread() { public void run() {
+        for( int i=0; i<100000; i++ ) { c.put(base+i,i); c.get(base+(i>>1)); }
+      } };
+      ts[t].start();
+    }
+    for( Thread t : ts ) t.join();
+    assertThat( c.weightedSize(), is((long)c.size()) );
+    assertTrue( c.size() <= 1000 );
+  }
+}
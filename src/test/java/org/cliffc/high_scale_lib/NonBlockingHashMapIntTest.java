@@ -0,0 +1,139 @@
+package org.cliffc.high_scale_lib;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test NonBlockingHashMapInt via JUnit
+public class NonBlockingHashMapIntTest extends TestCase {
+
+  private NonBlockingHashMapInt<String> _nbhmi;
+  protected void setUp   () { _nbhmi = new NonBlockingHashMapInt<String>(); }
+  protected void tearDown() { _nbhmi = null; }
+
+  // Test some basic stuff; add a few keys, remove a few keys
+  public void testBasic() {
+    assertTrue ( _nbhmi.isEmpty() );
+    assertThat ( _nbhmi.put(1,"v1"), nullValue() );
+    assertThat ( _nbhmi.putIfAbsent(2,"v2"), nullValue() );
+    assertThat ( _nbhmi.size(), is(2) );
+    assertTrue ( _nbhmi.containsKey(2) );
+    assertThat ( _nbhmi.put(1,"v1a"), is("v1") );
+    assertThat ( _nbhmi.putIfAbsent(2,"v2b"), is("v2") );
+    assertThat ( _nbhmi.remove(1), is("v1a") );
+    assertFalse( _nbhmi.containsKey(1) );
+    assertThat ( _nbhmi.remove(1), nullValue() );
+    assertThat ( _nbhmi.remove("k3"), nullValue() );
+    assertThat ( _nbhmi.get((Object)2), is("v2") );
+    assertThat ( _nbhmi.get((Object)2L), nullValue() ); // Not an Integer key
+
+    assertThat ( _nbhmi.put(0,"v0"), nullValue() );
+    assertThat ( _nbhmi.put(-1,"vm1"), nullValue() );
+    assertThat ( _nbhmi.put(Integer.MIN_VALUE,"vmin"), nullValue() );
+    assertThat ( _nbhmi.size(), is(4) );
+    assertThat ( _nbhmi.get(0), is("v0") );
+    assertThat ( _nbhmi.get(-1), is("vm1") );
+    assertThat ( _nbhmi.get(Integer.MIN_VALUE), is("vmin") );
+    assertTrue ( _nbhmi.replace(0,"v0","v0a") );
+    assertThat ( _nbhmi.remove(0), is("v0a") );
+    assertThat ( _nbhmi.replace(0,"v0"), nullValue() );
+    assertFalse( _nbhmi.containsKey(0) );
+    assertThat ( _nbhmi.size(), is(3) );
+    _nbhmi.clear();
+    assertTrue ( _nbhmi.isEmpty() );
+  }
+
+  public void testIteration() {
+    for( int i=-1000; i<1000; i++ ) _nbhmi.put(i*7,"v"+i);
+    final Set<Integer> seen = new HashSet<Integer>();
+    for( IntIterator it = _nbhmi.intIterator(); it.hasNext(); ) {
+      final int k = it.next();
+      assertTrue( seen.add(k) );
+      assertThat( _nbhmi.get(k), is("v"+(k/7)) );
+      if( (k&1) == 0 ) it.remove();
+    }
+    assertThat( seen.size(), is(2000) );
+    assertThat( _nbhmi.size(), is(1000) );
+    int n = 0;
+    for( Integer k : _nbhmi.keySet() ) { assertTrue( (k&1) != 0 ); n++; }
+    assertThat( n, is(1000) );
+    n = 0;
+    for( Map.Entry<Integer,String> e : _nbhmi.entrySet() ) {
+      assertThat( e.getValue(), is("v"+(e.getKey()/7)) );
+      n++;
+    }
+    assertThat( n, is(1000) );
+  }
+
+  // Both resize heuristics must keep every key reachable
+  public void testResize() {
+    for( boolean opt : new boolean[]{true,false} ) {
+      final NonBlockingHashMapInt<String> map = new NonBlockingHashMapInt<String>(opt);
+      for( int i=0; i<100000; i++ ) map.put(i*31,"v"+i);
+      for( int i=0; i<100000; i+=2 ) map.remove(i*31);
+      assertThat( map.size(), is(50000) );
+      for( int i=0; i<100000; i++ )
+        assertThat( map.get(i*31), (i&1)==0 ? nullValue() : is("v"+i) );
+    }
+  }
+
+  public void testSerial() throws IOException, ClassNotFoundException {
+    for( int i=0; i<100; i++ ) _nbhmi.put(i-50,"v"+i);
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    final ObjectOutputStream out = new ObjectOutputStream(bos);
+    out.writeObject(_nbhmi);
+    out.close();
+    final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+    final NonBlockingHashMapInt<String> map = (NonBlockingHashMapInt<String>)in.readObject();
+    in.close();
+    assertThat( map.size(), is(100) );
+    assertEquals( _nbhmi, map );
+  }
+
+  // Concurrent puts and removes across resizes
+  public void testConcurrent() throws Exception {
+    final int THREADS = 8, KEYS = 20000;
+    final ExecutorService ex = Executors.newFixedThreadPool(THREADS);
+    final Future<?>[] fs = new Future<?>[THREADS];
+    for( int t=0; t<THREADS; t++ ) {
+      final int tt = t;
+      fs[t] = ex.submit(new Runnable() {
+          public void run() {
+            for( int k=tt; k<KEYS*THREADS; k+=THREADS ) _nbhmi.put(k,"v"+k);
+            for( int k=tt; k<KEYS*THREADS; k+=THREADS*2 ) _nbhmi.remove(k);
+          }
+        });
+    }
+    for( Future<?> f : fs ) f.get();
+    ex.shutdown();
+    assertThat( _nbhmi.size(), is(KEYS*THREADS/2) );
+    for( int k=0; k<KEYS*THREADS; k++ )
+      assertThat( _nbhmi.get(k), (k % (THREADS*2)) < THREADS ? nullValue() : is("v"+k) );
+  }
+
+  // Key 0 lives outside the table: a replace that lost a race must not
+  // report success
+  public void testConcurrentKeyZero() throws Exception {
+    final int THREADS = 8, INCS = 50000;
+    final NonBlockingHashMapInt<Long> map = new NonBlockingHashMapInt<Long>();
+    map.put(0,Long.valueOf(0));
+    final ExecutorService ex = Executors.newFixedThreadPool(THREADS);
+    final Future<?>[] fs = new Future<?>[THREADS];
+    for( int t=0; t<THREADS; t++ )
+      fs[t] = ex.submit(new Runnable() {
+          public void run() {
+            for( int i=0; i<INCS; i++ )
+              while( true ) {
+                final Long old = map.get(0);
+                if( map.replace(0,old,Long.valueOf(old+1)) ) break;
+              }
+          }
+        });
+    for( Future<?> f : fs ) f.get();
+    ex.shutdown();
+    assertThat( map.get(0), is((long)THREADS*INCS) );
+  }
+}
@@ -0,0 +1,117 @@
+package org.cliffc.high_scale_lib;
+
+import java.util.*;
+import java.util.concurrent.*;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import static org.cliffc.high_scale_lib.NonBlockingHashMapLongLong.NO_VALUE;
+
+// Test NonBlockingHashMapLongLong via JUnit
+public class NonBlockingHashMapLongLongTest extends TestCase {
+
+  private NonBlockingHashMapLongLong _map;
+  protected void setUp   () { _map = new NonBlockingHashMapLongLong(); }
+  protected void tearDown() { _map = null; }
+
+  public void testBasic() {
+    assertTrue ( _map.isEmpty() );
+    assertThat ( _map.put(1,10), is(NO_VALUE) );
+    assertThat ( _map.putIfAbsent(2,20), is(NO_VALUE) );
+    assertThat ( _map.putIfAbsent(2,21), is(20L) );
+    assertThat ( _map.size(), is(2) );
+    assertThat ( _map.get(1), is(10L) );
+    assertThat ( _map.get(3), is(NO_VALUE) );
+    assertThat ( _map.getOrDefault(3,-7), is(-7L) );
+    assertTrue ( _map.compareAndSet(1,10,0) );
+    assertFalse( _map.compareAndSet(1,10,5) );
+    assertTrue ( _map.compareAndSet(3,NO_VALUE,30) );
+    assertFalse( _map.compareAndSet(3,NO_VALUE,31) );
+    assertThat ( _map.get(3), is(30L) );
+    assertThat ( _map.replace(4,40), is(NO_VALUE) );
+    assertFalse( _map.containsKey(4) );
+    assertTrue ( _map.remove(3,30) );
+    assertThat ( _map.remove(2), is(20L) );
+    assertThat ( _map.remove(2), is(NO_VALUE) );
+    assertThat ( _map.size(), is(1) );
+    try { _map.put(1,NonBlockingHashMapLongLong.MAX_VALUE+1); fail(); } catch( IllegalArgumentException e ) { }
+  }
+
+  public void testAddAndGet() {
+    for( long k=0; k<3; k++ ) {   // Includes key 0
+      assertThat( _map.addAndGet(k,5), is(5L) );
+      assertThat( _map.getAndAdd(k,-7), is(5L) );
+      assertThat( _map.incrementAndGet(k), is(-1L) );
+      assertThat( _map.decrementAndGet(k), is(-2L) );
+      assertThat( _map.get(k), is(-2L) );
+    }
+    assertThat( _map.size(), is(3) );
+    _map.remove(1);
+    assertThat( _map.addAndGet(1,3), is(3L) );
+    assertThat( _map.size(), is(3) );
+    _map.put(2,NonBlockingHashMapLongLong.MAX_VALUE);
+    try { _map.addAndGet(2,1); fail(); } catch( ArithmeticException e ) { }
+    try { _map.addAndGet(2,Long.MAX_VALUE); fail(); } catch( ArithmeticException e ) { }
+    assertThat( _map.get(2), is(NonBlockingHashMapLongLong.MAX_VALUE) );
+  }
+
+  public void testResizeAndKeys() {
+    for( long i=0; i<100000; i++ ) _map.put(i*31,i);
+    for( long i=0; i<100000; i+=2 ) _map.remove(i*31);
+    assertThat( _map.size(), is(50000) );
+    final Set<Long> seen = new HashSet<Long>();
+    for( LongIterator it = _map.keys(); it.hasNext(); ) {
+      final long k = it.nextLong();
+      assertTrue( seen.add(k) );
+      assertThat( _map.get(k), is(k/31) );
+      if( k % 3 == 0 ) it.remove();
+    }
+    assertThat( seen.size(), is(50000) );
+    for( long i=1; i<100000; i+=2 )
+      assertThat( _map.containsKey(i*31), is((i*31)%3 != 0) );
+    _map.clear();
+    assertTrue( _map.isEmpty() );
+  }
+
+  // Concurrent counting across resizes: every increment must land
+  public void testConcurrentAdd() throws Exception {
+    final int THREADS = 8, KEYS = 50000, ROUNDS = 4;
+    final ExecutorService ex = Executors.newFixedThreadPool(THREADS);
+    final Future<?>[] fs = new Future<?>[THREADS];
+    for( int t=0; t<THREADS; t++ )
+      fs[t] = ex.submit(new Runnable() {
+          public void run() {
+            for( int r=0; r<ROUNDS; r++ )
+              for( long k=0; k<KEYS; k++ )
+                _map.incrementAndGet(k);
+          }
+        });
+    for( Future<?> f : fs ) f.get();
+    ex.shutdown();
+    assertThat( _map.size(), is(KEYS) );
+    for( long k=0; k<KEYS; k++ ) assertThat( _map.get(k), is((long)THREADS*ROUNDS) );
+  }
+
+  // Key 0 lives outside the table: a compareAndSet that lost a race must
+  // not report success
+  public void testConcurrentKeyZero() throws Exception {
+    final int THREADS = 8, INCS = 200000;
+    _map.put(0,0);
+    final ExecutorService ex = Executors.newFixedThreadPool(THREADS);
+    final Future<?>[] fs = new Future<?>[THREADS];
+    for( int t=0; t<THREADS; t++ )
+      fs[t] = ex.submit(new Runnable() {
+          public void run() {
+            for( int i=0; i<INCS; i++ )
+              while( true ) {
+                final long old = _map.get(0);
+                if( _map.compareAndSet(0,old,old+1) ) break;
+              }
+          }
+        });
+    for( Future<?> f : fs ) f.get();
+    ex.shutdown();
+    assertThat( _map.get(0), is((long)THREADS*INCS) );
+  }
+}
@@ -518,4 +518,180 @@ public class NonBlockingHashMapLongTest extends TestCase {
     assertEquals(Arrays.asList(1L, 2L), keys);
   }
 
+  public void testCursor() {
+    final NonBlockingHashMapLong<String> map = new NonBlockingHashMapLong<String>();
+    for( long i=0; i<10000; i++ ) map.put(i*3,"v"+i); // Includes key 0
+    final NonBlockingHashMapLong<String>.LongObjCursor c = map.cursor();
+    for( int pass=0; pass<2; pass++ ) {
+      final BitSet seen = new BitSet();
+      int n=0;
+      while( c.advance() ) {
+        final long k = c.key();
+        assertFalse( seen.get((int)k) );
+        seen.set((int)k);
+        assertThat( c.value(), is("v"+(k/3)) );
+        if( pass == 0 && (k&1) == 0 ) c.remove();
+        n++;
+      }
+      assertFalse( c.advance() );
+      assertThat( n, is(pass == 0 ? 10000 : 5000) );
+      c.reset();
+    }
+    assertThat( map.size(), is(5000) );
+    assertNull( map.get(0) );
+    try { c.remove(); fail(); } catch( IllegalStateException e ) { }
+  }
+
+  // Iterator.remove kills the value in the slot it was read from; a value
+  // replaced since, or a slot moved on by a resize, takes the keyed path
+  public void testIteratorRemove() {
+    final NonBlockingHashMapLong<String> nbhm = new NonBlockingHashMapLong<String>();
+    final int CNT = 30000;
+    for( int i=0; i<CNT; i++ ) nbhm.put(i,"v"+i);
+    int extra = CNT;
+    for( LongIterator it = (LongIterator)nbhm.keySet().iterator(); it.hasNext(); ) {
+      final int k = (int)it.nextLong();
+      if( k >= CNT ) continue;
+      if( k%3 == 1 ) nbhm.put(k,"w"+k); // Replaced: remove must leave it
+      if( k%3 != 2 ) it.remove();
+      nbhm.put(extra++,"x");    // Keep the table resizing under the iterator
+    }
+    assertThat( nbhm.size(), is(CNT-CNT/3+CNT) );
+    for( int i=0; i<CNT; i++ )
+      assertThat( nbhm.get(i), i%3==0 ? nullValue() : is((i%3==1 ? "w" : "v")+i) );
+  }
+
+  // Iterators started while a resize is running walk the old and new tables
+  // and must still see every untouched key exactly once
+  public void testIterationDuringResize() throws InterruptedException {
+    final NonBlockingHashMapLong<String> nbhml = new NonBlockingHashMapLong<String>();
+    final int CNT = 10000, MORE = 400000;
+    for( long i=0; i<CNT; i++ ) nbhml.put(i,"v"+i);
+    final Thread t = new Thread() { public void run() {
+      for( long i=CNT; i<CNT+MORE; i++ ) nbhml.put(i,"v"+i);
+    } };
+    t.start();
+    while( t.isAlive() ) {
+      final BitSet seen = new BitSet();
+      for( LongIterator it = (LongIterator)nbhml.keySet().iterator(); it.hasNext(); ) {
+        final int K = (int)it.nextLong();
+        assertFalse( "key seen twice: "+K, seen.get(K) );
+        seen.set(K);
+      }
+      assertTrue( "missed a key", seen.nextClearBit(0) >= CNT );
+    }
+    t.join();
+    assertThat( nbhml.size(), is(CNT+MORE) );
+  }
+
+  // A drained table shrinks on its next resize, once the last resize is old
+  public void testShrink() throws Exception {
+    final NonBlockingHashMapLong<String> nbhml = new NonBlockingHashMapLong<String>();
+    final int CNT = 100000;
+    for( long i=0; i<CNT; i++ ) nbhml.put(i,"v"+i);
+    for( long i=0; i<CNT; i++ ) nbhml.remove(i);
+    final int big = table_len(nbhml);
+    // Pretend the last resize was long ago
+    final java.lang.reflect.Field f = NonBlockingHashMapLong.class.getDeclaredField("_last_resize_milli");
+    f.setAccessible(true);
+    f.setLong(nbhml,0);
+    // Churn fresh keys until the dead key slots force a resize
+    for( long i=CNT; table_len(nbhml) >= big && i<50*CNT; i++ ) {
+      nbhml.put(i,"x");
+      nbhml.remove(i);
+    }
+    assertTrue( "table shrank from "+big, table_len(nbhml) < big );
+    assertTrue( nbhml.isEmpty() );
+    for( long i=0; i<1000; i++ ) nbhml.put(i,"v"+i);
+    assertThat( nbhml.size(), is(1000) );
+    for( long i=0; i<1000; i++ ) assertThat( nbhml.get(i), is("v"+i) );
+  }
+  private static int table_len( NonBlockingHashMapLong nbhml ) throws Exception {
+    final java.lang.reflect.Field chm = NonBlockingHashMapLong.class.getDeclaredField("_chm");
+    chm.setAccessible(true);
+    final Object c = chm.get(nbhml);
+    final java.lang.reflect.Field keys = c.getClass().getDeclaredField("_keys");
+    keys.setAccessible(true);
+    return ((long[])keys.get(c)).length;
+  }
+
+  public void testStats() {
+    final NonBlockingHashMapLong<String> map = new NonBlockingHashMapLong<String>();
+    map.setStatsEnabled(true);
+    // Keys differ only in high bits, so all collide in a small table
+    for( long i=0; i<100; i++ ) map.put(i<<20,"v");
+    for( long i=0; i<100; i++ ) assertThat( map.get(i<<20), is("v") );
+    map.remove(5L<<20);
+    final MapStats s = map.stats();
+    assertThat( s.size(), is(99L) );
+    assertThat( s.tombstones(), is(1L) );
+    assertTrue( s.resizes() > 0 );
+    assertTrue( s.putReprobes() > 0 );
+    assertTrue( s.getReprobes() > 0 );
+    assertTrue( s.pauses() >= s.resizes() );
+    assertTrue( s.pausePercentile(0.999) > 0 );
+  }
+
+  public void testExportImport() throws IOException {
+    final NonBlockingHashMapLong<String> map = new NonBlockingHashMapLong<String>();
+    for( long i=0; i<100000; i++ ) map.put(i*7,"v"+i); // Includes key 0
+    for( long i=1; i<100000; i+=3 ) map.remove(i*7);
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bytes));
+    assertThat( map.exportTo(out,Codec.STRING), is((long)map.size()) );
+    out.flush();
+    final NonBlockingHashMapLong<String> copy =
+      NonBlockingHashMapLong.importFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),Codec.STRING);
+    assertThat( copy.size(), is(map.size()) );
+    assertThat( copy.get(0), is("v0") );
+    for( long i=0; i<100000; i++ ) assertThat( copy.get(i*7), is(map.get(i*7)) );
+  }
+
+  public void testSnapshotFile() throws IOException {
+    final NonBlockingHashMapLong<String> map = new NonBlockingHashMapLong<String>();
+    for( long i=0; i<100000; i++ ) map.put(i*7,"v"+i); // Includes key 0
+    for( long i=1; i<100000; i+=3 ) map.remove(i*7);
+    final File f = File.createTempFile("nbhml",".snap");
+    try {
+      assertThat( map.saveSnapshot(f.toPath(),Codec.STRING), is((long)map.size()) );
+      final NonBlockingHashMapLong<String> copy = NonBlockingHashMapLong.loadSnapshot(f.toPath(),Codec.STRING);
+      assertThat( copy.size(), is(map.size()) );
+      assertThat( copy.stats().slots(), is(map.stats().slots()) );
+      for( long i=0; i<100000; i++ ) assertThat( copy.get(i*7), is(map.get(i*7)) );
+      // Reprobe chains survived the dead keys: updates still find their slots
+      for( long i=1; i<100000; i+=3 ) assertThat( copy.put(i*7,"w"+i), nullValue() );
+      for( long i=0; i<100000; i+=3 ) assertThat( copy.remove(i*7), is("v"+i) );
+      assertThat( copy.size(), is(100000 - 33334) );
+      for( long i=200000; i<300000; i++ ) copy.put(i,"x"); // Resizes
+      assertThat( copy.get(7*100), is("w100") );
+      assertThat( copy.get(7*99), nullValue() );
+      map.clear();
+      map.saveSnapshot(f.toPath(),Codec.STRING);
+      assertTrue( NonBlockingHashMapLong.loadSnapshot(f.toPath(),Codec.STRING).isEmpty() );
+    } finally {
+      f.delete();
+    }
+  }
+
+  // Key 0 lives outside the table, in _val_1; negative keys hash like any other
+  public void testForEachReplaceAllRemoveIf() {
+    final NonBlockingHashMapLong<Integer> map = new NonBlockingHashMapLong<Integer>();
+    for( int i=-100; i<100; i++ ) map.put((long)i,Integer.valueOf(i));
+    final long[] sum = new long[2];
+    map.forEach((k,v) -> { assertThat(k,is((long)v)); sum[0] += k; sum[1]++; });
+    assertThat( sum[0], is(-100L) );
+    assertThat( sum[1], is(200L) );
+
+    map.replaceAll((k,v) -> v-1);
+    assertThat( map.get(0L), is(-1) );
+    assertThat( map.get(-100L), is(-101) );
+
+    assertTrue ( map.removeIf((k,v) -> k <= 0) );
+    assertFalse( map.containsKey(0L) );
+    assertThat( map.size(), is(99) );
+    assertFalse( map.removeIf((k,v) -> k == 0) );
+    map.put(0L,Integer.valueOf(7));
+    assertTrue ( map.keySet().removeIf(k -> k == 0) );
+    assertNull ( map.get(0L) );
+  }
 }
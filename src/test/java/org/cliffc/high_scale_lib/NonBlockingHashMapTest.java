@@ -9,6 +9,8 @@ import java.io.*;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import junit.framework.TestCase;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
@@ -626,6 +628,344 @@ public class NonBlockingHashMapTest extends TestCase {
     assertTrue( Test4.AE==null );
   }
 
+  // Test the compute/merge family
+  public void testCompute() {
+    assertThat ( _nbhm.computeIfAbsent("k1", k -> "v1"), is("v1") );
+    assertThat ( _nbhm.computeIfAbsent("k1", k -> "v1b"), is("v1") );
+    assertThat ( _nbhm.computeIfAbsent("k2", k -> null), nullValue() );
+    assertFalse( _nbhm.containsKey("k2") );
+    checkSizes (1);
+    assertThat ( _nbhm.computeIfPresent("k2", (k,v) -> "v2"), nullValue() );
+    assertFalse( _nbhm.containsKey("k2") );
+    assertThat ( _nbhm.computeIfPresent("k1", (k,v) -> v+"a"), is("v1a") );
+    assertThat ( _nbhm.get("k1"), is("v1a") );
+    assertThat ( _nbhm.computeIfPresent("k1", (k,v) -> null), nullValue() );
+    assertFalse( _nbhm.containsKey("k1") );
+    checkSizes (0);
+    assertThat ( _nbhm.compute("k3", (k,v) -> v == null ? "v3" : v+"x"), is("v3") );
+    assertThat ( _nbhm.compute("k3", (k,v) -> v == null ? "v3" : v+"x"), is("v3x") );
+    checkSizes (1);
+    assertThat ( _nbhm.compute("k3", (k,v) -> null), nullValue() );
+    checkSizes (0);
+    assertThat ( _nbhm.merge("k4", "a", (o,n) -> o+n), is("a") );
+    assertThat ( _nbhm.merge("k4", "b", (o,n) -> o+n), is("ab") );
+    assertThat ( _nbhm.merge("k4", "c", (o,n) -> null), nullValue() );
+    checkSizes (0);
+
+    // The mapping function is not called for a mapped key
+    _nbhm.put("k5","v5");
+    assertThat ( _nbhm.computeIfAbsent("k5", k -> { throw new AssertionError(); }), is("v5") );
+  }
+
+  // Concurrent merges must not lose counts, including across table resizes
+  public void testConcurrentMerge() throws InterruptedException {
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    final int THREADS = 4, KEYS = 5000, ROUNDS = 4;
+    Thread[] ts = new Thread[THREADS];
+    for( int t=0; t<THREADS; t++ ) {
+      (ts[t] = new Thread() { public void run() {
+        for( int r=0; r<ROUNDS; r++ )
+          for( int i=0; i<KEYS; i++ )
+            nbhm.merge(i, 1, Integer::sum);
+      } }).start();
+    }
+    for( Thread t : ts ) t.join();
+    assertThat( nbhm.size(), is(KEYS) );
+    for( int i=0; i<KEYS; i++ )
+      assertThat( nbhm.get(i), is(THREADS*ROUNDS) );
+  }
+
+  // Parallel table copy: resizes of big tables get farmed out to an Executor
+  public void testParallelCopy() throws InterruptedException {
+    final AtomicInteger tasks = new AtomicInteger();
+    final ExecutorService ex = Executors.newFixedThreadPool(4);
+    final NonBlockingHashMap<Integer,String> nbhm = new NonBlockingHashMap<Integer,String>();
+    nbhm.setCopyExecutor(new Executor() {
+        public void execute( Runnable r ) { tasks.incrementAndGet(); ex.execute(r); }
+      }, 4096);
+    final int CNT = 200000;
+    for( int i=0; i<CNT; i++ )
+      nbhm.put(i,"v"+i);
+    ex.shutdown();
+    assertTrue( ex.awaitTermination(10,TimeUnit.SECONDS) );
+    assertTrue( "copy tasks submitted", tasks.get() > 0 );
+    assertThat( nbhm.size(), is(CNT) );
+    for( int i=0; i<CNT; i++ )
+      assertThat( nbhm.get(i), is("v"+i) );
+
+    // A rejecting Executor just leaves the copy to the visiting threads
+    nbhm.setCopyExecutor(ex,0);
+    for( int i=CNT; i<2*CNT; i++ )
+      nbhm.put(i,"v"+i);
+    assertThat( nbhm.size(), is(2*CNT) );
+    for( int i=0; i<2*CNT; i++ )
+      assertThat( nbhm.get(i), is("v"+i) );
+  }
+
+  // Iterator.remove kills the value in the slot it was read from; a value
+  // replaced since, or a slot moved on by a resize, takes the keyed path
+  public void testIteratorRemove() {
+    final NonBlockingHashMap<Integer,String> nbhm = new NonBlockingHashMap<Integer,String>();
+    final int CNT = 30000;
+    for( int i=0; i<CNT; i++ ) nbhm.put(i,"v"+i);
+    int extra = CNT;
+    for( Iterator<Integer> it = nbhm.keySet().iterator(); it.hasNext(); ) {
+      final int k = it.next();
+      if( k >= CNT ) continue;
+      if( k%3 == 1 ) nbhm.put(k,"w"+k); // Replaced: remove must leave it
+      if( k%3 != 2 ) it.remove();
+      nbhm.put(extra++,"x");    // Keep the table resizing under the iterator
+    }
+    assertThat( nbhm.size(), is(CNT-CNT/3+CNT) );
+    for( int i=0; i<CNT; i++ )
+      assertThat( nbhm.get(i), i%3==0 ? nullValue() : is((i%3==1 ? "w" : "v")+i) );
+  }
+
+  // Iterators started while a resize is running walk the old and new tables
+  // and must still see every untouched key exactly once
+  public void testIterationDuringResize() throws InterruptedException {
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    final int CNT = 10000, MORE = 400000;
+    for( int i=0; i<CNT; i++ ) nbhm.put(i,i);
+    final Thread t = new Thread() { public void run() {
+      for( int i=CNT; i<CNT+MORE; i++ ) nbhm.put(i,i);
+    } };
+    t.start();
+    while( t.isAlive() ) {
+      final BitSet seen = new BitSet();
+      for( Integer K : nbhm.keySet() ) {
+        assertFalse( "key seen twice: "+K, seen.get(K) );
+        seen.set(K);
+      }
+      assertTrue( "missed a key", seen.nextClearBit(0) >= CNT );
+    }
+    t.join();
+    assertThat( nbhm.size(), is(CNT+MORE) );
+  }
+
+  // Big tables are built out of segments allocated on demand
+  public void testSegmentedTable() {
+    // Presized far past one segment, but only sparsely filled
+    final NonBlockingHashMap<Integer,Integer> sparse = new NonBlockingHashMap<Integer,Integer>(1000000);
+    for( int i=0; i<1000; i++ )
+      sparse.put(i*7919,i);
+    assertThat( sparse.size(), is(1000) );
+    int sum=0;
+    for( Integer x : sparse.values() ) sum += x;
+    assertThat( sum, is(1000*999/2) );
+    for( int i=0; i<1000; i+=2 )
+      assertThat( sparse.remove(i*7919), is(i) );
+    assertThat( sparse.size(), is(500) );
+    assertNull( sparse.get(0) );
+    assertThat( sparse.get(7919), is(1) );
+
+    // Grown through several resizes from the minimum size
+    final NonBlockingHashMap<Integer,Integer> dense = new NonBlockingHashMap<Integer,Integer>();
+    final int CNT = 300000;
+    for( int i=0; i<CNT; i++ )
+      dense.put(i,i);
+    for( int i=0; i<CNT; i+=3 )
+      dense.remove(i);
+    assertThat( dense.size(), is(CNT-CNT/3) );
+    for( int i=0; i<CNT; i++ )
+      assertThat( dense.get(i), is(i%3==0 ? null : i) );
+    int cnt=0;
+    for( Integer K : dense.keySet() ) { assertTrue( K%3 != 0 ); cnt++; }
+    assertThat( cnt, is(CNT-CNT/3) );
+  }
+
+  // A drained table shrinks on its next resize, once the last resize is old
+  public void testShrink() throws Exception {
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    final int CNT = 100000;
+    for( int i=0; i<CNT; i++ ) nbhm.put(i,i);
+    for( int i=0; i<CNT; i++ ) nbhm.remove(i);
+    final int big = table_len(nbhm);
+    // Pretend the last resize was long ago
+    final java.lang.reflect.Field f = NonBlockingHashMap.class.getDeclaredField("_last_resize_milli");
+    f.setAccessible(true);
+    f.setLong(nbhm,0);
+    // Churn fresh keys until the dead key slots force a resize
+    for( int i=CNT; table_len(nbhm) >= big && i<50*CNT; i++ ) {
+      nbhm.put(i,i);
+      nbhm.remove(i);
+    }
+    assertTrue( "table shrank from "+big, table_len(nbhm) < big );
+    assertTrue( nbhm.isEmpty() );
+    for( int i=0; i<1000; i++ ) nbhm.put(i,i);
+    assertThat( nbhm.size(), is(1000) );
+    for( int i=0; i<1000; i++ ) assertThat( nbhm.get(i), is(i) );
+  }
+  private static int table_len( NonBlockingHashMap nbhm ) throws Exception {
+    final java.lang.reflect.Field kvs = NonBlockingHashMap.class.getDeclaredField("_kvs");
+    kvs.setAccessible(true);
+    final Object chm = ((Object[])kvs.get(nbhm))[0];
+    final java.lang.reflect.Field len = chm.getClass().getDeclaredField("_len");
+    len.setAccessible(true);
+    return len.getInt(chm);
+  }
+
+  // Parallel streams over the views split the table by slot range
+  public void testSpliterator() {
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    final int CNT = 100000;
+    for( int i=0; i<CNT; i++ ) nbhm.put(i,i&15);
+    for( int i=0; i<CNT; i+=4 ) nbhm.remove(i);
+    final int live = CNT-CNT/4;
+
+    final Spliterator<Integer> ks = nbhm.keySet().spliterator();
+    assertTrue( ks.hasCharacteristics(Spliterator.CONCURRENT) );
+    assertTrue( ks.hasCharacteristics(Spliterator.DISTINCT) );
+    assertTrue( ks.hasCharacteristics(Spliterator.NONNULL) );
+    assertThat( ks.estimateSize(), is((long)live) );
+    final Spliterator<Integer> half = ks.trySplit();
+    assertNotNull( half );
+    final long[] cnt = new long[1];
+    ks  .forEachRemaining(k -> cnt[0]++);
+    half.forEachRemaining(k -> cnt[0]++);
+    assertThat( cnt[0], is((long)live) );
+    assertFalse( nbhm.values().spliterator().hasCharacteristics(Spliterator.DISTINCT) );
+
+    assertThat( nbhm.keySet().parallelStream().count(), is((long)live) );
+    assertThat( nbhm.keySet().parallelStream().mapToLong(k -> k).sum(),
+                is((long)CNT*(CNT-1)/2 - 4L*(CNT/4)*(CNT/4-1)/2) );
+    assertThat( nbhm.values().parallelStream().filter(v -> v==1).count(), is((long)CNT/16) );
+    assertTrue( nbhm.entrySet().parallelStream().allMatch(e -> (e.getKey()&15) == e.getValue()) );
+  }
+
+  // Bulk forEach/search/reduce, both sequential and split across the pool
+  public void testBulk() {
+    final NonBlockingHashMap<Integer,Integer> nbhm = new NonBlockingHashMap<Integer,Integer>();
+    final int CNT = 100000;
+    for( int i=0; i<CNT; i++ ) nbhm.put(i,i);
+    for( int i=0; i<CNT; i+=2 ) nbhm.remove(i);
+    final long sum = (long)CNT*CNT/4;  // Sum of the odd numbers below CNT
+    for( long th : new long[]{Long.MAX_VALUE, 1000, 1} ) {
+      final AtomicLong cnt = new AtomicLong();
+      nbhm.forEach(th,(k,v) -> { assertThat(k,is(v)); cnt.incrementAndGet(); });
+      assertThat( cnt.get(), is((long)CNT/2) );
+      assertThat( nbhm.reduceToLong(th,(k,v) -> v,0L,Long::sum), is(sum) );
+      assertThat( nbhm.reduce(th,(k,v) -> (long)v,Long::sum), is(sum) );
+      assertThat( nbhm.reduceValues(th,Math::max), is(CNT-1) );
+      assertThat( nbhm.search(th,(k,v) -> v==777 ? "x"+k : null), is("x777") );
+      assertNull( nbhm.search(th,(k,v) -> v==778 ? "x"+k : null) );
+    }
+    assertNull( new NonBlockingHashMap<Integer,Integer>().reduceValues(1,Math::max) );
+  }
+
+  // forEach, replaceAll and removeIf walk the table in place
+  public void testForEachReplaceAllRemoveIf() {
+    final NonBlockingHashMap<String,Integer> map = new NonBlockingHashMap<String,Integer>();
+    final String[] keys = new String[1000];
+    for( int i=0; i<1000; i++ ) { keys[i] = "k"+i; map.put(keys[i],i); }
+    final long[] sum = new long[1];
+    map.forEach((k,v) -> { assertSame(keys[v],k); sum[0] += v; });
+    assertThat( sum[0], is(1000L*999/2) );
+
+    map.replaceAll((k,v) -> v*2);
+    for( int i=0; i<1000; i++ ) assertThat( map.get(keys[i]), is(i*2) );
+
+    assertTrue ( map.removeIf((k,v) -> v%4 == 0) );
+    assertFalse( map.removeIf((k,v) -> v%4 == 0) );
+    assertThat( map.size(), is(500) );
+    assertTrue ( map.values().removeIf(v -> v%6 == 2) );
+    assertTrue ( map.keySet().removeIf(k -> k == keys[999]) );
+    assertTrue ( map.entrySet().removeIf(e -> e.getValue() == 6) );
+    for( int i=0; i<1000; i++ )
+      assertThat( map.containsKey(keys[i]), is(i%2 == 1 && (i*2)%6 != 2 && i != 999 && i != 3) );
+
+    try { map.replaceAll((k,v) -> null); fail(); } catch( NullPointerException e ) { }
+  }
+
+  // User-supplied hashing and equality, here for byte[] and case-blind keys
+  public void testHashingStrategy() {
+    final NonBlockingHashMap<byte[],Integer> bytes = new NonBlockingHashMap<byte[],Integer>(new HashingStrategy<byte[]>() {
+        public int hashCode( byte[] key ) { return Arrays.hashCode(key); }
+        public boolean equals( byte[] key, byte[] other ) { return Arrays.equals(key,other); }
+      });
+    for( int i=0; i<10000; i++ )   // Enough to force several resizes
+      assertNull( bytes.put(Integer.toString(i).getBytes(),i) );
+    assertThat( bytes.size(), is(10000) );
+    for( int i=0; i<10000; i++ )   // Fresh, equal arrays find the mappings
+      assertThat( bytes.get(Integer.toString(i).getBytes()), is(i) );
+    assertThat( bytes.remove("17".getBytes()), is(17) );
+    assertFalse( bytes.containsKey("17".getBytes()) );
+    assertThat( bytes.merge("18".getBytes(),1,Integer::sum), is(19) );
+    assertThat( bytes.size(), is(9999) );
+
+    final NonBlockingHashMap<String,String> nocase = new NonBlockingHashMap<String,String>(new HashingStrategy<String>() {
+        public int hashCode( String key ) { return key.toLowerCase().hashCode(); }
+        public boolean equals( String key, String other ) { return key.equalsIgnoreCase(other); }
+      });
+    nocase.put("Hello","v1");
+    assertThat( nocase.put("HELLO","v2"), is("v1") );
+    assertThat( nocase.get("hello"), is("v2") );
+    assertThat( nocase.size(), is(1) );
+    try { nocase.get(null); fail(); } catch( NullPointerException e ) { }
+  }
+
+  public void testStats() {
+    // Keys hash in clumps of 8, so lookups and inserts must reprobe
+    final NonBlockingHashMap<Integer,Integer> map = new NonBlockingHashMap<Integer,Integer>(new HashingStrategy<Integer>() {
+        public int hashCode( Integer key ) { return key>>3; }
+        public boolean equals( Integer key, Integer other ) { return key.equals(other); }
+      });
+    map.put(-1,-1);
+    MapStats s = map.stats();     // Off: table figures only
+    assertThat( s.size(), is(1L) );
+    assertThat( s.putReprobes()+s.getReprobes()+s.resizes(), is(0L) );
+    map.setStatsEnabled(true);
+    for( int i=0; i<10000; i++ ) map.put(i,i);
+    for( int i=0; i<10000; i++ ) assertThat( map.get(i), is(i) );
+    for( int i=0; i<10000; i+=2 ) map.remove(i);
+    s = map.stats();
+    assertThat( s.size(), is(5001L) );
+    assertThat( s.tombstones(), is(s.slots()-5001) );
+    assertTrue( s.tombstones() >= 5000 );
+    assertTrue( s.tableLength() >= s.slots() );
+    assertTrue( s.resizes() > 0 );
+    assertTrue( s.copyNanos() > 0 );
+    assertTrue( s.getReprobes() > 0 );
+    assertTrue( s.putReprobes() > 0 );
+    // Every resize paused at least the put that started it
+    assertTrue( s.pauses() >= s.resizes() );
+    long sum = 0;
+    for( long p : s.pauseHistogram() ) sum += p;
+    assertThat( sum, is(s.pauses()) );
+    assertTrue( s.pauseNanos() > 0 );
+    assertTrue( s.pausePercentile(0.999) >= s.pausePercentile(0.5) );
+    assertTrue( s.pausePercentile(1.0) > 0 );
+    map.setStatsEnabled(false);
+    assertThat( map.stats().resizes(), is(0L) );
+  }
+
+  public void testExportImport() throws IOException {
+    final NonBlockingHashMap<String,Long> map = new NonBlockingHashMap<String,Long>();
+    for( long i=0; i<100000; i++ ) map.put("k"+i,i);
+    for( long i=0; i<100000; i+=3 ) map.remove("k"+i);
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bytes));
+    assertThat( map.exportTo(out,Codec.STRING,Codec.LONG), is((long)map.size()) );
+    out.writeUTF("trailer");    // The export is self-delimiting
+    out.flush();
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    final NonBlockingHashMap<String,Long> copy = NonBlockingHashMap.importFrom(in,Codec.STRING,Codec.LONG);
+    assertThat( in.readUTF(), is("trailer") );
+    assertThat( copy, is(map) );
+    assertTrue( copy.stats().tableLength() >= 4L*copy.size() ); // Presized
+
+    // Again through channels
+    final ByteArrayOutputStream bytes2 = new ByteArrayOutputStream();
+    map.exportTo(java.nio.channels.Channels.newChannel(bytes2),Codec.STRING,Codec.LONG);
+    assertThat( bytes2.toByteArray(), is(Arrays.copyOf(bytes.toByteArray(),bytes2.size())) );
+    assertThat( NonBlockingHashMap.importFrom(java.nio.channels.Channels.newChannel(new ByteArrayInputStream(bytes2.toByteArray())),Codec.STRING,Codec.LONG), is(map) );
+
+    try {
+      NonBlockingHashMap.importFrom(new DataInputStream(new ByteArrayInputStream(new byte[12])),Codec.STRING,Codec.LONG);
+      fail();
+    } catch( StreamCorruptedException e ) { }
+  }
+
   // This test is a copy of the JCK test Hashtable2027, which is incorrect.
   // The test requires a particular order of values to appear in the esa
   // array - but this is not part of the spec.  A different implementation
@@ -527,6 +527,19 @@ public class NonBlockingIdentityHashMapTest extends TestCase {
     assertEquals("values().iterator() count", itemCount, iteratorCount);
   }
 
+  public void testStats() {
+    final NonBlockingIdentityHashMap<Integer,Integer> map = new NonBlockingIdentityHashMap<Integer,Integer>();
+    final Integer[] keys = new Integer[10000];
+    map.setStatsEnabled(true);
+    for( int i=0; i<keys.length; i++ ) map.put(keys[i] = Integer.valueOf(i),i);
+    for( int i=0; i<keys.length; i+=2 ) map.remove(keys[i]);
+    final MapStats s = map.stats();
+    assertThat( s.size(), is(5000L) );
+    assertThat( s.tombstones(), is(s.slots()-5000) );
+    assertTrue( s.tableLength() >= s.slots() );
+    assertTrue( s.resizes() > 0 );
+  }
+
   // This test is a copy of the JCK test Hashtable2027, which is incorrect.
   // The test requires a particular order of values to appear in the esa
   // array - but this is not part of the spec.  A different implementation
@@ -548,4 +561,27 @@ public class NonBlockingIdentityHashMapTest extends TestCase {
   //  assertEquals( "iterator_order[0]", new Integer( 9), esa[0] );
   //  assertEquals( "iterator_order[1]", new Integer(10), esa[1] );
   //}
+
+  // forEach, replaceAll and removeIf walk the table in place
+  // Equal but distinct keys are separate mappings, each visited and
+  // replaced or removed on its own
+  public void testForEachReplaceAllRemoveIf() {
+    final NonBlockingIdentityHashMap<String,Integer> map = new NonBlockingIdentityHashMap<String,Integer>();
+    final String a = new String("k"), b = new String("k");
+    map.put(a,1);
+    map.put(b,2);
+    final int[] seen = new int[3];
+    map.forEach((k,v) -> { assertSame(v == 1 ? a : b, k); seen[v]++; });
+    assertThat( seen[1], is(1) );
+    assertThat( seen[2], is(1) );
+
+    map.replaceAll((k,v) -> k == a ? 10 : v);
+    assertThat( map.get(a), is(10) );
+    assertThat( map.get(b), is(2) );
+
+    assertTrue ( map.removeIf((k,v) -> k == b) );
+    assertThat( map.size(), is(1) );
+    assertTrue ( map.containsKey(a) );
+    assertFalse( map.keySet().removeIf(k -> k == b) );
+  }
 }
@@ -0,0 +1,109 @@
+package org.cliffc.high_scale_lib;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.ObjLongConsumer;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+// Test NonBlockingObjectLongMap via JUnit
+public class NonBlockingObjectLongMapTest extends TestCase {
+
+  private NonBlockingObjectLongMap<String> _map;
+  protected void setUp   () { _map = new NonBlockingObjectLongMap<String>(); }
+  protected void tearDown() { _map = null; }
+
+  public void testBasic() {
+    assertTrue ( _map.isEmpty() );
+    assertThat ( _map.getLong("a"), is(0L) );
+    assertFalse( _map.containsKey("a") );
+    assertThat ( _map.increment("a"), is(1L) );
+    assertThat ( _map.increment(new String("a")), is(2L) );
+    assertThat ( _map.decrement("b"), is(-1L) );
+    assertThat ( _map.addAndGet("c",10), is(10L) );
+    assertThat ( _map.getAndAdd("c",5), is(10L) );
+    assertThat ( _map.size(), is(3) );
+    assertThat ( _map.getLong("c"), is(15L) );
+    assertThat ( _map.put("c",0), is(15L) );
+    assertTrue ( _map.containsKey("c") );
+    assertThat ( _map.remove("c"), is(0L) );
+    assertFalse( _map.containsKey("c") );
+    assertThat ( _map.remove("c"), is(0L) );
+    assertThat ( _map.size(), is(2) );
+    assertThat ( _map.addAndGet("c",3), is(3L) );
+    assertThat ( _map.size(), is(3) );
+    try { _map.put("d",NonBlockingObjectLongMap.MAX_VALUE+1); fail(); } catch( IllegalArgumentException e ) { }
+    _map.put("d",NonBlockingObjectLongMap.MAX_VALUE);
+    try { _map.increment("d"); fail(); } catch( ArithmeticException e ) { }
+    assertThat ( _map.getLong("d"), is(NonBlockingObjectLongMap.MAX_VALUE) );
+    try { _map.increment(null); fail(); } catch( NullPointerException e ) { }
+    _map.clear();
+    assertTrue ( _map.isEmpty() );
+  }
+
+  public void testResizeAndForEach() {
+    for( int i=0; i<100000; i++ ) _map.put("k"+i,i);
+    for( int i=0; i<100000; i+=2 ) _map.remove("k"+i);
+    assertThat( _map.size(), is(50000) );
+    for( int i=0; i<100000; i++ )
+      assertThat( _map.getLong("k"+i), is(i%2 == 0 ? 0L : (long)i) );
+    final Set<String> seen = new HashSet<String>();
+    _map.forEach(new ObjLongConsumer<String>() {
+        public void accept( String k, long v ) {
+          assertTrue( seen.add(k) );
+          assertThat( "k"+v, is(k) );
+        }
+      });
+    assertThat( seen.size(), is(50000) );
+  }
+
+  public void testDrain() {
+    for( int i=0; i<1000; i++ ) _map.addAndGet("k"+(i%10),i);
+    final Map<String,Long> out = new HashMap<String,Long>();
+    final ObjLongConsumer<String> f = new ObjLongConsumer<String>() {
+        public void accept( String k, long v ) { assertNull( out.put(k,v) ); }
+      };
+    assertThat( _map.drain(f), is(10) );
+    assertThat( out.size(), is(10) );
+    for( int j=0; j<10; j++ ) assertThat( out.get("k"+j), is(49500L+100*j) );
+    assertTrue( _map.isEmpty() );
+    assertThat( _map.getLong("k3"), is(0L) );
+    // Recounting the same keys starts over from zero
+    _map.increment("k3");
+    out.clear();
+    assertThat( _map.drain(f), is(1) );
+    assertThat( out.get("k3"), is(1L) );
+  }
+
+  // Concurrent counting and draining: every increment must land in exactly
+  // one drain
+  public void testConcurrentIncrementAndDrain() throws Exception {
+    final int THREADS = 8, KEYS = 20000, ROUNDS = 5;
+    final ExecutorService ex = Executors.newFixedThreadPool(THREADS);
+    final Future<?>[] fs = new Future<?>[THREADS];
+    for( int t=0; t<THREADS; t++ )
+      fs[t] = ex.submit(new Runnable() {
+          public void run() {
+            for( int r=0; r<ROUNDS; r++ )
+              for( int k=0; k<KEYS; k++ )
+                _map.increment(Integer.toString(k));
+          }
+        });
+    final long[] total = new long[1];
+    final ObjLongConsumer<String> f = new ObjLongConsumer<String>() {
+        public void accept( String k, long v ) { total[0] += v; }
+      };
+    boolean done = false;
+    while( !done ) {
+      done = true;
+      for( Future<?> fu : fs ) done &= fu.isDone();
+      _map.drain(f);
+    }
+    for( Future<?> fu : fs ) fu.get();
+    ex.shutdown();
+    _map.drain(f);
+    assertThat( total[0], is((long)THREADS*KEYS*ROUNDS) );
+    assertTrue( _map.isEmpty() );
+  }
+}
@@ -0,0 +1,129 @@
+package org.cliffc.high_scale_lib;
+
+import java.util.concurrent.*;
+import junit.framework.TestCase;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import static org.cliffc.high_scale_lib.NonBlockingOffHeapMapLongLong.NO_VALUE;
+
+// Test NonBlockingOffHeapMapLongLong via JUnit
+public class NonBlockingOffHeapMapLongLongTest extends TestCase {
+
+  private NonBlockingOffHeapMapLongLong _map;
+  protected void setUp   () { _map = new NonBlockingOffHeapMapLongLong(); }
+  protected void tearDown() { _map.close(); _map = null; }
+
+  public void testBasic() {
+    assertTrue ( _map.isEmpty() );
+    assertThat ( _map.put(1,10), is(NO_VALUE) );
+    assertThat ( _map.putIfAbsent(2,20), is(NO_VALUE) );
+    assertThat ( _map.putIfAbsent(2,21), is(20L) );
+    assertThat ( _map.size(), is(2) );
+    assertThat ( _map.get(1), is(10L) );
+    assertThat ( _map.get(3), is(NO_VALUE) );
+    assertThat ( _map.getOrDefault(3,-7), is(-7L) );
+    assertThat ( _map.put(1,0), is(10L) );
+    assertThat ( _map.get(1), is(0L) );
+    assertTrue ( _map.replace(1,0,-5) );
+    assertFalse( _map.replace(1,0,-6) );
+    assertThat ( _map.replace(3,30), is(NO_VALUE) );
+    assertFalse( _map.containsKey(3) );
+    assertFalse( _map.remove(1,4) );
+    assertTrue ( _map.remove(1,-5) );
+    assertThat ( _map.remove(2), is(20L) );
+    assertThat ( _map.remove(2), is(NO_VALUE) );
+    assertTrue ( _map.isEmpty() );
+  }
+
+  public void testKeyZeroAndRange() {
+    assertThat ( _map.put(0,NonBlockingOffHeapMapLongLong.MIN_VALUE), is(NO_VALUE) );
+    assertThat ( _map.put(Long.MIN_VALUE,NonBlockingOffHeapMapLongLong.MAX_VALUE), is(NO_VALUE) );
+    assertThat ( _map.size(), is(2) );
+    assertThat ( _map.get(0), is(NonBlockingOffHeapMapLongLong.MIN_VALUE) );
+    assertThat ( _map.get(Long.MIN_VALUE), is(NonBlockingOffHeapMapLongLong.MAX_VALUE) );
+    assertThat ( _map.putIfAbsent(0,5), is(NonBlockingOffHeapMapLongLong.MIN_VALUE) );
+    assertThat ( _map.remove(0), is(NonBlockingOffHeapMapLongLong.MIN_VALUE) );
+    assertFalse( _map.containsKey(0) );
+    try { _map.put(1,NonBlockingOffHeapMapLongLong.MAX_VALUE+1); fail(); } catch( IllegalArgumentException e ) { }
+    try { _map.put(1,NonBlockingOffHeapMapLongLong.MIN_VALUE-1); fail(); } catch( IllegalArgumentException e ) { }
+    try { _map.put(1,NO_VALUE); fail(); } catch( IllegalArgumentException e ) { }
+    assertFalse( _map.remove(Long.MIN_VALUE,NO_VALUE) );
+  }
+
+  public void testResizeAndReclaim() throws InterruptedException {
+    for( long i=0; i<200000; i++ ) _map.put(i*31,i);
+    assertThat( _map.size(), is(200000) );
+    for( long i=0; i<200000; i++ ) assertThat( _map.get(i*31), is(i) );
+    for( long i=0; i<200000; i+=2 ) assertThat( _map.remove(i*31), is(i) );
+    assertThat( _map.size(), is(100000) );
+    for( long i=0; i<200000; i++ ) assertThat( _map.get(i*31), is(i%2 == 0 ? NO_VALUE : i) );
+
+    // Retired tables are released once unreachable, leaving just the
+    // current table: a power of two slots of 16 bytes each
+    for( int i=0; i<100 && Long.bitCount(_map.offHeapBytes()) != 1; i++ ) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertThat( Long.bitCount(_map.offHeapBytes()), is(1) );
+
+    _map.clear();
+    assertTrue( _map.isEmpty() );
+    assertThat( _map.get(31), is(NO_VALUE) );
+  }
+
+  public void testClose() {
+    final NonBlockingOffHeapMapLongLong map = new NonBlockingOffHeapMapLongLong();
+    map.put(1,1);
+    assertTrue( map.offHeapBytes() > 0 );
+    map.close();
+    assertThat( map.offHeapBytes(), is(0L) );
+    try { map.get(1); fail(); } catch( IllegalStateException e ) { }
+    try { map.put(0,1); fail(); } catch( IllegalStateException e ) { }
+    map.close();                // Closing twice is harmless
+  }
+
+  // Concurrent counting across resizes: every increment must land
+  public void testConcurrentUpdates() throws Exception {
+    final int THREADS = 8, KEYS = 20000, ROUNDS = 5;
+    final ExecutorService ex = Executors.newFixedThreadPool(THREADS);
+    final Future<?>[] fs = new Future<?>[THREADS];
+    for( int t=0; t<THREADS; t++ )
+      fs[t] = ex.submit(new Runnable() {
+          public void run() {
+            for( int r=0; r<ROUNDS; r++ )
+              for( long k=0; k<KEYS; k++ ) {
+                while( true ) {
+                  final long old = _map.putIfAbsent(k,1);
+                  if( old == NO_VALUE || _map.replace(k,old,old+1) ) break;
+                }
+              }
+          }
+        });
+    for( Future<?> f : fs ) f.get();
+    ex.shutdown();
+    assertThat( _map.size(), is(KEYS) );
+    for( long k=0; k<KEYS; k++ ) assertThat( _map.get(k), is((long)THREADS*ROUNDS) );
+  }
+
+  // Key 0 lives outside the table: conditional updates to it must not
+  // report success for a CAS that lost a race
+  public void testConcurrentKeyZero() throws Exception {
+    final int THREADS = 8, INCS = 200000;
+    final ExecutorService ex = Executors.newFixedThreadPool(THREADS);
+    final Future<?>[] fs = new Future<?>[THREADS];
+    for( int t=0; t<THREADS; t++ )
+      fs[t] = ex.submit(new Runnable() {
+          public void run() {
+            for( int i=0; i<INCS; i++ )
+              while( true ) {
+                final long old = _map.putIfAbsent(0,1);
+                if( old == NO_VALUE || _map.replace(0,old,old+1) ) break;
+              }
+          }
+        });
+    for( Future<?> f : fs ) f.get();
+    ex.shutdown();
+    assertThat( _map.get(0), is((long)THREADS*INCS) );
+  }
+}